@@ -0,0 +1,108 @@
+package org.jenkinsci.plugins.skeleton;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.skeleton.utils.ScriptOutputAnnotator;
+import org.jenkinsci.plugins.skeleton.utils.SkeletonConsoleAnnotator;
+import org.jenkinsci.plugins.skeleton.utils.SkeletonConsoleNote;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Console annotation, one line per operation: the score is lines/sec and
+ * <code>-prof gc</code> reports the bytes allocated per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleAnnotatorBenchmark {
+
+    @Param({"80", "1000"})
+    public int lineLength;
+
+    private byte[] skeletonLine;
+    private byte[] warningLine;
+    private LegacyAnnotator legacy;
+    private SkeletonConsoleAnnotator annotator;
+    private ScriptOutputAnnotator scriptOutput;
+
+    @Setup
+    public void setUp() {
+        skeletonLine = line("[Skeleton] INFO: ");
+        warningLine = line("WARNING: ");
+        legacy = new LegacyAnnotator(NULL_STREAM);
+        annotator = new SkeletonConsoleAnnotator(NULL_STREAM);
+        scriptOutput = new ScriptOutputAnnotator(annotator, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        scriptOutput.finish();
+    }
+
+    /** the annotator as it was: decode every line, serialize a new note per match */
+    @Benchmark
+    public void legacySkeletonLine() throws IOException {
+        legacy.eol(skeletonLine, skeletonLine.length);
+    }
+
+    @Benchmark
+    public void skeletonLine() throws IOException {
+        annotator.line(skeletonLine, skeletonLine.length);
+    }
+
+    @Benchmark
+    public void scriptWarningLine() throws IOException {
+        scriptOutput.write(warningLine);
+    }
+
+    private byte[] line(String prefix) {
+        byte[] b = new byte[Math.max(lineLength, prefix.length() + 1)];
+        Arrays.fill(b, (byte) 'x');
+        System.arraycopy(prefix.getBytes(), 0, b, 0, prefix.length());
+        b[b.length - 1] = '\n';
+        return b;
+    }
+
+    private static final class LegacyAnnotator {
+        private final OutputStream out;
+
+        LegacyAnnotator(OutputStream out) {
+            this.out = out;
+        }
+
+        void eol(byte[] b, int len) throws IOException {
+            String line = Charset.defaultCharset().decode(ByteBuffer.wrap(b, 0, len)).toString();
+            if (line.startsWith("[Skeleton]")) new SkeletonConsoleNote().encodeTo(out);
+            out.write(b, 0, len);
+        }
+    }
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+}
@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.EnvVars;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.skeleton.utils.ByteMacroExpander;
+import org.jenkinsci.plugins.skeleton.utils.MacroExpander;
+import org.jenkinsci.plugins.skeleton.utils.ScriptTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-build preparation of a job on the controller, without a running Jenkins:
+ * the build environment is a plain {@link EnvVars}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobExpansionBenchmark {
+
+    @Param({"100", "10000"})
+    public int lines;
+
+    @Param({"10", "200"})
+    public int variables;
+
+    private EnvVars env;
+    private String script;
+    private String windowsScript;
+    private byte[] windowsScriptBytes;
+    private ScriptTemplate template;
+    private FileJobSource fileJobSource;
+    private String properties;
+
+    @Setup
+    public void setUp() {
+        env = new EnvVars();
+        StringBuilder props = new StringBuilder();
+        for (int i = 0; i < variables; i++) {
+            env.put("VAR" + i, "value of variable " + i);
+            props.append("property.").append(i).append('=').append("value ").append(i).append('\n');
+        }
+        env.put("NODE_NAME", "windows-agent-01");
+        env.put("WORKSPACE", "C:\\jenkins\\workspace\\job");
+        properties = props.toString();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("Write-Output \"step ").append(i).append(": ${VAR").append(i % variables)
+            .append("} on $NODE_NAME\" | Out-File -Append $env:TEMP\\log.txt\n");
+        }
+        script = sb.toString();
+        windowsScript = StringJobSource.toWindowsLineEndings(script);
+        windowsScriptBytes = windowsScript.getBytes(UTF8);
+        template = ScriptTemplate.compile(windowsScript);
+        fileJobSource = new FileJobSource("${WORKSPACE}\\scripts\\${VAR0}\\run.ps1");
+    }
+
+    /** expansion as done before compiled templates, through Util.replaceMacro */
+    @Benchmark
+    public String envVarsExpand() {
+        return env.expand(windowsScript);
+    }
+
+    @Benchmark
+    public String templateCompileAndRender() {
+        return ScriptTemplate.compile(windowsScript).render(env);
+    }
+
+    @Benchmark
+    public String templateRender() {
+        return template.render(env);
+    }
+
+    @Benchmark
+    public long macroExpanderStream() throws IOException {
+        return new MacroExpander(env, 0).expand(new StringReader(windowsScript), NULL_WRITER);
+    }
+
+    /** the same on bytes, as the agent expands a workspace script */
+    @Benchmark
+    public long byteMacroExpander() throws IOException {
+        return new ByteMacroExpander(env, UTF8, 0).expand(ByteBuffer.wrap(windowsScriptBytes), null, NULL_CHANNEL, null);
+    }
+
+    @Benchmark
+    public String windowsLineEndings() {
+        return StringJobSource.toWindowsLineEndings(script);
+    }
+
+    @Benchmark
+    public String expandJobPath() {
+        return fileJobSource.expandJobPath(env);
+    }
+
+    @Benchmark
+    public Properties parseProperties() throws IOException {
+        return Skeleton.parseProperties(properties);
+    }
+
+    private static final Writer NULL_WRITER = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final WritableByteChannel NULL_CHANNEL = new WritableByteChannel() {
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    };
+}
@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.RemoteOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.skeleton.runner.CompressedOutput;
+import org.jenkinsci.plugins.skeleton.utils.ScriptOutputAnnotator;
+import org.jenkinsci.plugins.skeleton.utils.SkeletonConsoleAnnotator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Script output sent from an agent over an in-process remoting channel into
+ * the console annotation: one operation writes 4 MB of lines on the agent
+ * side and returns once they were annotated on the controller side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputTransportBenchmark {
+
+    /** bytes per write of the script, as its interpreter flushes them */
+    @Param({"80", "8192"})
+    public int writeSize;
+
+    /** kilobytes per compressed chunk */
+    @Param({"16", "64"})
+    public int chunkSize;
+
+    private static final int BYTES_PER_OP = 4 * 1024 * 1024;
+
+    private ExecutorService executor;
+    private Channel controller;
+    private Channel agent;
+    private ScriptOutputAnnotator output;
+
+    @Setup
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        final FastPipedInputStream toController = new FastPipedInputStream();
+        final FastPipedInputStream toAgent = new FastPipedInputStream();
+        final FastPipedOutputStream controllerOut = new FastPipedOutputStream(toAgent);
+        final FastPipedOutputStream agentOut = new FastPipedOutputStream(toController);
+
+        // both ends handshake, so they are created at the same time
+        Future<Channel> agentSide = executor.submit(new java.util.concurrent.Callable<Channel>() {
+            public Channel call() throws IOException {
+                return new Channel("agent", executor, toAgent, agentOut);
+            }
+        });
+        controller = new Channel("controller", executor, toController, controllerOut);
+        agent = agentSide.get();
+        output = new ScriptOutputAnnotator(new SkeletonConsoleAnnotator(NULL_STREAM), null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        output.finish();
+        controller.close();
+        agent.close();
+        executor.shutdownNow();
+    }
+
+    /** every write of the script crosses the channel on its own */
+    @Benchmark
+    public void direct() throws Exception {
+        controller.call(new Emit(new RemoteOutputStream(output), writeSize));
+    }
+
+    @Benchmark
+    public void compressedChunks() throws Exception {
+        controller.call(new Emit(CompressedOutput.export(output, chunkSize * 1024,
+                SkeletonConsoleAnnotator.FLUSH_DELAY_MS), writeSize));
+    }
+
+    /**
+     * Writes lines of script output on the agent.
+     */
+    private static final class Emit implements Callable<Void, IOException> {
+        private final OutputStream out;
+        private final int writeSize;
+
+        Emit(OutputStream out, int writeSize) {
+            this.out = out;
+            this.writeSize = writeSize;
+        }
+
+        public Void call() throws IOException {
+            byte[] b = new byte[writeSize];
+            byte[] line = "VERBOSE: Processing item 0000 of the inventory\r\n".getBytes("UTF-8");
+
+            for (int i = 0; i < b.length; i++)
+                b[i] = line[i % line.length];
+            for (int n = 0; n < BYTES_PER_OP; n += b.length)
+                out.write(b);
+            out.flush();
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+}
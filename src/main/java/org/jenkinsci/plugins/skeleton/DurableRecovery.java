@@ -0,0 +1,101 @@
+package org.jenkinsci.plugins.skeleton;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.skeleton.runner.DurableRun;
+import org.jenkinsci.plugins.skeleton.utils.ConsoleLogger;
+
+/**
+ * Picks up durable runs nobody polls anymore, typically those of builds the
+ * controller lost with a restart. Once such a run exited, the rest of its
+ * output and its exit code are appended to the log of its build and the
+ * values it reported are published. Runs whose build is gone, or which
+ * could not be stopped after an abort, are killed.
+ */
+@Extension
+public class DurableRecovery extends AsyncPeriodicWork {
+  public DurableRecovery() {
+    super("Skeleton durable run recovery");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return MIN;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    Jenkins jenkins  = Jenkins.getInstance();
+    List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+
+    nodes.add(jenkins);
+    for (Node node : nodes) {
+      FilePath root = node.getRootPath();
+
+      // offline, collected once it is back
+      if (root == null) continue;
+
+      FilePath dir = root.child(Skeleton.DURABLE_DIR);
+
+      if (!dir.exists()) continue;
+      for (FilePath control : dir.listDirectories()) {
+        if (DurableRun.isActive(control.getRemote())) continue;
+        try {
+          recover(dir.getChannel(), control.getRemote());
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to recover the durable run in " + control, e);
+        }
+      }
+    }
+  }
+
+  private void recover(VirtualChannel channel, String controlDir) throws IOException, InterruptedException {
+    String owner = DurableRun.ownerOf(channel, controlDir);
+    Run<?, ?> run = owner != null ? Run.fromExternalizableId(owner) : null;
+
+    if (run == null || DurableRun.isAbandoned(controlDir)) {
+      LOGGER.info("Killing the durable run in " + controlDir + " of " + (owner != null ? owner : "nobody"));
+      DurableRun.kill(channel, controlDir);
+      return;
+    }
+    // the build still waits for it, e.g. while its node reconnects
+    if (run.isBuilding()) return;
+
+    OutputStream log = new FileOutputStream(run.getLogFile(), true);
+
+    try {
+      ConsoleLogger console = new ConsoleLogger(new StreamBuildListener(log, Charset.defaultCharset()));
+
+      synchronized (run) {
+        DurableRun.Result done = DurableRun.collect(channel, controlDir, log);
+
+        // still running, it outlived the controller
+        if (done == null) return;
+        console.logAnnot("[Skeleton] INFO: Script outlived the controller, exited with "
+                         + done.getExitCode() + (done.getBadMarker() != null ? " (no exit code left)" : ""));
+        if (!done.getValues().isEmpty()) SkeletonAction.of(run).addResults(done.getValues());
+        run.save();
+      }
+    } finally {
+      log.close();
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(DurableRecovery.class.getName());
+}
@@ -1,76 +1,307 @@
-package org.jenkinsci.plugins.skeleton;
-
-import hudson.Extension;
-import hudson.FilePath;
-import hudson.model.BuildListener;
-import hudson.model.AbstractBuild;
-import hudson.model.ParametersAction;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.logging.Logger;
-
-import jenkins.model.Jenkins;
-
-import org.kohsuke.stapler.DataBoundConstructor;
-
-public class FileJobSource extends JobSource {
-
-    private String jobPath;
-
-    @DataBoundConstructor
-    public FileJobSource(String jobPath) {
-       this.jobPath = jobPath;
-    }
-
-    /**
-     * {@inheritDoc}
-     */
-    public String getJobPath() {
-        return jobPath;
-    }
-
-    @Override
-    public File createJobFile(AbstractBuild<?, ?> build, BuildListener listener) throws InterruptedException,
-            IOException {
-        // TODO check, if file really exists
-        // TODO check, is path is really relative to WS root
-        FilePath fp = new FilePath(build.getWorkspace(), expandJobPath(build, listener)); 
-        // TODO not very safe, if e.g. some malicious user provide path to a huge file                  
-        String jobContent = fp.readToString(); 
-        FilePath path = createDefaultJobFile(jobContent, build, listener);
-        return new File(path.getRemote());
-    }
-
-    public DescriptorImpl getDescriptor() {
-        return (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
-    }
-    
-    protected String expandJobPath(AbstractBuild<?, ?> build, BuildListener listener) {
-        String expandedPath = getJobPath();
-        ParametersAction pa = build.getAction(ParametersAction.class);
-        // expand build parameters
-        if (pa != null)
-            expandedPath = pa.substitute(build, expandedPath);
-        // expand environment variables
-        try {
-            expandedPath = build.getEnvironment(listener).expand(expandedPath);
-        } catch(IOException e) {
-           LOGGER.warning("Cannot expand job path '" + expandedPath + "', caused by: " + e.getMessage());
-        } catch(InterruptedException e) { // support JDK prior to JDK7 by separate catch blocks
-            LOGGER.warning("Cannot expand job path '" + expandedPath + "', caused by: " + e.getMessage()); 
-        }
-        return expandedPath;
-    }
-
-    @Extension
-    public static class DescriptorImpl extends JobSourceDescriptor {
-        public String getDisplayName() {
-            return "File job source";
-        }
-    }
-    
-    private static final Logger LOGGER = Logger.getLogger(FileJobSource.class.getName());
-
-}
-
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.skeleton.utils.ByteMacroExpander;
+import org.jenkinsci.plugins.skeleton.utils.MacroExpander;
+import org.jenkinsci.plugins.skeleton.utils.ScriptTemplate;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+public class FileJobSource extends JobSource {
+
+    /**
+     * Size limit applied when none is configured, in bytes.
+     */
+    public static final long DEFAULT_MAX_JOB_SIZE = 128L * 1024 * 1024;
+
+    private String jobPath;
+    private long maxJobSize;
+    private boolean inlineIncludes;
+    private transient volatile ScriptTemplate pathTemplate;
+
+    public FileJobSource(String jobPath) {
+        this(jobPath, 0);
+    }
+
+    public FileJobSource(String jobPath, long maxJobSize) {
+        this(jobPath, maxJobSize, false);
+    }
+
+    @DataBoundConstructor
+    public FileJobSource(String jobPath, long maxJobSize, boolean inlineIncludes) {
+       this.jobPath = jobPath;
+       this.maxJobSize = maxJobSize;
+       this.inlineIncludes = inlineIncludes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getJobPath() {
+        return jobPath;
+    }
+
+    /**
+     * Identifies the unexpanded path; the file content may change between builds.
+     */
+    @Override
+    public String getScriptId() {
+        return scriptIdOf(jobPath);
+    }
+
+    /**
+     * Maximum size of the script in bytes, <code>0</code> for the default.
+     */
+    public long getMaxJobSize() {
+        return maxJobSize;
+    }
+
+    /**
+     * Whether included and dot-sourced scripts are inlined into the job file,
+     * see {@link ScriptIncludes}.
+     */
+    public boolean isInlineIncludes() {
+        return inlineIncludes;
+    }
+
+    protected long getEffectiveMaxJobSize() {
+        return maxJobSize > 0 ? maxJobSize : DEFAULT_MAX_JOB_SIZE;
+    }
+
+    @Override
+    public File createJobFile(AbstractBuild<?, ?> build, BuildListener listener) throws InterruptedException,
+            IOException {
+        return createJobFile(build, listener, null);
+    }
+
+    @Override
+    public File createJobFile(AbstractBuild<?, ?> build, BuildListener listener, ScriptCache cache)
+            throws InterruptedException, IOException {
+        // TODO check, is path is really relative to WS root
+        // the script is read, expanded and written back on the node, the content never crosses the channel
+        String path = build.getWorkspace().act(getMaterializer(getVariables(build, listener), cache));
+        return new File(path);
+    }
+
+    @Override
+    public FilePath.FileCallable<String> getMaterializer(Map<String, String> variables, ScriptCache cache) {
+        return new Materializer(expandJobPath(variables), variables, getEffectiveMaxJobSize(), inlineIncludes, cache);
+    }
+
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
+    }
+    
+    protected String expandJobPath(AbstractBuild<?, ?> build, BuildListener listener) {
+        String expandedPath = getJobPath();
+        // expand build parameters and environment variables
+        try {
+            expandedPath = expandJobPath(getVariables(build, listener));
+        } catch(IOException e) {
+           LOGGER.warning("Cannot expand job path '" + expandedPath + "', caused by: " + e.getMessage());
+        } catch(InterruptedException e) { // support JDK prior to JDK7 by separate catch blocks
+            LOGGER.warning("Cannot expand job path '" + expandedPath + "', caused by: " + e.getMessage()); 
+        }
+        return expandedPath;
+    }
+
+    protected String expandJobPath(Map<String, String> variables) {
+        ScriptTemplate t = pathTemplate;
+        if (t == null)
+            t = pathTemplate = ScriptTemplate.compile(getJobPath());
+        return t.render(variables);
+    }
+
+    /**
+     * Expands the script with {@link ByteMacroExpander} into a temporary job file in the workspace,
+     * moved into the script cache afterwards if there is one. Large scripts are read in chunks, the
+     * bytes between macros are copied as they are. With a cache, the expansion of an
+     * unchanged script is reused (see {@link SourceFingerprint}). Includes are inlined first if enabled
+     * (see {@link ScriptIncludes}). Returns the path of the job file.
+     */
+    private static final class Materializer implements FilePath.FileCallable<String> {
+        private final String jobPath;
+        private final Map<String, String> variables;
+        private final long maxJobSize;
+        private final boolean inlineIncludes;
+        private final ScriptCache cache;
+
+        /** scripts at least this large are read in chunks instead of at once */
+        private static final long STREAM_THRESHOLD = 1024 * 1024;
+
+        Materializer(String jobPath, Map<String, String> variables, long maxJobSize, boolean inlineIncludes,
+                ScriptCache cache) {
+            this.jobPath = jobPath;
+            this.variables = variables;
+            this.maxJobSize = maxJobSize;
+            this.inlineIncludes = inlineIncludes;
+            this.cache = cache;
+        }
+
+        public String invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            File source = new File(jobPath);
+            if (!source.isAbsolute())
+                source = new File(workspace, jobPath);
+            if (!source.isFile())
+                throw new IOException("Job file " + source + " doesn't exist");
+            // fail fast before reading anything
+            if (source.length() > maxJobSize)
+                throw new IOException("Job file " + source + " has " + source.length()
+                        + " bytes, maximum allowed size is " + maxJobSize);
+
+            ScriptIncludes.Assembly assembly = null;
+            if (inlineIncludes)
+                assembly = ScriptIncludes.assemble(source, workspace, maxJobSize, cache, variables.get("JOB_NAME"));
+            try {
+                return materialize(source, assembly, workspace);
+            } finally {
+                if (assembly != null && assembly.isTemporary())
+                    assembly.getFile().delete();
+            }
+        }
+
+        private String materialize(File source, ScriptIncludes.Assembly assembly, File workspace)
+                throws IOException {
+            SourceFingerprint fingerprint = null;
+            if (cache != null) {
+                fingerprint = SourceFingerprint.load(cache, variables.get("JOB_NAME"), source);
+                // the includes were already checked, the assembled script is known by its digest
+                File reused = assembly != null ? fingerprint.reuse(assembly.getDigest(), variables, cache)
+                        : fingerprint.reuse(source, variables, cache);
+                if (reused != null)
+                    return reused.getAbsolutePath();
+            }
+            if (assembly != null)
+                source = assembly.getFile();
+
+            // taken before reading, a change while reading is detected next time
+            long size = source.length();
+            long lastModified = source.lastModified();
+            MessageDigest sourceDigest = ScriptCache.newDigest();
+            MessageDigest targetDigest = ScriptCache.newDigest();
+            Set<String> referenced;
+
+            File target = File.createTempFile(DEFAULT_JOB_PREFIX, DEFAULT_JOB_SUFFIX, workspace);
+            FileInputStream in = new FileInputStream(source);
+            boolean success = false;
+            try {
+                FileOutputStream out = new FileOutputStream(target);
+                try {
+                    referenced = expand(in.getChannel(), out, sourceDigest, targetDigest);
+                } finally {
+                    out.close();
+                }
+                success = true;
+            } finally {
+                in.close();
+                if (!success)
+                    target.delete();
+            }
+            if (cache != null) {
+                String key = ScriptCache.toHex(targetDigest.digest());
+                target = cache.storeLocal(key, target);
+                fingerprint.update(assembly != null ? -1 : size, lastModified, ScriptCache.toHex(sourceDigest.digest()),
+                        referenced, variables, key);
+            }
+            return target.getAbsolutePath();
+        }
+
+        private ByteBuffer read(FileChannel channel) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, bytes.position()) < 0)
+                    break;
+            }
+            bytes.flip();
+            return bytes;
+        }
+
+        /**
+         * Values are written in the encoding the script declares with its byte order mark, the default
+         * encoding of the node otherwise. Text between macros keeps its bytes.
+         */
+        private Set<String> expand(FileChannel source, FileOutputStream out, MessageDigest sourceDigest,
+                MessageDigest digest) throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(3);
+            while (head.hasRemaining()) {
+                if (source.read(head, head.position()) < 0)
+                    break;
+            }
+            head.flip();
+
+            Charset utf16 = utf16Of(head);
+            if (utf16 != null) {
+                // ASCII bytes occur within UTF-16 characters, expand the decoded text instead
+                MacroExpander expander = new MacroExpander(variables, maxJobSize);
+                Writer w = new OutputStreamWriter(new DigestOutputStream(out, digest), utf16);
+                expander.expand(new InputStreamReader(
+                        new DigestInputStream(Channels.newInputStream(source), sourceDigest), utf16), w);
+                w.flush();
+                return expander.getReferenced();
+            }
+
+            Charset charset = hasUtf8Bom(head) ? Charset.forName("UTF-8") : Charset.defaultCharset();
+            ByteMacroExpander expander = new ByteMacroExpander(variables, charset, maxJobSize);
+            if (source.size() >= STREAM_THRESHOLD) {
+                // never held in memory whole
+                expander.expand(source, out.getChannel(), sourceDigest, digest);
+            } else {
+                ByteBuffer bytes = read(source);
+                sourceDigest.update(bytes.duplicate());
+                expander.expand(bytes, source, out.getChannel(), digest);
+            }
+            return expander.getReferenced();
+        }
+
+        private static boolean hasUtf8Bom(ByteBuffer b) {
+            return b.limit() >= 3 && b.get(0) == (byte) 0xEF && b.get(1) == (byte) 0xBB && b.get(2) == (byte) 0xBF;
+        }
+
+        private static Charset utf16Of(ByteBuffer b) {
+            if (b.limit() < 2)
+                return null;
+            if (b.get(0) == (byte) 0xFF && b.get(1) == (byte) 0xFE)
+                return Charset.forName("UTF-16LE");
+            if (b.get(0) == (byte) 0xFE && b.get(1) == (byte) 0xFF)
+                return Charset.forName("UTF-16BE");
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends JobSourceDescriptor {
+        public String getDisplayName() {
+            return "File job source";
+        }
+    }
+    
+    private static final Logger LOGGER = Logger.getLogger(FileJobSource.class.getName());
+
+}
+
@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Finds the script interpreter of a node. Discovery runs on the node itself
+ * and its result is cached per {@link Computer} until the node reconnects.
+ */
+public class InterpreterResolver {
+  /**
+   * Candidates tried in order when none are configured. Environment
+   * variables of the node are expanded, bare names are looked up in its
+   * <code>PATH</code>.
+   */
+  public static final List<String> DEFAULT_CANDIDATES = Arrays.asList(
+    "${SYSTEMROOT}\\sysnative\\WindowsPowershell\\v1.0\\powershell.exe",
+    "${SYSTEMROOT}\\system32\\WindowsPowershell\\v1.0\\powershell.exe",
+    "pwsh",
+    "osascript");
+
+  /** last hope in case of a missing or unusual installation */
+  public static final String FALLBACK = "powershell.exe";
+
+  private static final Map<Computer, Entry> CACHE = new WeakHashMap<Computer, Entry>();
+
+  private InterpreterResolver() {}
+
+  /**
+   * @return the interpreter to use on the computer, {@link #FALLBACK} if
+   *         none of the candidates exists there
+   */
+  public static String resolve(Computer computer, List<String> candidates)
+  throws IOException, InterruptedException {
+    if (computer == null) return FALLBACK;
+
+    synchronized (CACHE) {
+      Entry e = CACHE.get(computer);
+
+      if (e != null && e.candidates.equals(candidates)) return e.interpreter;
+    }
+
+    VirtualChannel channel = computer.getChannel();
+
+    if (channel == null) return FALLBACK;
+
+    String found = channel.call(new Discovery(new ArrayList<String>(candidates)));
+    String interpreter = (found != null) ? found : FALLBACK;
+
+    LOGGER.fine("Interpreter of " + computer.getName() + ": " + interpreter);
+    synchronized (CACHE) {
+      CACHE.put(computer, new Entry(candidates, interpreter));
+    }
+    return interpreter;
+  }
+
+  public static void invalidate(Computer computer) {
+    synchronized (CACHE) {
+      CACHE.remove(computer);
+    }
+  }
+
+  public static void invalidateAll() {
+    synchronized (CACHE) {
+      CACHE.clear();
+    }
+  }
+
+  /**
+   * Splits the configured candidates, one per line.
+   */
+  public static List<String> parseCandidates(String text) {
+    List<String> candidates = new ArrayList<String>();
+
+    if (text != null) {
+      for (String line : text.split("\\r?\\n")) {
+        line = line.trim();
+        if (line.length() > 0) candidates.add(line);
+      }
+    }
+    return candidates.isEmpty() ? DEFAULT_CANDIDATES : candidates;
+  }
+
+  private static final class Entry {
+    private final List<String> candidates;
+    private final String interpreter;
+
+    Entry(List<String> candidates, String interpreter) {
+      this.candidates  = candidates;
+      this.interpreter = interpreter;
+    }
+  }
+
+  /**
+   * Runs on the node, returns the first candidate found there.
+   */
+  private static final class Discovery implements Callable<String, IOException> {
+    private final List<String> candidates;
+
+    Discovery(List<String> candidates) {
+      this.candidates = candidates;
+    }
+
+    public String call() throws IOException {
+      Map<String, String> env = System.getenv();
+
+      for (String candidate : candidates) {
+        String path = Util.replaceMacro(candidate, env);
+
+        if (path.indexOf('$') >= 0) continue; // variable not defined on this node
+        if (path.indexOf('/') < 0 && path.indexOf('\\') < 0) {
+          String found = which(path, env);
+
+          if (found != null) return found;
+        } else if (new File(path).isFile()) {
+          return path;
+        }
+      }
+      return null;
+    }
+
+    private static String which(String name, Map<String, String> env) {
+      String path = env.get("PATH");
+
+      if (path == null) path = env.get("Path");
+      if (path == null) return null;
+
+      String[] suffixes = File.pathSeparatorChar == ';'
+                          ? new String[] { "", ".exe", ".cmd" }
+                          : new String[] { "" };
+
+      for (String dir : path.split(File.pathSeparator)) {
+        if (dir.length() == 0) continue;
+        for (String suffix : suffixes) {
+          File f = new File(dir, name + suffix);
+
+          if (f.isFile()) return f.getPath();
+        }
+      }
+      return null;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Forgets what was discovered on a node once it goes away or comes back.
+   */
+  @Extension
+  public static class Invalidator extends ComputerListener {
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+      invalidate(c);
+    }
+
+    @Override
+    public void onOffline(Computer c) {
+      invalidate(c);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(InterpreterResolver.class.getName());
+}
@@ -0,0 +1,206 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+/**
+ * Writes, verifies and optionally reads back the job file of a step in a
+ * single remote call to the node running the build.
+ */
+public class JobPreparation implements FilePath.FileCallable<JobPreparation.Result> {
+  /** bytes of the job file sent back for the log at most */
+  static final int MAX_CONTENT = 64 * 1024;
+
+  private final FilePath.FileCallable<String> materializer;
+  private final ScriptCache cache;
+  private final boolean readContent;
+
+  /**
+   * @param materializer writes the job file, returns its path
+   * @param readContent  whether to send the content back, e.g. for logging
+   */
+  public JobPreparation(FilePath.FileCallable<String> materializer, boolean readContent) {
+    this(materializer, null, readContent);
+  }
+
+  /**
+   * @param cache the script cache the materializer may return a file from,
+   *              <code>null</code> if none
+   */
+  public JobPreparation(FilePath.FileCallable<String> materializer, ScriptCache cache, boolean readContent) {
+    this.materializer = materializer;
+    this.cache        = cache;
+    this.readContent  = readContent;
+  }
+
+  /**
+   * Only verifies (and reads) a job file already written by other means.
+   */
+  public static JobPreparation existing(String path, boolean readContent) {
+    return existing(path, null, readContent);
+  }
+
+  public static JobPreparation existing(String path, ScriptCache cache, boolean readContent) {
+    return new JobPreparation(new Existing(path), cache, readContent);
+  }
+
+  /**
+   * Prepares the job file in the workspace. A {@link Cacheable} materializer
+   * is first sent without its content, which follows in a second call only
+   * when the node doesn't have the job yet.
+   */
+  public static Result prepare(FilePath workspace, FilePath.FileCallable<String> materializer,
+                               ScriptCache cache, boolean readContent)
+  throws IOException, InterruptedException {
+    FilePath.FileCallable<String> lookup =
+      materializer instanceof Cacheable ? ((Cacheable)materializer).lookup() : null;
+
+    if (lookup != null) {
+      Result cached = workspace.act(new JobPreparation(lookup, cache, readContent));
+
+      if (cached != null) return cached;
+    }
+    return workspace.act(new JobPreparation(materializer, cache, readContent));
+  }
+
+  /**
+   * @return <code>null</code> if a cache lookup found nothing
+   */
+  public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+    String path = materializer.invoke(workspace, channel);
+
+    if (path == null) return null;
+
+    File jobFile = new File(path);
+    long start   = System.nanoTime();
+
+    if (!jobFile.isFile())
+      throw new IOException("Job file " + jobFile + " doesn't exist on " + workspace);
+
+    // decided here, the controller can't compare paths of the node
+    boolean cached    = cache != null && cache.contains(jobFile);
+    long verifyMillis = millisSince(start);
+    String content    = null;
+
+    start = System.nanoTime();
+    if (readContent) content = readHead(jobFile);
+    return new Result(jobFile.getPath(), jobFile.length(), cached, content, verifyMillis, millisSince(start));
+  }
+
+  /**
+   * Start of the job file for the log, so large scripts never travel to the
+   * controller whole. UTF-8 if the file says so, the node's default otherwise.
+   */
+  static String readHead(File jobFile) throws IOException {
+    byte[] b = new byte[(int)Math.min(jobFile.length(), MAX_CONTENT)];
+    InputStream in = new FileInputStream(jobFile);
+    int n = 0;
+
+    try {
+      for (int r; n < b.length && (r = in.read(b, n, b.length - n)) > 0; ) n += r;
+    } finally {
+      in.close();
+    }
+
+    boolean utf8 = n >= 3 && b[0] == (byte)0xEF && b[1] == (byte)0xBB && b[2] == (byte)0xBF;
+    String head  = utf8 ? new String(b, 3, n - 3, "UTF-8") : new String(b, 0, n);
+
+    return n < jobFile.length() ? head + "..." : head;
+  }
+
+  private static long millisSince(long nanos) {
+    return (System.nanoTime() - nanos) / 1000000;
+  }
+
+  /**
+   * Materializer whose job can be found on the node by a key computed on
+   * the controller, so its content needn't travel to the node on every build.
+   */
+  public interface Cacheable {
+    /**
+     * @return callable returning the path of the job file written from what
+     *         the node has, or <code>null</code> if the node lacks the content;
+     *         <code>null</code> if there is nothing to look up
+     */
+    FilePath.FileCallable<String> lookup();
+  }
+
+  /**
+   * What the controller learns about the job file.
+   */
+  public static final class Result implements Serializable {
+    private final String path;
+    private final long size;
+    private final boolean cached;
+    private final String content;
+    private final long verifyMillis;
+    private final long readMillis;
+
+    Result(String path, long size, boolean cached, String content, long verifyMillis, long readMillis) {
+      this.path         = path;
+      this.size         = size;
+      this.cached       = cached;
+      this.content      = content;
+      this.verifyMillis = verifyMillis;
+      this.readMillis   = readMillis;
+    }
+
+    public File getJobFile() {
+      return new File(path);
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return <code>true</code> if the job file is owned by the script cache
+     *         and must not be deleted after the build
+     */
+    public boolean isCached() {
+      return cached;
+    }
+
+    /**
+     * @return the start of the job file, <code>null</code> unless requested
+     */
+    public String getContent() {
+      return content;
+    }
+
+    /** time spent checking the file on the node */
+    public long getVerifyMillis() {
+      return verifyMillis;
+    }
+
+    /** time spent reading the file on the node */
+    public long getReadMillis() {
+      return readMillis;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final class Existing implements FilePath.FileCallable<String> {
+    private final String path;
+
+    Existing(String path) {
+      this.path = path;
+    }
+
+    public String invoke(File workspace, VirtualChannel channel) {
+      File f = new File(path);
+
+      return f.isAbsolute() ? path : new File(workspace, path).getPath();
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
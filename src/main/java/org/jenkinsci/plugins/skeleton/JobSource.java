@@ -1,50 +1,268 @@
-package org.jenkinsci.plugins.skeleton;
-
-import hudson.DescriptorExtensionList;
-import hudson.FilePath;
-import hudson.model.BuildListener;
-import hudson.model.Describable;
-import hudson.model.AbstractBuild;
-import hudson.model.Descriptor;
-import hudson.model.ParametersAction;
-import java.io.File;
-import java.io.IOException;
-import jenkins.model.Jenkins;
-
-public abstract class JobSource implements Describable<JobSource>{
-  protected static final String DEFAULT_JOB_PREFIX = "jenkins_";
-  protected static final String DEFAULT_JOB_SUFFIX = ".ps1";
-
-  public abstract File createJobFile(AbstractBuild< ? , ? >build,
-                                     BuildListener listener) throws
-  InterruptedException,
-  IOException;
-
-  public FilePath createDefaultJobFile(String jobContent,
-                                       AbstractBuild< ? , ? >build,
-                                       BuildListener listener)
-  throws InterruptedException, IOException {
-    String job          = jobContent;
-    ParametersAction pa = build.getAction(ParametersAction.class );
-
-    // expand build parameters
-    if (pa != null) job = pa.substitute(build, job);
-
-    // expand environment variables
-    jobContent = build.getEnvironment(listener).expand(jobContent);
-
-    // The newlines are not converted to platform specific
-    FilePath path = build.getWorkspace().createTextTempFile(DEFAULT_JOB_PREFIX,
-                                                            DEFAULT_JOB_SUFFIX,
-                                                            jobContent,
-                                                            true);
-    return path;
-  }
-
-  public static DescriptorExtensionList<JobSource,
-                                        JobSource.JobSourceDescriptor>all() {
-    return Jenkins.getInstance().getDescriptorList(JobSource.class );
-  }
-
-  public static abstract class JobSourceDescriptor extends Descriptor<JobSource>{}
-}
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.AbortException;
+import hudson.DescriptorExtensionList;
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Describable;
+import hudson.model.AbstractBuild;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.SlaveComputer;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.skeleton.utils.LayeredEnvironment;
+import org.jenkinsci.plugins.skeleton.utils.ScriptTemplate;
+
+public abstract class JobSource implements Describable<JobSource>{
+  protected static final String DEFAULT_JOB_PREFIX = "jenkins_";
+  protected static final String DEFAULT_JOB_SUFFIX = ".ps1";
+
+  /**
+   * Encoding of job files written from text, independent of the node's
+   * default. The byte order mark keeps Windows PowerShell from reading
+   * them in the ANSI code page.
+   */
+  protected static final String JOB_ENCODING = "UTF-8";
+  static final byte[] UTF8_BOM = { (byte)0xEF, (byte)0xBB, (byte)0xBF };
+
+  public abstract File createJobFile(AbstractBuild< ? , ? >build,
+                                     BuildListener listener) throws
+  InterruptedException,
+  IOException;
+
+  /**
+   * Creates the job file, reusing an already materialized copy from the
+   * node's script cache when possible. Files returned from the cache are
+   * shared between builds and must not be deleted.
+   *
+   * @param cache script cache of the node, <code>null</code> if disabled
+   */
+  public File createJobFile(AbstractBuild< ? , ? >build,
+                            BuildListener listener,
+                            ScriptCache cache) throws
+  InterruptedException,
+  IOException {
+    return createJobFile(build, listener);
+  }
+
+  /**
+   * Work writing the job file on the node, returning its path. Lets the
+   * caller write and verify the job file with a single remote call
+   * (see {@link JobPreparation}).
+   *
+   * @param variables environment snapshot of the step, see {@link #getVariables}
+   * @param cache     script cache of the node, <code>null</code> if disabled
+   * @return <code>null</code> if this source only supports {@link #createJobFile}
+   */
+  public FilePath.FileCallable<String> getMaterializer(Map<String, String> variables, ScriptCache cache)
+  throws IOException {
+    return null;
+  }
+
+  /**
+   * Like {@link #getMaterializer(Map, ScriptCache)}, for sources that
+   * need to know the run or the node it runs on.
+   *
+   * @param workspace where the job file is written, also telling the node
+   */
+  public FilePath.FileCallable<String> getMaterializer(Run< ? , ? >run, FilePath workspace,
+                                                      Map<String, String> variables, ScriptCache cache)
+  throws IOException {
+    return getMaterializer(variables, cache);
+  }
+
+  /**
+   * Creates the job file in the given workspace, for callers that only
+   * have a {@link Run}. Sources without a materializer fall back to
+   * {@link #createJobFile(AbstractBuild, BuildListener, ScriptCache)},
+   * which needs the run to be an {@link AbstractBuild}.
+   */
+  public File createJobFile(Run< ? , ? >run, FilePath workspace, TaskListener listener,
+                            ScriptCache cache) throws
+  InterruptedException,
+  IOException {
+    FilePath.FileCallable<String> materializer =
+      getMaterializer(run, workspace, getVariables(run, listener), cache);
+
+    if (materializer != null) return JobPreparation.prepare(workspace, materializer, cache, false).getJobFile();
+    if (!(run instanceof AbstractBuild))
+      throw new AbortException(getDescriptor().getDisplayName() + " only supports freestyle builds");
+
+    BuildListener buildListener = listener instanceof BuildListener
+                                  ? (BuildListener)listener
+                                  : new StreamBuildListener(listener.getLogger());
+    return createJobFile((AbstractBuild< ? , ? >)run, buildListener, cache);
+  }
+
+  /**
+   * Short stable id of the configured script, used to group statistics
+   * across builds. <code>null</code> when the source can't tell.
+   */
+  public String getScriptId() {
+    return null;
+  }
+
+  /**
+   * Hash of a configuration value, shortened for use in file names.
+   */
+  protected static String scriptIdOf(String configuration) {
+    return configuration == null ? null : ScriptCache.keyOf(configuration).substring(0, 12);
+  }
+
+  public FilePath createDefaultJobFile(String jobContent,
+                                       AbstractBuild< ? , ? >build,
+                                       BuildListener listener)
+  throws InterruptedException, IOException {
+    return createDefaultJobFile(ScriptTemplate.compile(jobContent), build, listener);
+  }
+
+  /**
+   * Renders a compiled job against the build parameters and environment
+   * and writes it into a temporary file in the workspace.
+   */
+  public FilePath createDefaultJobFile(ScriptTemplate job,
+                                       AbstractBuild< ? , ? >build,
+                                       BuildListener listener)
+  throws InterruptedException, IOException {
+    return createDefaultJobFile(job, build, listener, null);
+  }
+
+  public FilePath createDefaultJobFile(ScriptTemplate job,
+                                       AbstractBuild< ? , ? >build,
+                                       BuildListener listener,
+                                       ScriptCache cache)
+  throws InterruptedException, IOException {
+    // expand build parameters and environment variables in one pass
+    String jobContent = job.render(getVariables(build, listener));
+
+    // a cached job takes a single remote call, only a miss sends the content
+    FilePath ws = build.getWorkspace();
+    File jobFile = JobPreparation.prepare(ws, new TextMaterializer(jobContent, cache), cache, false).getJobFile();
+
+    return new FilePath(ws, jobFile.getPath());
+  }
+
+  /**
+   * Environment of the run with the build variables (parameters) on top,
+   * used to expand the job content in a single pass. Runs other than
+   * an {@link AbstractBuild} bring their parameters in the environment.
+   * The layers are shared, not copied, so callers add their own with
+   * {@link LayeredEnvironment#with}. Overrides of <code>PATH</code> are
+   * joined as on the computer the run executes on.
+   */
+  protected LayeredEnvironment getVariables(Run< ? , ? >run,
+                                            TaskListener listener)
+  throws InterruptedException, IOException {
+    LayeredEnvironment variables = LayeredEnvironment.of(run.getEnvironment(listener),
+                                                         pathSeparatorOf(Computer.currentComputer()));
+
+    // put as they are, an empty parameter expands to an empty string
+    if (run instanceof AbstractBuild)
+      variables = variables.with(((AbstractBuild< ? , ? >)run).getBuildVariables());
+    return variables;
+  }
+
+  /**
+   * Path separator of the computer, as far as its agent told; that of the
+   * controller for the controller itself.
+   */
+  static char pathSeparatorOf(Computer computer) {
+    Boolean unix = computer instanceof SlaveComputer ? ((SlaveComputer)computer).isUnix() : null;
+
+    if (unix == null) return File.pathSeparatorChar;
+    return unix ? ':' : ';';
+  }
+
+  /**
+   * The node a workspace is on, <code>null</code> if it went offline.
+   */
+  static Node nodeOf(FilePath workspace) {
+    Jenkins jenkins = Jenkins.getInstance();
+
+    if (!workspace.isRemote()) return jenkins;
+    for (Computer c : jenkins.getComputers()) {
+      if (c.getChannel() == workspace.getChannel()) return c.getNode();
+    }
+    return null;
+  }
+
+  /**
+   * Writes already expanded content as UTF-8 into a temporary job file in
+   * the workspace, or looks it up in the script cache when there is one.
+   * The cache key is computed on the controller, see {@link #lookup}.
+   */
+  protected static final class TextMaterializer implements FilePath.FileCallable<String>, JobPreparation.Cacheable {
+    private final String content;
+    private final String key;
+    private final ScriptCache cache;
+
+    public TextMaterializer(String content, ScriptCache cache) {
+      this(content, cache == null ? null : ScriptCache.keyOf(content), cache);
+    }
+
+    private TextMaterializer(String content, String key, ScriptCache cache) {
+      this.content = content;
+      this.key     = key;
+      this.cache   = cache;
+    }
+
+    /**
+     * Same job without its content, only finds it in the cache.
+     */
+    public FilePath.FileCallable<String> lookup() {
+      return key == null ? null : new TextMaterializer(null, key, cache);
+    }
+
+    public String invoke(File workspace, VirtualChannel channel) throws IOException {
+      if (key != null) {
+        File cached = cache.getLocal(key);
+
+        if (cached != null) return cached.getPath();
+      }
+      if (content == null) return null;
+
+      File target = File.createTempFile(DEFAULT_JOB_PREFIX, DEFAULT_JOB_SUFFIX, workspace);
+      boolean success = false;
+
+      try {
+        // The newlines are not converted to platform specific
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+        Writer w = new OutputStreamWriter(out, JOB_ENCODING);
+
+        try {
+          out.write(UTF8_BOM);
+          w.write(content);
+        } finally {
+          w.close();
+        }
+        success = true;
+      } finally {
+        if (!success) target.delete();
+      }
+      if (key != null) target = cache.storeLocal(key, target);
+      return target.getAbsolutePath();
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  public static DescriptorExtensionList<JobSource,
+                                        JobSource.JobSourceDescriptor>all() {
+    return Jenkins.getInstance().getDescriptorList(JobSource.class );
+  }
+
+  public static abstract class JobSourceDescriptor extends Descriptor<JobSource>{}
+}
@@ -0,0 +1,232 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.AbstractBuild;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ListBoxModel;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.skeleton.utils.ByteMacroExpander;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Runs a script of the {@link ScriptLibrary}, referenced by its id. Nodes
+ * keep the scripts they ran under <code>skeleton-library</code> in their
+ * root, a build only sends the hash and the variables unless the node
+ * lacks the current version (see {@link JobPreparation#prepare}).
+ */
+public class LibraryJobSource extends JobSource {
+  private final String libraryId;
+
+  @DataBoundConstructor
+  public LibraryJobSource(String libraryId) {
+    this.libraryId = libraryId;
+  }
+
+  public String getLibraryId() {
+    return libraryId;
+  }
+
+  @Override
+  public String getScriptId() {
+    return scriptIdOf(libraryId);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public File createJobFile(AbstractBuild< ? , ? >build,
+                            BuildListener listener) throws
+  InterruptedException, IOException {
+    return createJobFile(build, listener, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public File createJobFile(AbstractBuild< ? , ? >build,
+                            BuildListener listener,
+                            ScriptCache cache) throws
+  InterruptedException, IOException {
+    FilePath ws = build.getWorkspace();
+
+    return JobPreparation.prepare(ws, getMaterializer(build, ws, getVariables(build, listener), cache),
+                                  cache, false).getJobFile();
+  }
+
+  /**
+   * Expands the script on the node, pushing it there first if needed.
+   */
+  @Override
+  public FilePath.FileCallable<String> getMaterializer(Run< ? , ? >run, FilePath workspace,
+                                                      Map<String, String> variables, ScriptCache cache)
+  throws IOException {
+    String hash = Skeleton.getLibraryHash(libraryId);
+
+    if (hash == null)
+      throw new IOException("There is no library script " + libraryId);
+
+    Node node     = nodeOf(workspace);
+    FilePath root = node != null ? node.getRootPath() : null;
+
+    if (root == null)
+      throw new IOException("The node of " + workspace + " is offline");
+    // the content is only read when the materializer is sent, see Materializer.writeReplace
+    return new Materializer(hash, root.child(ScriptLibrary.DIRECTORY).getRemote(), null, false,
+                            variables, cache);
+  }
+
+  public DescriptorImpl getDescriptor() {
+    return (DescriptorImpl)Jenkins.getInstance().getDescriptor(getClass());
+  }
+
+  /**
+   * Writes the expanded script as UTF-8 into a temporary job file in the
+   * workspace, moved into the script cache afterwards if there is one.
+   * The compressed script only travels with the materializer when it is
+   * sent to a node, its {@link #lookup} form never carries it.
+   */
+  private static final class Materializer implements FilePath.FileCallable<String>, JobPreparation.Cacheable {
+    private static final Charset UTF8 = Charset.forName(JOB_ENCODING);
+
+    private final String hash;
+    private final String libraryDir;
+    private final byte[] content;
+    private final boolean lookupOnly;
+    private final Map<String, String> variables;
+    private final ScriptCache cache;
+
+    Materializer(String hash, String libraryDir, byte[] content, boolean lookupOnly,
+                 Map<String, String> variables, ScriptCache cache) {
+      this.hash       = hash;
+      this.libraryDir = libraryDir;
+      this.content    = content;
+      this.lookupOnly = lookupOnly;
+      this.variables  = variables;
+      this.cache      = cache;
+    }
+
+    /**
+     * Only uses the copy of the node, the controller is not read.
+     */
+    public FilePath.FileCallable<String> lookup() {
+      return new Materializer(hash, libraryDir, null, true, variables, cache);
+    }
+
+    /**
+     * Reads the script from the library of the controller when sent to a node.
+     */
+    private Object writeReplace() throws IOException {
+      if (lookupOnly || content != null) return this;
+      return new Materializer(hash, libraryDir, ScriptLibrary.get().load(hash), false, variables, cache);
+    }
+
+    public String invoke(File workspace, VirtualChannel channel) throws IOException {
+      File script = new File(libraryDir, hash + ScriptLibrary.COPY_SUFFIX);
+
+      if (!script.isFile()) {
+        if (lookupOnly) return null;
+        // not sent anywhere, thus still on the controller
+        fetch(script, content != null ? content : ScriptLibrary.get().load(hash));
+      }
+
+      MessageDigest digest = ScriptCache.newDigest();
+      File target          = File.createTempFile(DEFAULT_JOB_PREFIX, DEFAULT_JOB_SUFFIX, workspace);
+      FileInputStream in   = new FileInputStream(script);
+      boolean success      = false;
+
+      try {
+        FileChannel source = in.getChannel();
+        ByteBuffer bytes   = ByteBuffer.allocate((int)source.size());
+
+        while (bytes.hasRemaining()) {
+          if (source.read(bytes, bytes.position()) < 0) break;
+        }
+        bytes.flip();
+
+        FileOutputStream out = new FileOutputStream(target);
+
+        try {
+          out.write(UTF8_BOM);
+          digest.update(UTF8_BOM);
+          new ByteMacroExpander(variables, UTF8, 0).expand(bytes, source, out.getChannel(), digest);
+        } finally {
+          out.close();
+        }
+        success = true;
+      } finally {
+        in.close();
+        if (!success) target.delete();
+      }
+      if (cache != null) target = cache.storeLocal(ScriptCache.toHex(digest.digest()), target);
+      return target.getAbsolutePath();
+    }
+
+    /**
+     * Stores the script sent by the controller, verifying its hash.
+     */
+    private void fetch(File script, byte[] compressed) throws IOException {
+      File dir = script.getParentFile();
+
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+        throw new IOException("Failed to create " + dir);
+
+      MessageDigest md = ScriptCache.newDigest();
+      File part        = File.createTempFile(hash, ".part", dir);
+      InputStream in   = new DigestInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed)), md);
+      OutputStream out = new FileOutputStream(part);
+      byte[] buf       = new byte[8192];
+
+      try {
+        for (int n; (n = in.read(buf)) != -1; ) out.write(buf, 0, n);
+      } finally {
+        out.close();
+      }
+      if (!ScriptCache.toHex(md.digest()).equals(hash)) {
+        part.delete();
+        throw new IOException("Library script " + hash + " was damaged in transfer");
+      }
+      if (!part.renameTo(script)) {
+        part.delete();
+        // otherwise fetched concurrently by another build
+        if (!script.isFile()) throw new IOException("Failed to store " + script);
+      }
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Extension
+  public static class DescriptorImpl extends JobSourceDescriptor {
+    public String getDisplayName() {
+      return "Library script source";
+    }
+
+    public ListBoxModel doFillLibraryIdItems() {
+      ListBoxModel items = new ListBoxModel();
+
+      for (ScriptLibrary.Script script : Skeleton.getLibraryScripts())
+        items.add(script.getId());
+      return items;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package org.jenkinsci.plugins.skeleton;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits how many Skeleton scripts run at the same time on a node. Steps
+ * over the limit wait in first come, first served order.
+ * <p>
+ * Limits are configured per label, one <code>label=limit</code> rule per
+ * line; the first rule whose label the node carries applies, <code>*</code>
+ * matches every node. Nodes without a matching rule aren't limited.
+ */
+public class NodeThrottle {
+  /** throttle shared by all Skeleton steps of this controller */
+  public static final NodeThrottle GLOBAL = new NodeThrottle();
+
+  private final Map<String, Queue> queues = new HashMap<String, Queue>();
+
+  /**
+   * Parses the configured rules, ignoring blank lines and lines starting with <code>#</code>.
+   *
+   * @throws IllegalArgumentException on a malformed line
+   */
+  public static List<Rule> parseRules(String text) {
+    List<Rule> rules = new ArrayList<Rule>();
+
+    if (text == null) return rules;
+    for (String line : text.split("\\r?\\n")) {
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#")) continue;
+
+      int eq = line.lastIndexOf('=');
+
+      if (eq <= 0)
+        throw new IllegalArgumentException("Expected label=limit: " + line);
+      try {
+        rules.add(new Rule(line.substring(0, eq).trim(), Integer.parseInt(line.substring(eq + 1).trim())));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Expected label=limit: " + line);
+      }
+    }
+    return Collections.unmodifiableList(rules);
+  }
+
+  /**
+   * @param labels names of the node's labels, including its self label
+   * @return the limit of the first matching rule, <code>0</code> for unlimited
+   */
+  public static int limitFor(List<Rule> rules, Collection<String> labels) {
+    for (Rule rule : rules)
+      if (rule.label.equals("*") || labels.contains(rule.label)) return Math.max(0, rule.limit);
+    return 0;
+  }
+
+  /**
+   * Waits until the node has a free slot and all steps queued earlier got theirs.
+   *
+   * @param limit current limit of the node, <code>0</code> for unlimited
+   */
+  public synchronized Permit acquire(String node, int limit) throws InterruptedException {
+    long start    = System.nanoTime();
+    Queue q       = queues.get(node);
+    Object ticket = new Object();
+
+    if (q == null) queues.put(node, q = new Queue());
+    q.limit = limit; // the latest configuration wins
+    q.waiting.addLast(ticket);
+    try {
+      while (q.waiting.getFirst() != ticket || (q.limit > 0 && q.running >= q.limit)) wait();
+    } catch (InterruptedException e) {
+      q.waiting.remove(ticket);
+      cleanup(node, q);
+      notifyAll();
+      throw e;
+    }
+    q.waiting.removeFirst();
+    q.running++;
+    notifyAll(); // the next in line may fit as well
+    return new Permit(node, StepMetrics.since(start));
+  }
+
+  private synchronized void release(String node) {
+    Queue q = queues.get(node);
+
+    if (q == null) return;
+    q.running--;
+    cleanup(node, q);
+    notifyAll();
+  }
+
+  private void cleanup(String node, Queue q) {
+    if (q.running <= 0 && q.waiting.isEmpty()) queues.remove(node);
+  }
+
+  public synchronized int getRunning(String node) {
+    Queue q = queues.get(node);
+
+    return q == null ? 0 : q.running;
+  }
+
+  public synchronized int getWaiting(String node) {
+    Queue q = queues.get(node);
+
+    return q == null ? 0 : q.waiting.size();
+  }
+
+  private static final class Queue {
+    private final LinkedList<Object> waiting = new LinkedList<Object>();
+    private int running;
+    private int limit;
+  }
+
+  public static final class Rule {
+    private final String label;
+    private final int limit;
+
+    public Rule(String label, int limit) {
+      this.label = label;
+      this.limit = limit;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public int getLimit() {
+      return limit;
+    }
+  }
+
+  /**
+   * A slot on a node, to be released once the script finished.
+   */
+  public final class Permit {
+    private final String node;
+    private final long waitMillis;
+    private boolean released;
+
+    Permit(String node, long waitMillis) {
+      this.node       = node;
+      this.waitMillis = waitMillis;
+    }
+
+    /** time spent in the queue */
+    public long getWaitMillis() {
+      return waitMillis;
+    }
+
+    public void release() {
+      synchronized (NodeThrottle.this) {
+        if (released) return;
+        released = true;
+      }
+      NodeThrottle.this.release(node);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.skeleton.utils.ConsoleLogger;
+import org.jenkinsci.plugins.skeleton.utils.ScriptOutputAnnotator;
+import org.jenkinsci.plugins.skeleton.utils.Severity;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Runs several independent scripts of one build step concurrently on the
+ * node. The output of every script is prefixed with its name, the step
+ * fails if any of the scripts fails. Each script waits for its own slot
+ * of the per-node limit, as a {@link Skeleton} step does.
+ */
+public class ParallelSkeleton extends Builder {
+private final List<JobSource> jobSources;
+private final String jobGlob;
+private final int parallelism;
+
+@DataBoundConstructor
+public ParallelSkeleton(List<JobSource> jobSources,
+			String jobGlob,
+			int parallelism)
+{
+	this.jobSources  = jobSources != null ? new ArrayList<JobSource>(jobSources)
+			   : Collections.<JobSource>emptyList();
+	this.jobGlob     = Util.fixEmptyAndTrim(jobGlob);
+	this.parallelism = parallelism;
+}
+
+public List<JobSource> getJobSources()
+{
+	return Collections.unmodifiableList(jobSources);
+}
+
+/**
+ * Ant-style pattern of script files in the workspace, each one run as a {@link FileJobSource}.
+ */
+public String getJobGlob()
+{
+	return jobGlob;
+}
+
+public int getParallelism()
+{
+	return parallelism;
+}
+
+private void log(ConsoleLogger console, String message)
+{
+	console.logAnnot(message);
+}
+
+/**
+ * Configured sources followed by the scripts matching the glob.
+ */
+protected List<JobSource> collectJobSources(AbstractBuild<?, ?>build) throws IOException, InterruptedException
+{
+	List<JobSource> sources = new ArrayList<JobSource>(jobSources);
+
+	if (jobGlob != null) {
+		FilePath ws = build.getWorkspace();
+
+		for (FilePath script : ws.list(jobGlob))
+			sources.add(new FileJobSource(script.getRemote().substring(ws.getRemote().length() + 1)));
+	}
+	return sources;
+}
+
+/**
+ * Writes and verifies a job file with one remote call when the source allows it.
+ */
+private static File createJobFile(AbstractBuild<?, ?>build, BuildListener listener, JobSource source,
+				  Map<String, String> variables) throws IOException, InterruptedException
+{
+	FilePath ws = build.getWorkspace();
+	FilePath.FileCallable<String> materializer = source.getMaterializer(build, ws, variables, null);
+
+	if (materializer == null)
+		return source.createJobFile(build, listener);
+	return ws.act(new JobPreparation(materializer, false)).getJobFile();
+}
+
+private static String nameOf(JobSource source, int index)
+{
+	if (source instanceof FileJobSource)
+		return ((FileJobSource) source).getJobPath();
+	return "script " + (index + 1);
+}
+
+@Override
+public boolean perform(final AbstractBuild<?, ?>build, final Launcher launcher, final BuildListener listener)
+throws InterruptedException
+{
+	final ConsoleLogger console = new ConsoleLogger(listener);
+	List<JobSource> sources;
+	final List<File> jobFiles = new ArrayList<File>();
+	final List<String> names  = new ArrayList<String>();
+	final Map<String, String> envVars;
+	final String interpreter;
+	final Node node = build.getBuiltOn();
+	final Skeleton.Settings settings = getDescriptor().getSkeletonDescriptor().getSettings();
+
+	try {
+		sources = collectJobSources(build);
+		if (sources.isEmpty()) {
+			listener.fatalError("There is no script configured for this builder");
+			return false;
+		}
+		// one environment and one interpreter lookup shared by all scripts
+		envVars = sources.get(0).getVariables(build, listener);
+		for (int i = 0; i < sources.size(); i++) {
+			jobFiles.add(createJobFile(build, listener, sources.get(i), envVars));
+			names.add(nameOf(sources.get(i), i));
+		}
+		interpreter = InterpreterResolver.resolve(node != null ? node.toComputer() : null,
+							  settings.getInterpreterCandidates());
+	} catch (IOException e) {
+		e.printStackTrace(listener.fatalError("Unable to prepare scripts"));
+		deleteJobFiles(build, jobFiles, listener);
+		return false;
+	}
+
+	int threads = Math.max(1, Math.min(parallelism > 0 ? parallelism : DEFAULT_PARALLELISM, jobFiles.size()));
+	log(console, "[Skeleton] INFO: Running " + jobFiles.size() + " scripts, " + threads + " at a time");
+
+	ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Skeleton " + build.getFullDisplayName());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+	int failed = 0;
+
+	try {
+		for (int i = 0; i < jobFiles.size(); i++) {
+			final String name   = names.get(i);
+			final File jobFile  = jobFiles.get(i);
+			results.add(executor.submit(new java.util.concurrent.Callable<Integer>() {
+				public Integer call() throws Exception {
+					String prefix = "[" + name + "] ";
+					ScriptOutputAnnotator stdout = new ScriptOutputAnnotator(console.getAnnotator(), null, prefix);
+					ScriptOutputAnnotator stderr = new ScriptOutputAnnotator(console.getAnnotator(), Severity.ERROR, prefix);
+					// each interpreter counts against the limit of the node
+					NodeThrottle.Permit permit = Skeleton.acquireSlot(node, settings, console);
+					try {
+						return launcher.launch().cmds(interpreter, jobFile.getPath()).envs(envVars)
+						       .stdout(stdout).stderr(stderr).pwd(build.getWorkspace()).join();
+					} finally {
+						permit.release();
+						stdout.finish();
+						stderr.finish();
+					}
+				}
+			}));
+		}
+		for (int i = 0; i < results.size(); i++) {
+			int result;
+			try {
+				result = results.get(i).get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace(listener.error("Script " + names.get(i) + " failed to run"));
+				result = -1;
+			}
+			if (result != 0) failed++;
+			log(console, "[Skeleton] " + (result == 0 ? "INFO" : "ERROR") + ": Script "
+			    + names.get(i) + " exited with " + result);
+		}
+	} finally {
+		// on abort this interrupts the remaining launches, which kills their processes
+		executor.shutdownNow();
+		deleteJobFiles(build, jobFiles, listener);
+	}
+
+	if (failed > 0)
+		log(console, "[Skeleton] ERROR: " + failed + " of " + jobFiles.size() + " scripts failed");
+	return failed == 0;
+}
+
+private void deleteJobFiles(AbstractBuild<?, ?>build, List<File> jobFiles, BuildListener listener)
+{
+	for (File jobFile : jobFiles) {
+		try {
+			new FilePath(build.getWorkspace(), jobFile.getPath()).delete();
+		} catch (Exception e) {
+			e.printStackTrace(listener.fatalError("Unable to delete script file " + jobFile.getName()));
+		}
+	}
+}
+
+@Override
+public DescriptorImpl getDescriptor()
+{
+	return (DescriptorImpl) super.getDescriptor();
+}
+
+/**
+ * Scripts run at the same time when no parallelism is configured.
+ */
+public static final int DEFAULT_PARALLELISM = 4;
+
+@Extension
+public static final class DescriptorImpl extends BuildStepDescriptor<Builder>{
+@Override
+public boolean isApplicable(
+	@SuppressWarnings("rawtypes") Class< ? extends AbstractProject>aClass)
+{
+	return true;
+}
+
+public String getDisplayName()
+{
+	return "Execute Skeleton tasks in parallel";
+}
+
+/**
+ * Global settings, such as the interpreter candidates, are shared with {@link Skeleton}.
+ */
+public Skeleton.DescriptorImpl getSkeletonDescriptor()
+{
+	return Jenkins.getInstance().getDescriptorByType(Skeleton.DescriptorImpl.class);
+}
+}
+}
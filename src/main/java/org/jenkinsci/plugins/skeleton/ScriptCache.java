@@ -0,0 +1,238 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Content-addressed store of expanded job files on a node. Files are named
+ * after the SHA-1 of their content, the least recently used ones are
+ * evicted once the directory grows beyond the configured size. Files used
+ * within {@link #IN_USE_MILLIS} are kept, a build may be about to run them.
+ * All file operations happen on the node owning the cache directory.
+ */
+public class ScriptCache implements Serializable {
+  /**
+   * Time after its last use an entry may still be run, e.g. by a build
+   * that prepared it and is launching it, or an assembled script being
+   * expanded. The cache can exceed its size for that long.
+   */
+  static final long IN_USE_MILLIS = 10 * 60 * 1000L;
+
+  private final FilePath root;
+  private final long maxSize;
+  private final String suffix;
+
+  public ScriptCache(FilePath root, long maxSize, String suffix) {
+    this.root    = root;
+    this.maxSize = maxSize;
+    this.suffix  = suffix;
+  }
+
+  public FilePath getRoot() {
+    return root;
+  }
+
+  /**
+   * Must be called on the node owning the cache, where the paths can be
+   * resolved with the node's own separators and case rules.
+   *
+   * @return <code>true</code> if the file is owned by this cache and must
+   *         not be deleted after the build
+   */
+  boolean contains(File file) {
+    File parent = file.getAbsoluteFile().getParentFile();
+
+    if (parent == null) return false;
+    try {
+      return parent.getCanonicalFile().equals(new File(root.getRemote()).getCanonicalFile());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Looks up a cached job file and marks it as recently used.
+   *
+   * @return the cached file or <code>null</code>
+   */
+  public FilePath get(final String key) throws IOException, InterruptedException {
+    String path = root.act(new FilePath.FileCallable<String>() {
+      public String invoke(File dir, VirtualChannel channel) {
+        File f = getLocal(key);
+
+        return f == null ? null : f.getPath();
+      }
+
+      private static final long serialVersionUID = 1L;
+    });
+
+    return path == null ? null : new FilePath(root, path);
+  }
+
+  /**
+   * Local variant of {@link #get(String)}. Must be called on the node
+   * owning the cache.
+   */
+  File getLocal(String key) {
+    File f = new File(root.getRemote(), key + suffix);
+
+    if (!f.isFile()) return null;
+    f.setLastModified(System.currentTimeMillis());
+    return f;
+  }
+
+  /**
+   * Writes the content under its key as UTF-8, evicting old entries if needed.
+   */
+  public FilePath put(final String key, final String content) throws IOException, InterruptedException {
+    String path = root.act(new FilePath.FileCallable<String>() {
+      public String invoke(File dir, VirtualChannel channel) throws IOException {
+        mkdirs(dir);
+
+        File tmp = File.createTempFile(key, ".part", dir);
+        OutputStream out = new FileOutputStream(tmp);
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, JobSource.JOB_ENCODING));
+
+        try {
+          out.write(JobSource.UTF8_BOM);
+          w.write(content);
+        } finally {
+          w.close();
+        }
+        return store(dir, key, tmp).getPath();
+      }
+
+      private static final long serialVersionUID = 1L;
+    });
+
+    return new FilePath(root, path);
+  }
+
+  /**
+   * Moves a job file already written on the node into the cache. Must be
+   * called on the node owning the cache.
+   *
+   * @return the cached file replacing <code>tmp</code>
+   */
+  File storeLocal(String key, File tmp) throws IOException {
+    File dir = new File(root.getRemote());
+
+    mkdirs(dir);
+    return store(dir, key, tmp);
+  }
+
+  private File store(File dir, String key, File tmp) throws IOException {
+    File target = new File(dir, key + suffix);
+
+    if (!tmp.renameTo(target)) {
+      if (!target.isFile()) {
+        // the job file was written on another file system, copy it over
+        File part = File.createTempFile(key, ".part", dir);
+        OutputStream out = new FileOutputStream(part);
+
+        try {
+          IOUtils.copy(tmp, out);
+        } finally {
+          out.close();
+        }
+        if (!part.renameTo(target)) part.delete();
+        if (!target.isFile())
+          throw new IOException("Failed to store " + tmp + " as " + target);
+      }
+      // otherwise the same content was stored concurrently
+      tmp.delete();
+      target.setLastModified(System.currentTimeMillis());
+    }
+    evict(dir, target);
+    return target;
+  }
+
+  private void evict(File dir, File keep) {
+    File[] files = dir.listFiles(new FileFilter() {
+      public boolean accept(File f) {
+        return f.isFile() && f.getName().endsWith(suffix);
+      }
+    });
+
+    if (files == null) return;
+
+    long total = 0;
+
+    for (File f : files) total += f.length();
+    if (total <= maxSize) return;
+
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long d = a.lastModified() - b.lastModified();
+
+        return d < 0 ? -1 : (d > 0 ? 1 : 0);
+      }
+    });
+
+    long inUse = System.currentTimeMillis() - IN_USE_MILLIS;
+
+    // oldest first, so the ones in use come last
+    for (File f : files) {
+      if (total <= maxSize || f.lastModified() >= inUse) break;
+      if (f.equals(keep)) continue;
+
+      long len = f.length();
+
+      if (f.delete()) total -= len;
+    }
+  }
+
+  private static void mkdirs(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Failed to create script cache directory " + dir);
+  }
+
+  /**
+   * Cache key of an expanded job: SHA-1 of its UTF-8 encoding.
+   */
+  public static String keyOf(String content) {
+    MessageDigest md = newDigest();
+
+    try {
+      md.update(content.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return toHex(md.digest());
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static String toHex(byte[] digest) {
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,451 @@
+package org.jenkinsci.plugins.skeleton;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inlines the helper scripts a workspace script includes, so the job file
+ * is self-contained and the interpreter does not read them one by one.
+ * Recognized are <code>#include "path"</code> lines, resolved against the
+ * including script, and dot-source lines with a literal path such as
+ * <code>. .\helpers.ps1</code>, resolved against the workspace the script
+ * runs in, or <code>. $PSScriptRoot\helpers.ps1</code>, resolved against
+ * the including script. Includes are resolved recursively, every script
+ * is inlined once and cycles are rejected. A dot-source line whose script
+ * does not exist is left to the interpreter, an <code>#include</code> of a
+ * missing script fails.
+ * <p>
+ * An inlined script is wrapped as <code>. { ... }</code>, so it keeps its
+ * own <code>param</code> block and a <code>return</code> in it only ends
+ * the script itself, as when it was dot-sourced. Scripts that depend on
+ * being a file of their own, with <code>using</code> or
+ * <code>#requires</code> statements or by referring to their location
+ * through <code>$PSScriptRoot</code> or <code>$PSCommandPath</code>, are
+ * not inlined: their dot-source line is left to the interpreter, an
+ * <code>#include</code> of them fails.
+ * <p>
+ * With a script cache, the assembled script is stored in the cache and
+ * the files it was assembled from are recorded next to it. They are
+ * checked like a {@link SourceFingerprint}: size and modification time
+ * first, the content digest only when a file was touched. Runs on the node.
+ */
+final class ScriptIncludes {
+  static final String DIRECTORY = "includes";
+
+  private static final Pattern INCLUDE =
+    Pattern.compile("\\s*#include\\s+(?:\"([^\"]+)\"|'([^']+)'|(\\S+))\\s*");
+  private static final Pattern DOT_SOURCE =
+    Pattern.compile("\\s*\\.\\s+(?:\"([^\"]+)\"|'([^']+)'|([^\\s\"';|&(){}]+))\\s*(?:#.*)?");
+  private static final String SCRIPT_ROOT = "$PSScriptRoot";
+  /** what only works at the top of a script file, or refers to the file */
+  private static final Pattern FILE_BOUND =
+    Pattern.compile("(?i)^\\s*(?:using\\s|#requires\\s)|\\$(?:PSScriptRoot|PSCommandPath)\\b");
+
+  /** the source of the script, returned when it includes nothing */
+  private static final Assembly UNCHANGED = new Assembly(null, null, false);
+
+  private final File workspace;
+  private final long maxSize;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final List<File> chain = new ArrayList<File>();
+  private final Set<File> inlined = new HashSet<File>();
+
+  private ScriptIncludes(File workspace, long maxSize) {
+    this.workspace = workspace;
+    this.maxSize   = maxSize;
+  }
+
+  /**
+   * Assembles the script with everything it includes.
+   *
+   * @param cache   script cache of the node, <code>null</code> to assemble
+   *                into a temporary file in the workspace
+   * @param jobName identifies the record of the script together with its path
+   * @return <code>null</code> if the script includes nothing
+   */
+  static Assembly assemble(File source, File workspace, long maxSize, ScriptCache cache,
+                           String jobName) throws IOException {
+    File record = null;
+
+    if (cache != null) {
+      String id = ScriptCache.keyOf((jobName != null ? jobName : "") + '\n' + source.getAbsolutePath());
+
+      record = new File(new File(cache.getRoot().getRemote(), DIRECTORY), id + ".properties");
+
+      Assembly reused = reuse(record, cache);
+
+      if (reused != null) return reused == UNCHANGED ? null : reused;
+    }
+
+    ScriptIncludes includes = new ScriptIncludes(workspace, maxSize);
+    StringBuilder text = new StringBuilder();
+    File root = source.getCanonicalFile();
+
+    includes.inlined.add(root);
+    includes.include(root, decode(includes.read(root)), text);
+
+    Assembly assembly = UNCHANGED;
+
+    if (includes.inlined.size() > 1) {
+      byte[] content = text.toString().getBytes(JobSource.JOB_ENCODING);
+
+      if (content.length + JobSource.UTF8_BOM.length > maxSize)
+        throw new IOException("Job file " + source + " has more than " + maxSize
+                              + " bytes with its includes");
+      assembly = includes.write(content, cache);
+    }
+    if (record != null) includes.save(record, assembly.getDigest());
+    return assembly == UNCHANGED ? null : assembly;
+  }
+
+  private void include(File file, String text, StringBuilder out) throws IOException {
+    int start = 0;
+
+    chain.add(file);
+    while (start < text.length()) {
+      int end = text.indexOf('\n', start);
+
+      end = end < 0 ? text.length() : end + 1;
+
+      String line = text.substring(start, end);
+      File included = resolve(file, line);
+
+      if (included == null) {
+        out.append(keep(file, line));
+      } else if (chain.contains(included)) {
+        throw new IOException("Include cycle: " + cycle(included));
+      } else if (!inlined.contains(included)) {
+        String body  = decode(read(included));
+        String bound = fileBound(body);
+
+        if (bound == null) {
+          String eol = line.endsWith("\r\n") ? "\r\n" : "\n";
+
+          inlined.add(included);
+          out.append(". {").append(eol);
+          include(included, body, out);
+          if (out.charAt(out.length() - 1) != '\n') out.append(eol);
+          out.append('}').append(eol);
+        } else if (INCLUDE.matcher(line).matches()) {
+          throw new IOException("Script " + included + " included by " + file
+                                + " can't be inlined, it contains: " + bound.trim());
+        } else {
+          // dot-sourced from its own file by the interpreter
+          out.append(keep(file, line));
+        }
+      }
+      // characters are at least one byte, fail before collecting too many
+      if (out.length() > maxSize)
+        throw new IOException("Job file " + chain.get(0) + " has more than " + maxSize
+                              + " bytes with its includes");
+      start = end;
+    }
+    chain.remove(chain.size() - 1);
+  }
+
+  /**
+   * @return the canonical script the line includes, <code>null</code> if
+   *         the line is left as it is
+   */
+  private File resolve(File including, String line) throws IOException {
+    int end = line.length();
+
+    while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) end--;
+    line = line.substring(0, end);
+
+    Matcher m = INCLUDE.matcher(line);
+
+    if (m.matches()) {
+      File f = fileOf(including.getParentFile(), pathOf(m));
+
+      if (!f.isFile())
+        throw new IOException("Script " + f + " included by " + including + " doesn't exist");
+      return f.getCanonicalFile();
+    }
+
+    m = DOT_SOURCE.matcher(line);
+    if (!m.matches()) return null;
+
+    String path = pathOf(m);
+    File base   = workspace;
+
+    if (path.regionMatches(true, 0, SCRIPT_ROOT, 0, SCRIPT_ROOT.length())) {
+      base = including.getParentFile();
+      path = path.substring(SCRIPT_ROOT.length()).replaceFirst("^[\\\\/]+", "");
+    }
+    // computed when the script runs
+    if (path.length() == 0 || path.indexOf('$') >= 0) return null;
+
+    File f = fileOf(base, path);
+
+    if (!f.isFile()) {
+      // inlined as soon as it shows up
+      entries.add(new Entry(f.getAbsolutePath(), -1, 0, ""));
+      return null;
+    }
+    return f.getCanonicalFile();
+  }
+
+  /**
+   * A dot-source line of an inlined script that is left to the interpreter
+   * loses the location of that script: a path relative to
+   * <code>$PSScriptRoot</code> is made absolute.
+   */
+  private String keep(File file, String line) {
+    if (file == chain.get(0)) return line;
+
+    Matcher m = DOT_SOURCE.matcher(line.trim());
+
+    if (!m.matches()) return line;
+
+    String path = pathOf(m);
+
+    if (!path.regionMatches(true, 0, SCRIPT_ROOT, 0, SCRIPT_ROOT.length())) return line;
+    path = path.substring(SCRIPT_ROOT.length()).replaceFirst("^[\\\\/]+", "");
+
+    String eol = line.endsWith("\r\n") ? "\r\n" : line.endsWith("\n") ? "\n" : "";
+
+    return ". '" + fileOf(file.getParentFile(), path).getAbsolutePath().replace("'", "''") + "'" + eol;
+  }
+
+  /**
+   * @return the first line that needs the script to be a file of its own,
+   *         <code>null</code> if it can be inlined
+   */
+  private static String fileBound(String text) {
+    for (String line : text.split("\n")) {
+      // includes are resolved, their $PSScriptRoot as well
+      if (INCLUDE.matcher(line).matches() || DOT_SOURCE.matcher(line.trim()).matches()) continue;
+      if (FILE_BOUND.matcher(line).find()) return line;
+    }
+    return null;
+  }
+
+  private static String pathOf(Matcher m) {
+    for (int i = 1; i <= m.groupCount(); i++) {
+      if (m.group(i) != null) return m.group(i);
+    }
+    return "";
+  }
+
+  private static File fileOf(File base, String path) {
+    File f = new File(path.replace('\\', File.separatorChar).replace('/', File.separatorChar));
+
+    return f.isAbsolute() ? f : new File(base, f.getPath());
+  }
+
+  private String cycle(File included) {
+    StringBuilder sb = new StringBuilder();
+
+    for (File f : chain.subList(chain.indexOf(included), chain.size())) sb.append(f).append(" -> ");
+    return sb.append(included).toString();
+  }
+
+  private byte[] read(File file) throws IOException {
+    // taken before reading, a change while reading is detected next time
+    long lastModified = file.lastModified();
+    long size         = file.length();
+
+    if (size > maxSize)
+      throw new IOException("Script " + file + " has " + size + " bytes, maximum allowed size is " + maxSize);
+
+    byte[] bytes   = new byte[(int)size];
+    InputStream in = new FileInputStream(file);
+
+    try {
+      new DataInputStream(in).readFully(bytes);
+    } finally {
+      in.close();
+    }
+
+    MessageDigest md = ScriptCache.newDigest();
+
+    md.update(bytes);
+    entries.add(new Entry(file.getPath(), size, lastModified, ScriptCache.toHex(md.digest())));
+    return bytes;
+  }
+
+  /**
+   * Scripts are read in the encoding their byte order mark declares, the
+   * default encoding of the node otherwise.
+   */
+  private static String decode(byte[] b) {
+    if (b.length >= 3 && b[0] == (byte)0xEF && b[1] == (byte)0xBB && b[2] == (byte)0xBF)
+      return new String(b, 3, b.length - 3, Charset.forName("UTF-8"));
+    if (b.length >= 2 && b[0] == (byte)0xFF && b[1] == (byte)0xFE)
+      return new String(b, 2, b.length - 2, Charset.forName("UTF-16LE"));
+    if (b.length >= 2 && b[0] == (byte)0xFE && b[1] == (byte)0xFF)
+      return new String(b, 2, b.length - 2, Charset.forName("UTF-16BE"));
+    return new String(b, Charset.defaultCharset());
+  }
+
+  /**
+   * Writes the assembled script as UTF-8 with a byte order mark.
+   */
+  private Assembly write(byte[] content, ScriptCache cache) throws IOException {
+    MessageDigest md   = ScriptCache.newDigest();
+    File tmp           = File.createTempFile(JobSource.DEFAULT_JOB_PREFIX, JobSource.DEFAULT_JOB_SUFFIX, workspace);
+    OutputStream out   = new FileOutputStream(tmp);
+    boolean success    = false;
+
+    try {
+      out.write(JobSource.UTF8_BOM);
+      out.write(content);
+      success = true;
+    } finally {
+      out.close();
+      if (!success) tmp.delete();
+    }
+    md.update(JobSource.UTF8_BOM);
+    md.update(content);
+
+    String key = ScriptCache.toHex(md.digest());
+
+    if (cache == null) return new Assembly(tmp, key, true);
+    return new Assembly(cache.storeLocal(key, tmp), key, false);
+  }
+
+  private void save(File record, String assembled) throws IOException {
+    Properties p = new Properties();
+
+    p.setProperty("assembled", assembled != null ? assembled : "");
+    p.setProperty("files", Integer.toString(entries.size()));
+    for (int i = 0; i < entries.size(); i++) {
+      Entry e = entries.get(i);
+
+      p.setProperty("file." + i, e.path);
+      p.setProperty("size." + i, Long.toString(e.size));
+      p.setProperty("lastModified." + i, Long.toString(e.lastModified));
+      p.setProperty("digest." + i, e.digest);
+    }
+    SourceFingerprint.store(record, p);
+  }
+
+  /**
+   * @return the recorded assembly if none of its files changed, {@link #UNCHANGED}
+   *         if the unchanged script includes nothing, otherwise <code>null</code>
+   */
+  private static Assembly reuse(File record, ScriptCache cache) {
+    if (!record.isFile()) return null;
+
+    Properties p = new Properties();
+
+    try {
+      InputStream in = new FileInputStream(record);
+
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+
+      int files       = Integer.parseInt(p.getProperty("files"));
+      boolean touched = false;
+
+      for (int i = 0; i < files; i++) {
+        File f    = new File(p.getProperty("file." + i));
+        long size = Long.parseLong(p.getProperty("size." + i));
+
+        if (size < 0) {
+          if (f.exists()) return null;
+          continue;
+        }
+        if (!f.isFile() || f.length() != size) return null;
+
+        String lastModified = Long.toString(f.lastModified());
+
+        if (!lastModified.equals(p.getProperty("lastModified." + i))) {
+          if (!SourceFingerprint.digestOf(f).equals(p.getProperty("digest." + i))) return null;
+          // same content, remember the new time to keep the next check cheap
+          p.setProperty("lastModified." + i, lastModified);
+          touched = true;
+        }
+      }
+
+      String assembled = p.getProperty("assembled", "");
+      Assembly assembly;
+
+      if (assembled.length() == 0) {
+        assembly = UNCHANGED;
+      } else {
+        File file = cache.getLocal(assembled);
+
+        // evicted from the cache
+        if (file == null) return null;
+        assembly = new Assembly(file, assembled, false);
+      }
+      if (touched) SourceFingerprint.store(record, p);
+      return assembly;
+    } catch (IOException e) {
+      return null; // unreadable, assemble again
+    } catch (RuntimeException e) {
+      return null; // damaged, assemble again
+    }
+  }
+
+  /**
+   * A file read while assembling, or a dot-sourced script that did not
+   * exist with a size of <code>-1</code>.
+   */
+  private static final class Entry {
+    final String path;
+    final long size;
+    final long lastModified;
+    final String digest;
+
+    Entry(String path, long size, long lastModified, String digest) {
+      this.path         = path;
+      this.size         = size;
+      this.lastModified = lastModified;
+      this.digest       = digest;
+    }
+  }
+
+  /**
+   * Script assembled from a source and its includes.
+   */
+  static final class Assembly {
+    private final File file;
+    private final String digest;
+    private final boolean temporary;
+
+    Assembly(File file, String digest, boolean temporary) {
+      this.file      = file;
+      this.digest    = digest;
+      this.temporary = temporary;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    /**
+     * Hex SHA-1 of the content, also its key in the script cache.
+     */
+    String getDigest() {
+      return digest;
+    }
+
+    /**
+     * @return <code>true</code> if the file was written to the workspace
+     *         and must be deleted once it was expanded
+     */
+    boolean isTemporary() {
+      return temporary;
+    }
+  }
+}
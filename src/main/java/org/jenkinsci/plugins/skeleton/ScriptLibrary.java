@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Scripts registered once in the global configuration and shared by jobs
+ * through {@link LibraryJobSource}. The content is kept out of the
+ * configuration files, gzipped under <code>skeleton-library</code> in the
+ * Jenkins home and named by the SHA-1 of the script, so a configuration
+ * only carries ids and hashes.
+ */
+public final class ScriptLibrary {
+  static final String DIRECTORY = "skeleton-library";
+  static final String SUFFIX    = ".ps1.gz";
+
+  /** suffix of the uncompressed copies on the nodes */
+  static final String COPY_SUFFIX = ".ps1";
+
+  private final File dir;
+
+  ScriptLibrary(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * The library of this controller.
+   */
+  public static ScriptLibrary get() {
+    return new ScriptLibrary(new File(Jenkins.getInstance().getRootDir(), DIRECTORY));
+  }
+
+  /**
+   * Stores the script with Windows line endings, as inline scripts are run.
+   *
+   * @return the hash identifying the content
+   */
+  public String store(String content) throws IOException {
+    byte[] b    = StringJobSource.toWindowsLineEndings(content).getBytes(JobSource.JOB_ENCODING);
+    String hash = ScriptCache.toHex(ScriptCache.newDigest().digest(b));
+    File target = fileOf(hash);
+
+    if (target.isFile()) return hash;
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Failed to create " + dir);
+
+    File part        = File.createTempFile(hash, ".part", dir);
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(part));
+
+    try {
+      out.write(b);
+    } finally {
+      out.close();
+    }
+    if (!part.renameTo(target)) {
+      part.delete();
+      if (!target.isFile()) throw new IOException("Failed to store " + target);
+    }
+    return hash;
+  }
+
+  /**
+   * @return the compressed content, to be closed by the caller
+   */
+  public InputStream open(String hash) throws IOException {
+    return new FileInputStream(fileOf(hash));
+  }
+
+  /**
+   * @return the compressed content, as sent to the nodes
+   */
+  public byte[] load(String hash) throws IOException {
+    InputStream in = open(hash);
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+
+    try {
+      IOUtils.copy(in, b);
+    } finally {
+      in.close();
+    }
+    return b.toByteArray();
+  }
+
+  /**
+   * @return the script, e.g. for editing, <code>null</code> if it isn't stored
+   */
+  public String read(String hash) throws IOException {
+    if (!fileOf(hash).isFile()) return null;
+
+    InputStream in = new GZIPInputStream(open(hash));
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+
+    try {
+      IOUtils.copy(in, b);
+    } finally {
+      in.close();
+    }
+    return b.toString(JobSource.JOB_ENCODING);
+  }
+
+  /**
+   * Deletes the stored scripts no longer registered.
+   */
+  public void retain(Collection<String> hashes) {
+    File[] files = dir.listFiles();
+
+    if (files == null) return;
+    for (File f : files) {
+      String name = f.getName();
+
+      if (name.endsWith(SUFFIX) && !hashes.contains(name.substring(0, name.length() - SUFFIX.length())))
+        f.delete();
+    }
+  }
+
+  /**
+   * Deletes the copies of scripts no longer registered from the nodes, in
+   * the background. Nodes that are offline keep theirs until the next change.
+   */
+  public static void retainOnNodes(Collection<String> hashes) {
+    final Set<String> keep = new HashSet<String>(hashes);
+    final List<Node> nodes = new ArrayList<Node>();
+    Jenkins jenkins        = Jenkins.getInstance();
+
+    nodes.add(jenkins);
+    nodes.addAll(jenkins.getNodes());
+    Computer.threadPoolForRemoting.submit(new Runnable() {
+      public void run() {
+        for (Node node : nodes) {
+          FilePath root = node.getRootPath();
+
+          if (root == null) continue;
+          try {
+            root.child(DIRECTORY).act(new RetainCopies(keep));
+          } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to delete old library scripts of " + node.getNodeName(), e);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Deletes the copies of a node not in <code>keep</code>.
+   */
+  static final class RetainCopies implements FilePath.FileCallable<Void> {
+    private final Set<String> keep;
+
+    RetainCopies(Set<String> keep) {
+      this.keep = keep;
+    }
+
+    public Void invoke(File dir, VirtualChannel channel) {
+      File[] files = dir.listFiles();
+
+      if (files == null) return null;
+      for (File f : files) {
+        String name = f.getName();
+
+        if (name.endsWith(COPY_SUFFIX) && !keep.contains(name.substring(0, name.length() - COPY_SUFFIX.length())))
+          f.delete();
+      }
+      return null;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  File fileOf(String hash) {
+    return new File(dir, hash + SUFFIX);
+  }
+
+  /**
+   * A registered script as configured. Only the id and the hash are
+   * persisted, the content is read from the library when displayed.
+   */
+  public static final class Script {
+    private final String id;
+    private String hash;
+    private transient String content;
+
+    @DataBoundConstructor
+    public Script(String id, String content) {
+      this.id      = id == null ? "" : id.trim();
+      this.content = content == null ? "" : content;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public String getContent() throws IOException {
+      String c = content;
+
+      if (c == null && hash != null) c = content = get().read(hash);
+      return c;
+    }
+
+    /**
+     * Moves the content into the library, keeping only its hash.
+     */
+    void store(ScriptLibrary library) throws IOException {
+      hash = library.store(getContent());
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(ScriptLibrary.class.getName());
+}
@@ -1,300 +1,1224 @@
-package org.jenkinsci.plugins.skeleton;
-
-import hudson.Extension;
-import hudson.FilePath;
-import hudson.EnvVars;
-import hudson.Util;
-import hudson.util.VariableResolver;
-import hudson.util.FormValidation;
-import hudson.Launcher;
-import hudson.model.BuildListener;
-import hudson.model.Result;
-import hudson.model.AbstractBuild;
-import hudson.model.AbstractProject;
-import hudson.tasks.BuildStepDescriptor;
-import hudson.tasks.Builder;
-import java.io.File;
-import java.io.IOException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Properties;
-import java.util.Timer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.StringReader;
-import net.sf.json.JSONObject;
-import org.jenkinsci.plugins.skeleton.utils.ConsoleLogger;
-import org.kohsuke.stapler.DataBoundConstructor;
-import org.kohsuke.stapler.QueryParameter;
-import org.kohsuke.stapler.StaplerRequest;
-
-public class Skeleton extends Builder {
-private final JobSource jobSource;
-private String properties;
-private String javaOpts;
-
-@DataBoundConstructor
-public Skeleton(JobSource jobSource,
-		boolean downloadFiles)
-{
-	this.jobSource     = jobSource;
-}
-
-public JobSource getJobSource()
-{
-	return jobSource;
-}
-private void log(ConsoleLogger console, String message)
-{
-	console.logAnnot(message);
-}
-
-public static Properties parseProperties(final String properties)
-throws IOException
-{
-	Properties props = new Properties();
-
-	if (properties != null) {
-		try {
-			props.load(new StringReader(properties));
-		} catch (NoSuchMethodError err) {
-			props.load(new ByteArrayInputStream(properties.getBytes()));
-		}
-	}
-
-	return props;
-}
-
-private boolean verifyFile(File jobFile, AbstractBuild<?, ?>build, ConsoleLogger console)
-{
-	if (jobFile == null) return false;
-
-	FilePath fp = new FilePath(build.getWorkspace(), jobFile.getPath());
-
-	try {
-		if (!fp.exists()) {
-			log(console,
-			    "[Skeleton] ERROR: Job file " + fp.getName() +
-			    " doesn't exists on channel" + fp.getChannel() + "!");
-
-			// build.setResult(Result.FAILURE);
-			return false;
-		}
-	} catch (IOException e) {
-		log(console,
-		    "[Skeleton] ERROR: failed to verify that " + fp.getName() +
-		    " exists on channel" + fp.getChannel()
-		    + "! IOException cought, check Jenkins log for more details");
-
-		// build.setResult(Result.FAILURE);
-		return false;
-	} catch (InterruptedException e) {
-		// TODO log exception
-	}
-	return true;
-}
-
-public String getProperties()
-{
-	return properties;
-}
-
-private File prepareJob(AbstractBuild<?, ?>build, ConsoleLogger console) throws InterruptedException
-{
-	File jobFile = null;
-
-	try {
-		jobFile = jobSource.createJobFile(build, console.getListener());
-	} catch (IOException ioe) {
-// TODO : is this code necessary ?
-		log(console,
-		    "[skeleton] ERROR: Could not get canonical path to workspace:" + ioe);
-		ioe.printStackTrace();
-		build.setResult(Result.FAILURE);
-	}
-	return jobFile;
-}
-
-@Override
-public boolean perform(AbstractBuild<?, ?>build, Launcher launcher, BuildListener listener)
-throws InterruptedException
-{
-	boolean performStatus =  false;
-	ConsoleLogger console = new ConsoleLogger(listener);
-	File jobFile          = prepareJob(build, console);
-
-	if (!verifyFile(jobFile, build, console)) {
-		try {
-			jobFile.delete();
-		} catch (Exception e) {
-			// Util.displayIOException(e,listener);
-			e.printStackTrace(listener.fatalError("Unable to delete script file " +
-							      jobFile.getName()));
-		}
-		return false;
-	}
-
-	log(console,
-	    "[Skeleton] INFO: Job file  " + jobFile.getName() + " prepared");
-	String jobXml = readJobFile(jobFile, build);
-
-	if (jobSource == null) {
-		listener.fatalError("There is no script configured for this builder");
-		return false;
-	} else {
-		try {
-			String[] cmd =
-				buildCommandLine(build, listener, new FilePath(build.getWorkspace(), jobFile.getPath()), false);
-			int result;
-			try {
-				int launcherResult = 0;
-				Map<String, String> envVars = build.getEnvironment(listener);
-
-				for (Map.Entry<String,
-					       String>e : build.getBuildVariables().entrySet())
-					envVars.put(e.getKey(), e.getValue());
-				// TODO : use thos code to pass in the Execution Policy Options
-				if (properties != null) {
-					String origJavaOpts   = build.getBuildVariables().get("JAVA_OPTS");
-					StringBuffer javaOpts = new StringBuffer(
-						(origJavaOpts != null) ? origJavaOpts : "");
-					Properties props      = parseProperties(properties);
-
-					for (Entry<Object, Object>entry : props.entrySet())
-						javaOpts.append(" -D" + entry.getKey() + "=" + entry.getValue());
-
-					// Add javaOpts at the end
-					if (this.javaOpts != null) // backward compatibility
-						javaOpts.append(" " + this.javaOpts);
-
-					envVars.put("JAVA_OPTS", javaOpts.toString());
-				}
-
-				envVars.put("$PATH_SEPARATOR", ":::");
-
-				StringBuffer sb = new StringBuffer();
-
-				for (String c : cmd) {
-					sb.append(c);
-					sb.append(" ");
-				}
-
-				sb.append( "-ExecutionPolicy");
-				sb.append(" ");
-				sb.append( "ByPass");
-				sb.append(" ");
-				log(console, "[Skeleton] INFO: Command  " + sb.toString());
-				result = 0;
-				result = launcher.launch().cmds(cmd).envs(envVars).stdout(listener).pwd(
-					build.getWorkspace()).join();
-			} catch (IOException e) {
-				// Util.displayIOException(e,listener);
-				e.printStackTrace(listener.fatalError("command execution failed"));
-				result = -1;
-			}
-			performStatus = (result == 0);
-		} catch (Exception e) {
-			e.printStackTrace(listener.fatalError("Unable to delete script file " + jobFile.getName()));
-		}
-	}
-
-	// TODO - add option to keep the script
-	log(console, "[Skeleton] INFO: Deleting Job file  " + jobFile.getName());
-	try {
-		jobFile.delete();
-	} catch (Exception e) {
-		// Util.displayIOException(e,listener);
-		e.printStackTrace(listener.fatalError("Unable to delete script file " + jobFile.getName()));
-	}
-	log(console, "[Skeleton] INFO: Script file deleted: " + jobFile.getName());
-	return performStatus;
-}
-
-private String readJobFile(File jobFile, AbstractBuild< ?, ? >build)
-{
-	String srcContent = null;
-
-	try {
-		FilePath fp = new FilePath(build.getWorkspace(), jobFile.getPath());
-		srcContent = fp.readToString();
-		System.out.println("Powershell Script: " + srcContent);
-	} catch (IOException e) {
-		LOGGER.log(Level.INFO, "Skeleton error: failed to read script file:"
-			   + jobFile.getPath(), e);
-	}
-	return srcContent;
-}
-
-@Override
-public DescriptorImpl getDescriptor()
-{
-	return (DescriptorImpl) super.getDescriptor();
-}
-
-protected String[] buildCommandLine(AbstractBuild build, BuildListener listener, FilePath script, boolean isOnUnix) throws IOException,
-InterruptedException
-{
-	ArrayList<String> list = new ArrayList<String>();
-
-	EnvVars env = build.getEnvironment(listener);
-	env.overrideAll(build.getBuildVariables());
-	// TODO: variable resolver more efficient than calling env.expand(s)
-	VariableResolver<String> vr = new VariableResolver.ByMap<String>(env);
-
-	ArrayList<String> paths = new ArrayList<String>();
-	paths.add(
-		env.get("SYSTEMROOT") + "\\sysnative\\WindowsPowershell\\v1.0\\powershell.exe"
-		);
-	paths.add(
-		env.get("SYSTEMROOT") + "\\system32\\WindowsPowershell\\v1.0\\powershell.exe"
-		);
-	String cmd = "powershell.exe"; // last hope in case of missing or not
-	for (String path : paths) {
-		File fp = new File(path);
-		if (fp.exists())
-			cmd = path; 
-	}
-	// selected installation
-	list.add(cmd);
-
-	list.add(script.getRemote());
-	return list.toArray(new String[] {});
-}
-
-@Extension
-public static final class DescriptorImpl extends BuildStepDescriptor<Builder>{
-public DescriptorImpl()
-{
-	load();
-	setupClient();
-}
-
-@Override
-public boolean isApplicable(
-	@SuppressWarnings("rawtypes") Class< ? extends AbstractProject>aClass)
-{
-	return true;
-}
-
-public String getDisplayName()
-{
-	return "Execute Skeleton task";
-}
-
-@Override
-public boolean configure(StaplerRequest req, JSONObject formData) throws FormException
-{
-	save();
-	return super.configure(req, formData);
-}
-
-private void setupClient()
-{
-}
-}
-private static final Logger LOGGER = Logger.getLogger(Skeleton.class.getName());
-}
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.labels.LabelAtom;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.skeleton.runner.CompressedOutput;
+import org.jenkinsci.plugins.skeleton.runner.DurableRun;
+import org.jenkinsci.plugins.skeleton.runner.ResultsFile;
+import org.jenkinsci.plugins.skeleton.runner.SupervisedRun;
+import org.jenkinsci.plugins.skeleton.runner.WarmRun;
+import org.jenkinsci.plugins.skeleton.runner.WorkerProtocol;
+import org.jenkinsci.plugins.skeleton.utils.ConsoleLogger;
+import org.jenkinsci.plugins.skeleton.utils.LayeredEnvironment;
+import org.jenkinsci.plugins.skeleton.utils.ScriptOutputAnnotator;
+import org.jenkinsci.plugins.skeleton.utils.Severity;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+public class Skeleton extends Builder implements SimpleBuildStep {
+private final JobSource jobSource;
+// only set when loaded from older configurations, never changed afterwards
+private String properties;
+private String javaOpts;
+private transient volatile String javaOptsSuffix;
+private final boolean keepScript;
+private final boolean cacheScript;
+private final boolean warmRunner;
+private final boolean durable;
+
+public Skeleton(JobSource jobSource,
+		boolean downloadFiles)
+{
+	this(jobSource, downloadFiles, false, false, false, false);
+}
+
+@DataBoundConstructor
+public Skeleton(JobSource jobSource,
+		boolean downloadFiles,
+		boolean keepScript,
+		boolean cacheScript,
+		boolean warmRunner,
+		boolean durable)
+{
+	this.jobSource     = jobSource;
+	this.keepScript    = keepScript;
+	this.cacheScript   = cacheScript;
+	this.warmRunner    = warmRunner;
+	this.durable       = durable;
+}
+
+public JobSource getJobSource()
+{
+	return jobSource;
+}
+
+public boolean isKeepScript()
+{
+	return keepScript;
+}
+
+public boolean isCacheScript()
+{
+	return cacheScript;
+}
+
+public boolean isWarmRunner()
+{
+	return warmRunner;
+}
+
+public boolean isDurable()
+{
+	return durable;
+}
+private void log(ConsoleLogger console, String message)
+{
+	console.logAnnot(message);
+}
+
+public static Properties parseProperties(final String properties)
+throws IOException
+{
+	Properties props = new Properties();
+
+	if (properties != null) {
+		try {
+			props.load(new StringReader(properties));
+		} catch (NoSuchMethodError err) {
+			props.load(new ByteArrayInputStream(properties.getBytes()));
+		}
+	}
+
+	return props;
+}
+
+public String getProperties()
+{
+	return properties;
+}
+
+/**
+ * The properties as <code>-D</code> options followed by the Java options,
+ * appended to <code>JAVA_OPTS</code>. Parsed once per instance, a changed
+ * configuration creates a new instance.
+ */
+private String getJavaOptsSuffix() throws IOException
+{
+	String suffix = javaOptsSuffix;
+
+	if (suffix == null) {
+		StringBuilder sb = new StringBuilder();
+
+		for (Entry<Object, Object>entry : parseProperties(properties).entrySet())
+			sb.append(" -D").append(entry.getKey()).append('=').append(entry.getValue());
+
+		// Add javaOpts at the end
+		if (this.javaOpts != null) // backward compatibility
+			sb.append(' ').append(this.javaOpts);
+		suffix = javaOptsSuffix = sb.toString();
+	}
+	return suffix;
+}
+
+private ScriptCache createScriptCache(Node node)
+{
+	if (!cacheScript) return null;
+
+	FilePath root = (node != null) ? node.getRootPath() : null;
+
+	if (root == null) return null;
+	return new ScriptCache(root.child(SCRIPT_CACHE_DIR), getDescriptor().getScriptCacheSize(),
+			       JobSource.DEFAULT_JOB_SUFFIX);
+}
+
+/**
+ * Writes the job file, verifies it and reads it back for the log when FINE
+ * logging is enabled, all in a single remote call unless the job source
+ * only implements {@link JobSource#createJobFile}, or the job is sent to
+ * the node's script cache for the first time.
+ */
+private JobPreparation.Result prepareJob(Run<?, ?>build, FilePath workspace, ConsoleLogger console,
+					 ScriptCache cache, Map<String, String> variables) throws InterruptedException
+{
+	boolean read = LOGGER.isLoggable(Level.FINE);
+
+	try {
+		FilePath.FileCallable<String> materializer = jobSource.getMaterializer(build, workspace, variables, cache);
+
+		if (materializer != null)
+			return JobPreparation.prepare(workspace, materializer, cache, read);
+
+		File jobFile = jobSource.createJobFile(build, workspace, console.getListener(), cache);
+		return workspace.act(JobPreparation.existing(jobFile.getPath(), cache, read));
+	} catch (IOException ioe) {
+// TODO : is this code necessary ?
+		log(console,
+		    "[Skeleton] ERROR: Could not prepare job file: " + ioe.getMessage());
+		ioe.printStackTrace();
+		build.setResult(Result.FAILURE);
+	}
+	return null;
+}
+
+/**
+ * Environment of the launched script: the snapshot the job was expanded
+ * with, plus the configured properties in <code>JAVA_OPTS</code>. Only
+ * these are added as a layer, the snapshot itself is not copied.
+ */
+private LayeredEnvironment buildEnvironment(Run<?, ?>build, LayeredEnvironment variables) throws IOException
+{
+	Map<String, String> envVars = new HashMap<String, String>();
+
+	// TODO : use thos code to pass in the Execution Policy Options
+	if (properties != null) {
+		// other runs bring their parameters in the environment
+		String origJavaOpts = build instanceof AbstractBuild
+				      ? ((AbstractBuild<?, ?>) build).getBuildVariables().get("JAVA_OPTS")
+				      : variables.get("JAVA_OPTS");
+
+		envVars.put("JAVA_OPTS", ((origJavaOpts != null) ? origJavaOpts : "") + getJavaOptsSuffix());
+	}
+
+	envVars.put("$PATH_SEPARATOR", ":::");
+	return variables.with(envVars);
+}
+
+/**
+ * Makes the values the script reported available to the following steps,
+ * as environment variables and through the remote API of the build.
+ */
+private void publishResults(Run<?, ?>build, ConsoleLogger console, Map<String, String> values,
+			    int skipped)
+{
+	if (!values.isEmpty()) {
+		SkeletonAction.of(build).addResults(values);
+		log(console, "[Skeleton] INFO: Script reported " + values.size() + " value(s), available as $"
+		    + SkeletonEnvContributor.RESULT_PREFIX + "<name>: " + Util.join(values.keySet(), ", "));
+	}
+	if (skipped > 0)
+		log(console, "[Skeleton] WARNING: Ignored " + skipped + " malformed record(s) in $"
+		    + ResultsFile.VARIABLE);
+}
+
+private void logUsage(ConsoleLogger console, SupervisedRun.Result run)
+{
+	StringBuilder sb = new StringBuilder("[Skeleton] INFO: Process " + run.getPid() + " exited");
+
+	if (run.getCpuMillis() >= 0)
+		sb.append(", CPU time ").append(run.getCpuMillis()).append(" ms");
+	if (run.getPeakRssKb() >= 0)
+		sb.append(", peak RSS ").append(run.getPeakRssKb()).append(" kB");
+	log(console, sb.toString());
+}
+
+/**
+ * Channel to the node for a durable run. When the connection broke, waits
+ * for the node to come back, giving up after {@link #RECONNECT_TIMEOUT_MILLIS}.
+ */
+private DurableRun.Connector connectorOf(Node node, final VirtualChannel first, final ConsoleLogger console)
+{
+	final String name    = node.getNodeName();
+	final String display = name.length() > 0 ? name : "master";
+
+	return new DurableRun.Connector() {
+		public VirtualChannel connect(IOException broken) throws IOException, InterruptedException
+		{
+			if (broken == null) return first;
+			log(console, "[Skeleton] WARNING: Lost the connection to " + display + ", waiting for it to come back");
+
+			long deadline = System.currentTimeMillis() + RECONNECT_TIMEOUT_MILLIS;
+
+			while (true) {
+				Thread.sleep(RECONNECT_POLL_MILLIS);
+
+				Node n            = name.length() > 0 ? Jenkins.getInstance().getNode(name) : Jenkins.getInstance();
+				Computer c        = n != null ? n.toComputer() : null;
+				VirtualChannel ch = c != null ? c.getChannel() : null;
+
+				if (ch != null) {
+					log(console, "[Skeleton] INFO: Reattached to " + display);
+					return ch;
+				}
+				if (System.currentTimeMillis() >= deadline)
+					throw new IOException(display + " did not come back within "
+							      + RECONNECT_TIMEOUT_MILLIS / 60000 + " minutes", broken);
+			}
+		}
+	};
+}
+
+/**
+ * Stream the script output is sent through from the node, chunked and
+ * compressed unless disabled.
+ */
+private static OutputStream exportOutput(OutputStream out, Settings settings)
+{
+	if (settings.getOutputChunkSize() <= 0) return new RemoteOutputStream(out);
+	return CompressedOutput.export(out, settings.getOutputChunkSize() * 1024, settings.getOutputFlushDelay());
+}
+
+/**
+ * Waits for a free slot on the node a script is launched on, as configured
+ * per label. Every launch takes its own slot, also those of {@link ParallelSkeleton}.
+ */
+static NodeThrottle.Permit acquireSlot(Node node, Settings settings, ConsoleLogger console)
+throws InterruptedException
+{
+	String name     = node != null ? node.getNodeName() : "";
+	String display  = name.length() > 0 ? name : "master";
+	int limit       = settings.getNodeLimit(node);
+	NodeThrottle throttle = NodeThrottle.GLOBAL;
+
+	if (limit > 0 && (throttle.getRunning(name) >= limit || throttle.getWaiting(name) > 0))
+		console.logAnnot("[Skeleton] INFO: Waiting for a slot on " + display + ", "
+				 + throttle.getWaiting(name) + " step(s) queued ahead");
+
+	NodeThrottle.Permit permit = throttle.acquire(name, limit);
+
+	if (permit.getWaitMillis() > 0)
+		console.logAnnot("[Skeleton] INFO: Waited " + permit.getWaitMillis() + " ms for a slot on " + display);
+	return permit;
+}
+
+/**
+ * Runs the script and waits for it. A failed script fails the run, through
+ * an {@link AbortException} as on any other {@link SimpleBuildStep}; the
+ * freestyle builder takes this path as well.
+ */
+@Override
+public void perform(Run<?, ?>run, FilePath workspace, Launcher launcher, TaskListener listener)
+throws InterruptedException, IOException
+{
+	Launch launch = new Launch(run, workspace, JobSource.nodeOf(workspace), listener);
+	boolean passed;
+
+	try {
+		launch.start(launcher);
+	} finally {
+		passed = launch.finish();
+	}
+	if (!passed)
+		throw new AbortException("Skeleton script failed");
+}
+
+/**
+ * The script while it runs on the node, awaited by the build or polled
+ * by the Pipeline step.
+ */
+private interface Running
+{
+	/**
+	 * @return whether the script exited, without waiting for it
+	 */
+	boolean isDone() throws IOException, InterruptedException;
+
+	/**
+	 * @return how long to wait before asking {@link #isDone} again
+	 */
+	long getPollMillis();
+
+	/**
+	 * Waits for the script, logs its outcome and returns its exit code.
+	 * When interrupted, the script is cancelled.
+	 */
+	int await() throws IOException, InterruptedException;
+
+	/**
+	 * Kills the processes of the script.
+	 */
+	void cancel();
+}
+
+/**
+ * A script run through a single remote call, waited for through its future.
+ */
+private abstract static class Call<V> implements Running
+{
+private final Future<V> future;
+private long backoff = 100;
+
+Call(Future<V> future)
+{
+	this.future = future;
+}
+
+public boolean isDone()
+{
+	return future.isDone();
+}
+
+public long getPollMillis()
+{
+	long poll = backoff;
+
+	backoff = Math.min(backoff * 2, 2000);
+	return poll;
+}
+
+public int await() throws IOException, InterruptedException
+{
+	V value;
+
+	try {
+		value = future.get();
+	} catch (InterruptedException e) {
+		// as a blocking call does, interrupts the callable on the node
+		future.cancel(true);
+		throw e;
+	} catch (CancellationException e) {
+		throw new InterruptedException("Cancelled");
+	} catch (ExecutionException e) {
+		Throwable cause = e.getCause();
+
+		if (cause instanceof IOException) throw (IOException) cause;
+		if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+		if (cause instanceof Error) throw (Error) cause;
+		throw new IOException(cause);
+	}
+	return exited(value);
+}
+
+public void cancel()
+{
+	future.cancel(true);
+}
+
+/**
+ * Logs the outcome of the call and returns the exit code of the script.
+ */
+abstract int exited(V value);
+}
+
+/**
+ * One run of the script, from taking its slot on the node to deleting the
+ * job file. {@link #start} returns once the script was launched, then the
+ * build waits in {@link #finish}. The Pipeline step polls {@link #isDone}
+ * first and doesn't hold a thread while the script runs.
+ */
+final class Launch
+{
+private final Run<?, ?>build;
+private final FilePath workspace;
+private final Node node;
+private final TaskListener listener;
+private final ConsoleLogger console;
+private final StepMetrics metrics;
+private NodeThrottle.Permit permit;
+private JobPreparation.Result job;
+private ScriptOutputAnnotator stdout;
+private ScriptOutputAnnotator stderr;
+private volatile Running running;
+private boolean passed;
+
+Launch(Run<?, ?>build, FilePath workspace, Node node, TaskListener listener)
+{
+	this.build     = build;
+	this.workspace = workspace;
+	this.node      = node;
+	this.listener  = listener;
+	this.console   = new ConsoleLogger(listener);
+	this.metrics   = new StepMetrics(node != null ? node.getNodeName() : null);
+}
+
+/**
+ * Prepares the job file and launches the script, unless either failed.
+ * {@link #finish} is due in any case.
+ */
+void start(Launcher launcher) throws InterruptedException
+{
+	// taken before the job is prepared, so its cached file is used right away
+	permit = acquireSlot(node, getDescriptor().getSettings(), console);
+	metrics.setQueueMillis(permit.getWaitMillis());
+
+	if (jobSource == null) {
+		listener.fatalError("There is no script configured for this builder");
+		return;
+	}
+	if (workspace == null) {
+		listener.fatalError("There is no workspace to run the script in");
+		return;
+	}
+
+	ScriptCache cache     = createScriptCache(node);
+	long start            = System.nanoTime();
+	LayeredEnvironment variables;
+
+	try {
+		// one snapshot for expanding and for running the job
+		variables = jobSource.getVariables(build, listener);
+	} catch (IOException e) {
+		e.printStackTrace(listener.fatalError("Unable to get the build environment"));
+		return;
+	}
+
+	job = prepareJob(build, workspace, console, cache, variables);
+	metrics.setPrepareMillis(StepMetrics.since(start));
+	if (job == null) return;
+
+	File jobFile = job.getJobFile();
+
+	metrics.setCached(job.isCached());
+	metrics.setVerifyMillis(job.getVerifyMillis());
+	metrics.setReadMillis(job.getReadMillis());
+
+	log(console,
+	    "[Skeleton] INFO: Job file  " + jobFile.getName() + " prepared");
+	if (job.getContent() != null)
+		LOGGER.fine("Powershell Script: " + job.getContent());
+
+	try {
+		String[] cmd =
+			buildCommandLine(node, new FilePath(workspace, jobFile.getPath()), false);
+		metrics.setInterpreter(cmd[0]);
+
+		LayeredEnvironment envVars = buildEnvironment(build, variables);
+
+		log(console, "[Skeleton] INFO: Command  " + Util.join(Arrays.asList(cmd), " "));
+		// classify and mark up the script output while it streams in
+		stdout = new ScriptOutputAnnotator(console.getAnnotator(), null);
+		stderr = new ScriptOutputAnnotator(console.getAnnotator(), Severity.ERROR);
+
+		WorkerProtocol protocol = warmRunner ? WorkerProtocol.forInterpreter(cmd[0]) : null;
+		Settings settings       = getDescriptor().getSettings();
+
+		if (warmRunner && protocol == null)
+			log(console, "[Skeleton] WARNING: " + cmd[0] + " can't run as a warm worker, starting it for this step");
+		if (protocol != null) {
+			// reuse a running interpreter of the node instead of starting one
+			running = warm(launcher, protocol, cmd, envVars, settings);
+		} else if (durable && node != null && node.getRootPath() != null) {
+			// detached on the node, outlives a broken connection
+			running = durable(launcher, cmd, envVars, settings);
+		} else {
+			// supervised on the node: timeouts, tree kill on abort, resource usage
+			running = supervised(launcher, cmd, envVars, settings);
+		}
+	} catch (IOException e) {
+		// Util.displayIOException(e,listener);
+		e.printStackTrace(listener.fatalError("command execution failed"));
+	}
+}
+
+/**
+ * @return whether the script exited or never started, without waiting for it
+ */
+boolean isDone() throws IOException, InterruptedException
+{
+	Running r = running;
+
+	return r == null || r.isDone();
+}
+
+/**
+ * @return how long to wait before asking {@link #isDone} again
+ */
+long getPollMillis()
+{
+	Running r = running;
+
+	return r == null ? 0 : r.getPollMillis();
+}
+
+/**
+ * Kills the processes of the script, {@link #finish} is still due.
+ */
+void cancel()
+{
+	Running r = running;
+
+	if (r != null) r.cancel();
+}
+
+/**
+ * Waits for the script, deletes the job file unless it is kept and
+ * records the metrics of the step.
+ *
+ * @return whether the script passed
+ */
+boolean finish() throws InterruptedException
+{
+	try {
+		if (running != null) {
+			try {
+				int result = running.await();
+
+				metrics.setExitCode(result);
+				passed = result == 0;
+			} catch (IOException e) {
+				// Util.displayIOException(e,listener);
+				e.printStackTrace(listener.fatalError("command execution failed"));
+			}
+		}
+	} finally {
+		try {
+			if (stdout != null) output();
+			if (job != null) cleanup();
+		} finally {
+			if (permit != null) permit.release();
+			// persisted with the build, exposed through its remote API
+			metrics.finish();
+			SkeletonAction.of(build).addStep(metrics);
+			try {
+				TrendStore.record(build.getParent(), metrics, jobSource != null ? jobSource.getScriptId() : null);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to record step duration of " + build, e);
+			}
+		}
+	}
+	return passed;
+}
+
+private Running warm(Launcher launcher, WorkerProtocol protocol, String[] cmd, Map<String, String> envVars,
+		     Settings settings) throws IOException
+{
+	log(console, "[Skeleton] INFO: Running on a warm " + cmd[0] + " worker");
+	metrics.setWarm(true);
+
+	final long start = System.nanoTime();
+
+	return new Call<WarmRun.Result>(launcher.getChannel().callAsync(new WarmRun(
+		protocol, cmd[1], workspace.getRemote(),
+		envVars, exportOutput(stdout, settings),
+		settings.getWorkerPoolSize(), settings.getWorkerMaxJobs(),
+		settings.getProcessTimeout() * 60000L, settings.getIdleTimeout() * 60000L))) {
+		int exited(WarmRun.Result run)
+		{
+			metrics.setRunMillis(StepMetrics.since(start));
+
+			int result = run.getExitCode();
+
+			publishResults(build, console, run.getValues(), run.getSkippedValues());
+			if (run.getTimedOut() != null) {
+				log(console, "[Skeleton] ERROR: Warm worker " + run.getTimedOut()
+				    + ", killed it with its children");
+				result = -1;
+			}
+			return result;
+		}
+	};
+}
+
+private Running durable(Launcher launcher, String[] cmd, Map<String, String> envVars, Settings settings)
+throws IOException, InterruptedException
+{
+	final DurableRun run = new DurableRun(cmd, workspace.getRemote(), envVars,
+		node.getRootPath().child(DURABLE_DIR).child(UUID.randomUUID().toString()).getRemote(),
+		build.getExternalizableId());
+	final long start     = System.nanoTime();
+
+	run.start(connectorOf(node, launcher.getChannel(), console),
+		  settings.getProcessTimeout() * 60000L, settings.getIdleTimeout() * 60000L);
+	return new Running() {
+		private boolean exited;
+
+		public boolean isDone() throws IOException, InterruptedException
+		{
+			if (!exited) exited = run.poll(stdout);
+			return exited;
+		}
+
+		public long getPollMillis()
+		{
+			return run.getPollMillis();
+		}
+
+		public int await() throws IOException, InterruptedException
+		{
+			try {
+				while (!isDone()) Thread.sleep(getPollMillis());
+			} catch (InterruptedException e) {
+				run.cancel();
+				throw e;
+			}
+
+			DurableRun.Result done = run.finish(stdout);
+
+			metrics.setRunMillis(StepMetrics.since(start));
+			metrics.setProcess(done.getPid(), -1, -1);
+
+			int result = done.getExitCode();
+
+			if (done.getReconnects() > 0)
+				log(console, "[Skeleton] INFO: Reattached " + done.getReconnects()
+				    + " time(s), " + run.getOffset() + " bytes of output in total");
+			publishResults(build, console, done.getValues(), done.getSkippedValues());
+			if (done.getBadMarker() != null)
+				log(console, "[Skeleton] ERROR: Process " + done.getPid()
+				    + " left no exit code, its marker holds '" + done.getBadMarker() + "'");
+			if (done.getTimedOut() != null) {
+				log(console, "[Skeleton] ERROR: Process " + done.getPid() + " " + done.getTimedOut()
+				    + ", killed it with its children");
+				result = -1;
+			}
+			return result;
+		}
+
+		public void cancel()
+		{
+			run.cancel();
+		}
+	};
+}
+
+private Running supervised(Launcher launcher, String[] cmd, Map<String, String> envVars, Settings settings)
+throws IOException
+{
+	return new Call<SupervisedRun.Result>(launcher.getChannel().callAsync(new SupervisedRun(
+		cmd, workspace.getRemote(), envVars,
+		exportOutput(stdout, settings), exportOutput(stderr, settings),
+		settings.getProcessTimeout() * 60000L, settings.getIdleTimeout() * 60000L))) {
+		int exited(SupervisedRun.Result run)
+		{
+			metrics.setLaunchMillis(run.getLaunchMillis());
+			metrics.setRunMillis(run.getRunMillis());
+			metrics.setProcess(run.getPid(), run.getCpuMillis(), run.getPeakRssKb());
+
+			int result = run.getExitCode();
+
+			logUsage(console, run);
+			publishResults(build, console, run.getValues(), run.getSkippedValues());
+			if (run.getTimedOut() != null) {
+				log(console, "[Skeleton] ERROR: Process " + run.getPid() + " " + run.getTimedOut()
+				    + ", killed it with its children");
+				result = -1;
+			}
+			if (!run.getLeftover().isEmpty())
+				log(console, "[Skeleton] WARNING: Process(es) " + Util.join(run.getLeftover(), ", ")
+				    + " still running after the kill, left behind");
+			return result;
+		}
+	};
+}
+
+private void output()
+{
+	try {
+		stdout.finish();
+		stderr.finish();
+	} catch (IOException e) {
+		e.printStackTrace(listener.error("Failed to write the script output"));
+	}
+	metrics.setOutput(stdout.getByteCount() + stderr.getByteCount(),
+			  stdout.getLineCount() + stderr.getLineCount(),
+			  stderr.getLineCount() + stdout.getLineCount(Severity.ERROR),
+			  stdout.getLineCount(Severity.WARNING));
+	if (stderr.getLineCount() > 0 || stdout.getLineCount(Severity.WARNING) > 0)
+		log(console, "[Skeleton] INFO: Script wrote " + stderr.getLineCount() + " error line(s) and "
+		    + stdout.getLineCount(Severity.WARNING) + " warning(s)");
+}
+
+private void cleanup()
+{
+	File jobFile = job.getJobFile();
+
+	if (keepScript || job.isCached()) {
+		log(console, "[Skeleton] INFO: Keeping Job file  " + jobFile.getPath());
+		return;
+	}
+	log(console, "[Skeleton] INFO: Deleting Job file  " + jobFile.getName());
+
+	long start = System.nanoTime();
+
+	try {
+		// the job file lives on the node, not on the controller
+		new FilePath(workspace, jobFile.getPath()).delete();
+	} catch (Exception e) {
+		// Util.displayIOException(e,listener);
+		e.printStackTrace(listener.fatalError("Unable to delete script file " + jobFile.getName()));
+	}
+	metrics.setCleanupMillis(StepMetrics.since(start));
+	log(console, "[Skeleton] INFO: Script file deleted: " + jobFile.getName());
+}
+}
+
+@Override
+public DescriptorImpl getDescriptor()
+{
+	return (DescriptorImpl) super.getDescriptor();
+}
+
+protected String[] buildCommandLine(AbstractBuild build, BuildListener listener, FilePath script, boolean isOnUnix) throws IOException,
+InterruptedException
+{
+	return buildCommandLine(build.getBuiltOn(), script, isOnUnix);
+}
+
+protected String[] buildCommandLine(Node node, FilePath script, boolean isOnUnix) throws IOException,
+InterruptedException
+{
+	ArrayList<String> list = new ArrayList<String>();
+
+	// discovered once on the node running the script, not on the controller
+	String cmd = InterpreterResolver.resolve(node != null ? node.toComputer() : null,
+						 getDescriptor().getInterpreterCandidates());
+	// selected installation
+	list.add(cmd);
+
+	list.add(script.getRemote());
+	return list.toArray(new String[] {});
+}
+
+@Extension
+public static final class DescriptorImpl extends BuildStepDescriptor<Builder>{
+/**
+ * Default size limit of the script cache of each node, in bytes.
+ */
+public static final long DEFAULT_SCRIPT_CACHE_SIZE = 64L * 1024 * 1024;
+
+/**
+ * Default size of the chunks script output is sent in, in kilobytes.
+ */
+public static final int DEFAULT_OUTPUT_CHUNK_SIZE = 64;
+
+/**
+ * Default delay before buffered script output is sent, in milliseconds.
+ */
+public static final long DEFAULT_OUTPUT_FLUSH_DELAY = 200;
+
+// persisted form of the settings, only written together with the snapshot
+private long scriptCacheSize = DEFAULT_SCRIPT_CACHE_SIZE;
+
+/**
+ * Number of warm interpreter processes kept on each node.
+ */
+private int workerPoolSize = 2;
+
+/**
+ * Jobs a warm interpreter runs before it is recycled.
+ */
+private int workerMaxJobs = 50;
+
+/**
+ * Interpreter locations tried on each node, one per line.
+ */
+private String interpreterPaths;
+
+/**
+ * Concurrency limits of Skeleton steps per node label, one
+ * <code>label=limit</code> rule per line.
+ */
+private String nodeLimits;
+
+/**
+ * Scripts shared by jobs, the content is kept in the {@link ScriptLibrary}.
+ */
+private List<ScriptLibrary.Script> libraryScripts;
+
+/**
+ * Wall-clock limit of a script started by a step, in minutes, 0 for none.
+ */
+private int processTimeout;
+
+/**
+ * Longest time a script may run without writing output, in minutes, 0 for none.
+ */
+private int idleTimeout;
+
+/**
+ * Kilobytes of script output sent from the node at once, compressed, 0 to
+ * send every write as it is.
+ */
+private int outputChunkSize = DEFAULT_OUTPUT_CHUNK_SIZE;
+
+/**
+ * Milliseconds script output is held back on the node at most.
+ */
+private long outputFlushDelay = DEFAULT_OUTPUT_FLUSH_DELAY;
+
+/**
+ * What builds read, replaced as a whole when the configuration is saved.
+ */
+private transient volatile Settings settings;
+
+public DescriptorImpl()
+{
+	load();
+	settings = new Settings(scriptCacheSize, workerPoolSize, workerMaxJobs, interpreterPaths, nodeLimits,
+				processTimeout, idleTimeout, outputChunkSize, outputFlushDelay, libraryScripts);
+	setupClient();
+}
+
+@Override
+public boolean isApplicable(
+	@SuppressWarnings("rawtypes") Class< ? extends AbstractProject>aClass)
+{
+	return true;
+}
+
+public String getDisplayName()
+{
+	return "Execute Skeleton task";
+}
+
+@Override
+public boolean configure(StaplerRequest req, JSONObject formData) throws FormException
+{
+	List<ScriptLibrary.Script> scripts = req.bindJSONToList(ScriptLibrary.Script.class,
+								 formData.opt("libraryScripts"));
+	String limits = Util.fixEmptyAndTrim(formData.optString("nodeLimits"));
+
+	// nothing is written before the whole form is known to be valid
+	checkLibrary(scripts);
+	try {
+		NodeThrottle.parseRules(limits);
+	} catch (IllegalArgumentException e) {
+		throw new FormException(e.getMessage(), "nodeLimits");
+	}
+
+	synchronized (this) {
+		storeLibrary(scripts);
+
+		Settings s = new Settings(formData.optLong("scriptCacheSize", DEFAULT_SCRIPT_CACHE_SIZE),
+					  formData.optInt("workerPoolSize", 2),
+					  formData.optInt("workerMaxJobs", 50),
+					  Util.fixEmptyAndTrim(formData.optString("interpreterPaths")),
+					  limits,
+					  Math.max(0, formData.optInt("processTimeout", 0)),
+					  Math.max(0, formData.optInt("idleTimeout", 0)),
+					  Math.max(0, formData.optInt("outputChunkSize", DEFAULT_OUTPUT_CHUNK_SIZE)),
+					  Math.max(0, formData.optLong("outputFlushDelay", DEFAULT_OUTPUT_FLUSH_DELAY)),
+					  scripts);
+
+		scriptCacheSize  = s.scriptCacheSize;
+		workerPoolSize   = s.workerPoolSize;
+		workerMaxJobs    = s.workerMaxJobs;
+		interpreterPaths = s.interpreterPaths;
+		nodeLimits       = s.nodeLimits;
+		processTimeout   = s.processTimeout;
+		idleTimeout      = s.idleTimeout;
+		outputChunkSize  = s.outputChunkSize;
+		outputFlushDelay = s.outputFlushDelay;
+		libraryScripts   = scripts;
+		settings         = s;
+		save();
+		ScriptLibrary.get().retain(s.libraryHashes.values());
+		ScriptLibrary.retainOnNodes(s.libraryHashes.values());
+	}
+	InterpreterResolver.invalidateAll();
+	return super.configure(req, formData);
+}
+
+/**
+ * Replaces the library scripts, keeping the other settings.
+ */
+void setLibraryScripts(List<ScriptLibrary.Script> scripts) throws FormException
+{
+	checkLibrary(scripts);
+	synchronized (this) {
+		Settings s = settings;
+
+		storeLibrary(scripts);
+
+		libraryScripts = scripts;
+		settings       = new Settings(s.scriptCacheSize, s.workerPoolSize, s.workerMaxJobs, s.interpreterPaths,
+					      s.nodeLimits, s.processTimeout, s.idleTimeout, s.outputChunkSize,
+					      s.outputFlushDelay, scripts);
+		save();
+		ScriptLibrary.get().retain(settings.libraryHashes.values());
+		ScriptLibrary.retainOnNodes(settings.libraryHashes.values());
+	}
+}
+
+/**
+ * Checks the ids of the scripts, before anything is stored.
+ */
+private static void checkLibrary(List<ScriptLibrary.Script> scripts) throws FormException
+{
+	Set<String> ids = new HashSet<String>();
+
+	for (ScriptLibrary.Script script : scripts) {
+		if (script.getId().length() == 0 || !ids.add(script.getId()))
+			throw new FormException("Library script ids must be unique and not empty", "libraryScripts");
+	}
+}
+
+/**
+ * Moves the content of the scripts into the library.
+ */
+private static void storeLibrary(List<ScriptLibrary.Script> scripts) throws FormException
+{
+	try {
+		for (ScriptLibrary.Script script : scripts)
+			script.store(ScriptLibrary.get());
+	} catch (IOException e) {
+		throw new FormException(e, "libraryScripts");
+	}
+}
+
+/**
+ * Consistent view of the global settings, read without locking.
+ */
+public Settings getSettings()
+{
+	return settings;
+}
+
+public long getScriptCacheSize()
+{
+	return settings.getScriptCacheSize();
+}
+
+public int getWorkerPoolSize()
+{
+	return settings.getWorkerPoolSize();
+}
+
+public int getWorkerMaxJobs()
+{
+	return settings.getWorkerMaxJobs();
+}
+
+public String getInterpreterPaths()
+{
+	String paths = settings.getInterpreterPaths();
+
+	return paths != null ? paths
+	       : Util.join(InterpreterResolver.DEFAULT_CANDIDATES, "\n");
+}
+
+public List<String> getInterpreterCandidates()
+{
+	return settings.getInterpreterCandidates();
+}
+
+public String getNodeLimits()
+{
+	return settings.getNodeLimits();
+}
+
+public int getProcessTimeout()
+{
+	return settings.getProcessTimeout();
+}
+
+public int getIdleTimeout()
+{
+	return settings.getIdleTimeout();
+}
+
+public int getOutputChunkSize()
+{
+	return settings.getOutputChunkSize();
+}
+
+public long getOutputFlushDelay()
+{
+	return settings.getOutputFlushDelay();
+}
+
+public List<ScriptLibrary.Script> getLibraryScripts()
+{
+	return settings.getLibraryScripts();
+}
+
+private void setupClient()
+{
+}
+}
+
+/**
+ * Immutable snapshot of the global settings, with the interpreter
+ * candidates and the node limits parsed once.
+ */
+public static final class Settings {
+private final long scriptCacheSize;
+private final int workerPoolSize;
+private final int workerMaxJobs;
+private final String interpreterPaths;
+private final List<String> interpreterCandidates;
+private final String nodeLimits;
+private final List<NodeThrottle.Rule> nodeLimitRules;
+private final int processTimeout;
+private final int idleTimeout;
+private final int outputChunkSize;
+private final long outputFlushDelay;
+private final List<ScriptLibrary.Script> libraryScripts;
+private final Map<String, String> libraryHashes;
+
+Settings(long scriptCacheSize, int workerPoolSize, int workerMaxJobs, String interpreterPaths,
+	 String nodeLimits, int processTimeout, int idleTimeout, int outputChunkSize, long outputFlushDelay,
+	 List<ScriptLibrary.Script> libraryScripts)
+{
+	this.scriptCacheSize       = scriptCacheSize;
+	this.workerPoolSize        = workerPoolSize;
+	this.workerMaxJobs         = workerMaxJobs;
+	this.interpreterPaths      = interpreterPaths;
+	this.interpreterCandidates = Collections.unmodifiableList(
+		new ArrayList<String>(InterpreterResolver.parseCandidates(interpreterPaths)));
+	this.nodeLimits            = nodeLimits;
+	this.nodeLimitRules        = NodeThrottle.parseRules(nodeLimits);
+	this.processTimeout        = processTimeout;
+	this.idleTimeout           = idleTimeout;
+	this.outputChunkSize       = outputChunkSize;
+	this.outputFlushDelay      = outputFlushDelay;
+	this.libraryScripts        = libraryScripts == null ? Collections.<ScriptLibrary.Script>emptyList()
+				     : Collections.unmodifiableList(new ArrayList<ScriptLibrary.Script>(libraryScripts));
+
+	Map<String, String> hashes = new HashMap<String, String>();
+
+	for (ScriptLibrary.Script script : this.libraryScripts)
+		hashes.put(script.getId(), script.getHash());
+	this.libraryHashes = Collections.unmodifiableMap(hashes);
+}
+
+public long getScriptCacheSize()
+{
+	return scriptCacheSize;
+}
+
+public int getWorkerPoolSize()
+{
+	return workerPoolSize;
+}
+
+public int getWorkerMaxJobs()
+{
+	return workerMaxJobs;
+}
+
+/**
+ * @return the configured interpreter locations, <code>null</code> for the defaults
+ */
+public String getInterpreterPaths()
+{
+	return interpreterPaths;
+}
+
+public List<String> getInterpreterCandidates()
+{
+	return interpreterCandidates;
+}
+
+public String getNodeLimits()
+{
+	return nodeLimits;
+}
+
+/**
+ * @return wall-clock limit of a script in minutes, <code>0</code> for none
+ */
+public int getProcessTimeout()
+{
+	return processTimeout;
+}
+
+/**
+ * @return limit of a script without output in minutes, <code>0</code> for none
+ */
+public int getIdleTimeout()
+{
+	return idleTimeout;
+}
+
+/**
+ * @return size of the compressed output chunks in kilobytes, <code>0</code> for plain streaming
+ */
+public int getOutputChunkSize()
+{
+	return outputChunkSize;
+}
+
+/**
+ * @return milliseconds output is held back on the node at most
+ */
+public long getOutputFlushDelay()
+{
+	return outputFlushDelay;
+}
+
+public List<ScriptLibrary.Script> getLibraryScripts()
+{
+	return libraryScripts;
+}
+
+/**
+ * @return hash of the library script, <code>null</code> if there is none with the id
+ */
+public String getLibraryHash(String id)
+{
+	return libraryHashes.get(id);
+}
+
+/**
+ * Concurrent steps allowed on the node, <code>0</code> for unlimited.
+ */
+public int getNodeLimit(Node node)
+{
+	if (node == null || nodeLimitRules.isEmpty()) return 0;
+
+	List<String> labels = new ArrayList<String>();
+
+	for (LabelAtom label : node.getAssignedLabels())
+		labels.add(label.getName());
+	return NodeThrottle.limitFor(nodeLimitRules, labels);
+}
+}
+
+static String getLibraryHash(String id)
+{
+	return Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class).getSettings().getLibraryHash(id);
+}
+
+static List<ScriptLibrary.Script> getLibraryScripts()
+{
+	return Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class).getLibraryScripts();
+}
+
+/**
+ * Directory of the script cache, relative to the node root.
+ */
+private static final String SCRIPT_CACHE_DIR = "skeleton-cache";
+
+/**
+ * Control directories of durable runs, relative to the node root.
+ */
+static final String DURABLE_DIR = "skeleton-durable";
+
+/**
+ * How long a durable run waits for its node to reconnect.
+ */
+private static final long RECONNECT_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+private static final long RECONNECT_POLL_MILLIS = 5000;
+
+private static final Logger LOGGER = Logger.getLogger(Skeleton.class.getName());
+}
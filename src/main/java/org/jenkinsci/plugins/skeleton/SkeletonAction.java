@@ -1,30 +1,88 @@
-package org.jenkinsci.plugins.skeleton;
-
-import hudson.model.Action;
-
-public class SkeletonAction implements Action {
-  private final int jobNumber;
-  private final String beakerURL;
-
-  public SkeletonAction(int    jobNumber,
-                        String beakerURL) {
-    this.jobNumber = jobNumber;
-    this.beakerURL = beakerURL;
-  }
-
-  public String getIconFileName() {
-    return "/plugin/skeleton/icons/beaker24.png";
-  }
-
-  public String getDisplayName() {
-    return "Skeleton job J:" + jobNumber;
-  }
-
-  public String getUrlName() {
-    return beakerURL + "/jobs/" + jobNumber;
-  }
-
-  public int getJobNumber() {
-    return jobNumber;
-  }
-}
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.model.Action;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+@ExportedBean
+public class SkeletonAction implements Action {
+  private final int jobNumber;
+  private final String beakerURL;
+  private List<StepMetrics> steps;
+  private Map<String, String> results;
+
+  public SkeletonAction(int    jobNumber,
+                        String beakerURL) {
+    this.jobNumber = jobNumber;
+    this.beakerURL = beakerURL;
+  }
+
+  /**
+   * The action of the build, created on first use.
+   */
+  public static SkeletonAction of(Run< ? , ? >run) {
+    synchronized (run) {
+      SkeletonAction action = run.getAction(SkeletonAction.class );
+
+      if (action == null) {
+        action = new SkeletonAction(0, null);
+        run.addAction(action);
+      }
+      return action;
+    }
+  }
+
+  public String getIconFileName() {
+    return beakerURL == null ? null : "/plugin/skeleton/icons/beaker24.png";
+  }
+
+  public String getDisplayName() {
+    return beakerURL == null ? "Skeleton" : "Skeleton job J:" + jobNumber;
+  }
+
+  public String getUrlName() {
+    return beakerURL == null ? null : beakerURL + "/jobs/" + jobNumber;
+  }
+
+  @Exported
+  public int getJobNumber() {
+    return jobNumber;
+  }
+
+  public synchronized void addStep(StepMetrics metrics) {
+    if (steps == null) steps = new ArrayList<StepMetrics>();
+    steps.add(metrics);
+  }
+
+  /**
+   * Adds the values a script reported, replacing those of earlier steps.
+   */
+  public synchronized void addResults(Map<String, String> values) {
+    if (results == null) results = new LinkedHashMap<String, String>();
+    results.putAll(values);
+  }
+
+  /**
+   * Values reported by the scripts of the build through their results file.
+   */
+  @Exported
+  public synchronized Map<String, String> getResults() {
+    return results == null ? Collections.<String, String>emptyMap()
+           : new LinkedHashMap<String, String>(results);
+  }
+
+  /**
+   * Metrics of the Skeleton steps of the build, in execution order.
+   */
+  @Exported(inline = true)
+  public synchronized List<StepMetrics> getSteps() {
+    return steps == null ? Collections.<StepMetrics>emptyList()
+           : new ArrayList<StepMetrics>(steps);
+  }
+}
@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.skeleton;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import hudson.EnvVars;
@@ -11,11 +12,22 @@ import hudson.model.TaskListener;
 
 @Extension
 public class SkeletonEnvContributor extends EnvironmentContributor {
+  /**
+   * Prefix of the variables holding reported values, which therefore can't
+   * replace variables such as <code>PATH</code> or <code>JAVA_HOME</code>.
+   */
+  public static final String RESULT_PREFIX = "SKELETON_RESULT_";
+
   @Override
   public void buildEnvironmentFor(@SuppressWarnings("rawtypes") Run r, EnvVars envs, TaskListener listener) throws IOException, InterruptedException {
     SkeletonAction bba = r.getAction(SkeletonAction.class );
-    // TODO:  record the PID of powershell ?
-    if (bba != null)
+
+    if (bba == null) return;
+    // values the scripts of the build reported, e.g. SKELETON_RESULT_RECIPE_ID
+    for (Map.Entry<String, String> e : bba.getResults().entrySet())
+      envs.put(RESULT_PREFIX + e.getKey(), e.getValue());
+    // a build with Skeleton steps always has the action, not always a Beaker job
+    if (bba.getJobNumber() > 0)
       try {
         envs.put("BEAKER_JOB_ID", String.valueOf(bba.getJobNumber()));
       } catch (NumberFormatException e) {
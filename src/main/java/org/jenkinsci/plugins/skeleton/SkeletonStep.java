@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins.skeleton;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.inject.Inject;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Pipeline step running a script like {@link Skeleton}, inside a
+ * <code>node</code> block. The step doesn't hold a thread while the script
+ * runs: the job is prepared and launched on a pooled thread, then the
+ * script is asked whether it exited on a timer until it did.
+ */
+public class SkeletonStep extends AbstractStepImpl {
+  private final JobSource jobSource;
+  private final boolean keepScript;
+  private final boolean cacheScript;
+  private final boolean warmRunner;
+  private final boolean durable;
+
+  @DataBoundConstructor
+  public SkeletonStep(JobSource jobSource, boolean keepScript, boolean cacheScript, boolean warmRunner,
+                      boolean durable) {
+    this.jobSource   = jobSource;
+    this.keepScript  = keepScript;
+    this.cacheScript = cacheScript;
+    this.warmRunner  = warmRunner;
+    this.durable     = durable;
+  }
+
+  public JobSource getJobSource() {
+    return jobSource;
+  }
+
+  public boolean isKeepScript() {
+    return keepScript;
+  }
+
+  public boolean isCacheScript() {
+    return cacheScript;
+  }
+
+  public boolean isWarmRunner() {
+    return warmRunner;
+  }
+
+  public boolean isDurable() {
+    return durable;
+  }
+
+  Skeleton toBuilder() {
+    return new Skeleton(jobSource, false, keepScript, cacheScript, warmRunner, durable);
+  }
+
+  public static final class Execution extends AbstractStepExecutionImpl {
+    @Inject
+    private transient SkeletonStep step;
+    @StepContextParameter
+    private transient Run<?, ?> run;
+    @StepContextParameter
+    private transient FilePath workspace;
+    @StepContextParameter
+    private transient Launcher launcher;
+    @StepContextParameter
+    private transient TaskListener listener;
+    private transient volatile Skeleton.Launch launch;
+
+    @Override
+    public boolean start() throws Exception {
+      launch = step.toBuilder().new Launch(run, workspace, JobSource.nodeOf(workspace), listener);
+      // preparing the job and waiting for a slot on the node may block
+      Computer.threadPoolForRemoting.submit(new Runnable() {
+        public void run() {
+          try {
+            launch.start(launcher);
+          } catch (Throwable t) {
+            complete(t);
+            return;
+          }
+          check();
+        }
+      });
+      return false;
+    }
+
+    /**
+     * Completes the step once the script exited, asks again later otherwise.
+     */
+    private void check() {
+      try {
+        if (!launch.isDone()) {
+          Timer.get().schedule(new Runnable() {
+            public void run() {
+              Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                  check();
+                }
+              });
+            }
+          }, Math.max(launch.getPollMillis(), MIN_CHECK_MILLIS), TimeUnit.MILLISECONDS);
+          return;
+        }
+      } catch (Exception e) {
+        // the same failure is reported when waiting for the script
+        LOGGER.log(Level.FINE, "Failed to poll the script of " + run, e);
+      }
+      complete(null);
+    }
+
+    private void complete(Throwable failure) {
+      try {
+        boolean passed = launch.finish();
+
+        if (failure != null) {
+          getContext().onFailure(failure);
+        } else if (passed) {
+          getContext().onSuccess(null);
+        } else {
+          getContext().onFailure(new AbortException("Skeleton script failed"));
+        }
+      } catch (Throwable t) {
+        getContext().onFailure(failure != null ? failure : t);
+      }
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+      Skeleton.Launch l = launch;
+
+      // the pending check finishes the launch
+      if (l != null) l.cancel();
+      getContext().onFailure(cause);
+    }
+
+    @Override
+    public void onResume() {
+      // a durable script is collected into the build log once it exited
+      getContext().onFailure(new AbortException("Skeleton step can't resume after a restart"));
+    }
+
+    private static final long MIN_CHECK_MILLIS = 100;
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Extension(optional = true)
+  public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+    public DescriptorImpl() {
+      super(Execution.class);
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "skeleton";
+    }
+
+    @Override
+    public String getDisplayName() {
+      return "Run a Skeleton script";
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(SkeletonStep.class.getName());
+}
@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Percentile trends of Skeleton step durations, read from the {@link TrendStore}
+ * of a job without loading its builds:
+ * <code>/skeleton-trends/query?job=FULL_NAME&amp;series=node-NAME&amp;hours=48</code>.
+ * <p>
+ * The series default to <code>job</code>, the available ones are listed in the response.
+ */
+@Extension
+public class SkeletonTrendsAction implements RootAction {
+  public static final int DEFAULT_HOURS = 24;
+
+  public String getIconFileName() {
+    return null;
+  }
+
+  public String getDisplayName() {
+    return "Skeleton trends";
+  }
+
+  public String getUrlName() {
+    return "skeleton-trends";
+  }
+
+  public void doQuery(StaplerResponse rsp,
+                      @QueryParameter String job,
+                      @QueryParameter String series,
+                      @QueryParameter int hours) throws IOException {
+    Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+    // jobs the user can't see are not found, so their names don't leak
+    Job< ? , ? >item = job == null ? null : Jenkins.getInstance().getItemByFullName(job, Job.class );
+
+    if (item == null) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job: " + job);
+      return;
+    }
+    // the trend files are read directly, not through anything checking permissions
+    item.checkPermission(Item.READ);
+    if (series == null || series.length() == 0) series = "job";
+    if (hours <= 0) hours = DEFAULT_HOURS;
+
+    JSONArray buckets = new JSONArray();
+
+    for (TrendStore.Bucket b : TrendStore.of(item, series).query(System.currentTimeMillis(), hours)) {
+      JSONObject o = new JSONObject();
+
+      o.put("start", b.getStart());
+      o.put("count", b.getCount());
+      o.put("p50", b.percentile(50));
+      o.put("p95", b.percentile(95));
+      o.put("p99", b.percentile(99));
+      buckets.add(o);
+    }
+
+    JSONObject result = new JSONObject();
+
+    result.put("job", item.getFullName());
+    result.put("series", series);
+    result.put("available", listSeries(item));
+    result.put("buckets", buckets);
+
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.getWriter().print(result.toString());
+  }
+
+  private static JSONArray listSeries(Job< ? , ? >job) {
+    JSONArray names = new JSONArray();
+    String[] files  = TrendStore.directory(job).list();
+
+    if (files != null) {
+      Arrays.sort(files);
+      for (String f : files)
+        if (f.endsWith(".bin")) names.add(f.substring(0, f.length() - 4));
+    }
+    return names;
+  }
+}
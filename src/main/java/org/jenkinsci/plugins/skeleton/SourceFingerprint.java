@@ -0,0 +1,189 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * What a workspace script looked like when it was last expanded into the
+ * script cache of a node, one record per job and script kept next to the
+ * cache. An unchanged script whose referenced variables still have the
+ * same values is neither read nor expanded again.
+ * <p>
+ * Size and modification time are compared first, the content digest only
+ * when the script was touched, e.g. by a checkout. Runs on the node.
+ */
+final class SourceFingerprint {
+  static final String DIRECTORY = "fingerprints";
+
+  private final File file;
+  private long size = -1;
+  private long lastModified;
+  private String digest;
+  private List<String> names = Collections.emptyList();
+  private String valuesKey;
+  private String artifact;
+
+  private SourceFingerprint(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Record of the script for the job, empty if there is none yet.
+   */
+  static SourceFingerprint load(ScriptCache cache, String jobName, File source) {
+    String id = ScriptCache.keyOf((jobName != null ? jobName : "") + '\n' + source.getAbsolutePath());
+    SourceFingerprint fp = new SourceFingerprint(
+      new File(new File(cache.getRoot().getRemote(), DIRECTORY), id + ".properties"));
+
+    if (fp.file.isFile()) {
+      Properties p = new Properties();
+
+      try {
+        InputStream in = new FileInputStream(fp.file);
+
+        try {
+          p.load(in);
+        } finally {
+          in.close();
+        }
+        fp.size         = Long.parseLong(p.getProperty("size"));
+        fp.lastModified = Long.parseLong(p.getProperty("lastModified"));
+        fp.digest       = p.getProperty("digest");
+        fp.valuesKey    = p.getProperty("values");
+        fp.artifact     = p.getProperty("artifact");
+        fp.names        = Arrays.asList(Util.tokenize(p.getProperty("names", ""), ","));
+      } catch (IOException e) {
+        fp.artifact = null; // unreadable, expand again
+      } catch (RuntimeException e) {
+        fp.artifact = null; // damaged, expand again
+      }
+    }
+    return fp;
+  }
+
+  /**
+   * @return the previously expanded job file if the script and the values
+   *         of the variables it references are unchanged, otherwise <code>null</code>
+   */
+  File reuse(File source, Map<String, String> variables, ScriptCache cache) throws IOException {
+    if (artifact == null || digest == null || valuesKey == null) return null;
+    if (source.length() != size) return null;
+    if (source.lastModified() != lastModified) {
+      if (!digest.equals(digestOf(source))) return null;
+      // same content, remember the new time to keep the next check cheap
+      lastModified = source.lastModified();
+      save();
+    }
+    if (!valuesKey.equals(valuesKey(names, variables))) return null;
+    return cache.getLocal(artifact);
+  }
+
+  /**
+   * Like {@link #reuse(File, Map, ScriptCache)} for a script already known
+   * by its digest, e.g. one assembled by {@link ScriptIncludes}.
+   */
+  File reuse(String digest, Map<String, String> variables, ScriptCache cache) {
+    if (artifact == null || valuesKey == null || !digest.equals(this.digest)) return null;
+    if (!valuesKey.equals(valuesKey(names, variables))) return null;
+    return cache.getLocal(artifact);
+  }
+
+  /**
+   * Remembers a fresh expansion of the script.
+   *
+   * @param size         length of the script before it was read, <code>-1</code>
+   *                     to only compare the digest
+   * @param lastModified modification time of the script before it was read
+   * @param digest       digest of the content read
+   * @param names        variables referenced by the script
+   * @param artifact     cache key of the expanded job file
+   */
+  void update(long size, long lastModified, String digest, Collection<String> names,
+              Map<String, String> variables, String artifact) throws IOException {
+    this.size         = size;
+    this.lastModified = lastModified;
+    this.digest       = digest;
+    this.names        = new ArrayList<String>(names);
+    this.valuesKey    = valuesKey(this.names, variables);
+    this.artifact     = artifact;
+    save();
+  }
+
+  private void save() throws IOException {
+    Properties p = new Properties();
+
+    p.setProperty("size", Long.toString(size));
+    p.setProperty("lastModified", Long.toString(lastModified));
+    p.setProperty("digest", digest);
+    p.setProperty("names", Util.join(names, ","));
+    p.setProperty("values", valuesKey);
+    p.setProperty("artifact", artifact);
+    store(file, p);
+  }
+
+  /**
+   * Writes a record kept next to the script cache.
+   */
+  static void store(File file, Properties p) throws IOException {
+    File dir = file.getParentFile();
+
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Failed to create " + dir);
+
+    // concurrent builds of the job may update the record, replace it atomically
+    File tmp = File.createTempFile(file.getName(), ".part", dir);
+    OutputStream out = new FileOutputStream(tmp);
+
+    try {
+      p.store(out, null);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Failed to write " + file);
+      }
+    }
+  }
+
+  static String digestOf(File source) throws IOException {
+    MessageDigest md = ScriptCache.newDigest();
+    InputStream in = new FileInputStream(source);
+    byte[] buf = new byte[8192];
+    int n;
+
+    try {
+      while ((n = in.read(buf)) != -1) md.update(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return ScriptCache.toHex(md.digest());
+  }
+
+  private static String valuesKey(Collection<String> names, Map<String, String> variables) {
+    StringBuilder sb = new StringBuilder();
+
+    for (String name : names) {
+      String value = variables.get(name);
+
+      // undefined differs from any value, the macro is kept as is then
+      sb.append(name).append(value == null ? "\0" : "=" + value).append('\n');
+    }
+    return ScriptCache.keyOf(sb.toString());
+  }
+}
@@ -0,0 +1,230 @@
+package org.jenkinsci.plugins.skeleton;
+
+import java.io.Serializable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timing breakdown and output statistics of one Skeleton build step.
+ * Durations are in milliseconds.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class StepMetrics implements Serializable {
+  private final String node;
+  private final long startTime;
+  private String interpreter;
+  private boolean cached;
+  private boolean warm;
+  private long prepareMillis;
+  private long verifyMillis;
+  private long readMillis;
+  private long queueMillis;
+  private long launchMillis;
+  private long runMillis;
+  private long cleanupMillis;
+  private long totalMillis;
+  private long outputBytes;
+  private long outputLines;
+  private long errorLines;
+  private long warningLines;
+  private Integer exitCode;
+  private int pid = -1;
+  private long cpuMillis = -1;
+  private long peakRssKb = -1;
+
+  public StepMetrics(String node) {
+    this.node      = node;
+    this.startTime = System.currentTimeMillis();
+  }
+
+  /**
+   * @return milliseconds passed since <code>startNanos</code>
+   */
+  public static long since(long startNanos) {
+    return (System.nanoTime() - startNanos) / 1000000L;
+  }
+
+  void finish() {
+    totalMillis = System.currentTimeMillis() - startTime;
+  }
+
+  @Exported
+  public String getNode() {
+    return node;
+  }
+
+  @Exported
+  public long getStartTime() {
+    return startTime;
+  }
+
+  @Exported
+  public String getInterpreter() {
+    return interpreter;
+  }
+
+  void setInterpreter(String interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  @Exported
+  public boolean isCached() {
+    return cached;
+  }
+
+  void setCached(boolean cached) {
+    this.cached = cached;
+  }
+
+  @Exported
+  public boolean isWarm() {
+    return warm;
+  }
+
+  void setWarm(boolean warm) {
+    this.warm = warm;
+  }
+
+  /** creating the job file */
+  @Exported
+  public long getPrepareMillis() {
+    return prepareMillis;
+  }
+
+  void setPrepareMillis(long prepareMillis) {
+    this.prepareMillis = prepareMillis;
+  }
+
+  /** checking that the job file exists on the node */
+  @Exported
+  public long getVerifyMillis() {
+    return verifyMillis;
+  }
+
+  void setVerifyMillis(long verifyMillis) {
+    this.verifyMillis = verifyMillis;
+  }
+
+  /** reading the job file back for the log, only done with FINE logging */
+  @Exported
+  public long getReadMillis() {
+    return readMillis;
+  }
+
+  void setReadMillis(long readMillis) {
+    this.readMillis = readMillis;
+  }
+
+  /** waiting for a free slot on the node */
+  @Exported
+  public long getQueueMillis() {
+    return queueMillis;
+  }
+
+  void setQueueMillis(long queueMillis) {
+    this.queueMillis = queueMillis;
+  }
+
+  /** starting the interpreter process */
+  @Exported
+  public long getLaunchMillis() {
+    return launchMillis;
+  }
+
+  void setLaunchMillis(long launchMillis) {
+    this.launchMillis = launchMillis;
+  }
+
+  /** from the started process, or the warm worker request, to its exit */
+  @Exported
+  public long getRunMillis() {
+    return runMillis;
+  }
+
+  void setRunMillis(long runMillis) {
+    this.runMillis = runMillis;
+  }
+
+  /** deleting the job file */
+  @Exported
+  public long getCleanupMillis() {
+    return cleanupMillis;
+  }
+
+  void setCleanupMillis(long cleanupMillis) {
+    this.cleanupMillis = cleanupMillis;
+  }
+
+  @Exported
+  public long getTotalMillis() {
+    return totalMillis;
+  }
+
+  /** bytes of script output received from the node */
+  @Exported
+  public long getOutputBytes() {
+    return outputBytes;
+  }
+
+  @Exported
+  public long getOutputLines() {
+    return outputLines;
+  }
+
+  @Exported
+  public long getErrorLines() {
+    return errorLines;
+  }
+
+  @Exported
+  public long getWarningLines() {
+    return warningLines;
+  }
+
+  void setOutput(long bytes, long lines, long errors, long warnings) {
+    this.outputBytes  = bytes;
+    this.outputLines  = lines;
+    this.errorLines   = errors;
+    this.warningLines = warnings;
+  }
+
+  /**
+   * @return exit code of the script, <code>null</code> if it didn't run
+   */
+  @Exported
+  public Integer getExitCode() {
+    return exitCode;
+  }
+
+  void setExitCode(Integer exitCode) {
+    this.exitCode = exitCode;
+  }
+
+  /**
+   * @return process id of the interpreter, <code>-1</code> if unknown or warm
+   */
+  @Exported
+  public int getPid() {
+    return pid;
+  }
+
+  /** CPU time of the interpreter, <code>-1</code> where the node doesn't tell */
+  @Exported
+  public long getCpuMillis() {
+    return cpuMillis;
+  }
+
+  /** peak resident memory of the interpreter, <code>-1</code> where the node doesn't tell */
+  @Exported
+  public long getPeakRssKb() {
+    return peakRssKb;
+  }
+
+  void setProcess(int pid, long cpuMillis, long peakRssKb) {
+    this.pid       = pid;
+    this.cpuMillis = cpuMillis;
+    this.peakRssKb = peakRssKb;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
@@ -1,69 +1,113 @@
-package org.jenkinsci.plugins.skeleton;
-
-import hudson.Extension;
-import hudson.FilePath;
-import hudson.model.BuildListener;
-import hudson.model.AbstractBuild;
-import java.io.File;
-import java.io.IOException;
-import jenkins.model.Jenkins;
-import org.kohsuke.stapler.DataBoundConstructor;
-
-public class StringJobSource extends JobSource {
-  private final String jobContent;
-
-  @DataBoundConstructor
-  public StringJobSource(String jobContent) {
-    this.jobContent = jobContent;
-  }
-
-  private static String Join(String r[], String d)
-  {
-    if (r.length == 0) return "";
-
-    StringBuilder sb = new StringBuilder();
-    int i;
-
-    for (i = 0; i < r.length - 1; i++) sb.append(r[i] + d);
-    return sb.toString() + r[i];
-  }
-
-  private static String[] Push(String[] array, String push) {
-    String[] longer = new String[array.length + 1];
-    System.arraycopy(array, 0, longer, 0, array.length);
-    longer[array.length] = push;
-    return longer;
-  }
-
-  public String getJobContent() {
-    return jobContent;
-  }
-
-  /**
-   * {@inheritDoc}
-   */
-  @Override
-  public File createJobFile(AbstractBuild< ? ,
-                                           ? >build,
-                            BuildListener     listener) throws
-  InterruptedException, IOException {
-    String[] lines = null;
-    String splitPattern = "\n";
-    String joinPattern  = "\r\n";
-    lines = jobContent.split(splitPattern);
-
-    FilePath path = createDefaultJobFile(Join(Push(lines, ""), joinPattern), build, listener);
-    return new File(path.getRemote());
-  }
-
-  public DescriptorImpl getDescriptor() {
-    return (DescriptorImpl)Jenkins.getInstance().getDescriptor(getClass());
-  }
-
-  @Extension
-  public static class DescriptorImpl extends JobSourceDescriptor {
-    public String getDisplayName() {
-      return "String script source";
-    }
-  }
-}
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.skeleton.utils.ScriptTemplate;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+public class StringJobSource extends JobSource {
+  private final String jobContent;
+  private transient volatile ScriptTemplate template;
+
+  @DataBoundConstructor
+  public StringJobSource(String jobContent) {
+    this.jobContent = jobContent;
+  }
+
+  /**
+   * Converts lone <code>\n</code> line endings into <code>\r\n</code> in a
+   * single pass, leaving existing <code>\r\n</code> pairs alone. The result
+   * always ends with a line break.
+   */
+  static String toWindowsLineEndings(String content) {
+    int len    = content.length();
+    int extra  = 2;
+    int i;
+
+    for (i = content.indexOf('\n'); i >= 0; i = content.indexOf('\n', i + 1))
+      if (i == 0 || content.charAt(i - 1) != '\r') extra++;
+
+    StringBuilder sb = new StringBuilder(len + extra);
+    int start = 0;
+
+    for (i = content.indexOf('\n'); i >= 0; i = content.indexOf('\n', i + 1)) {
+      if (i == 0 || content.charAt(i - 1) != '\r') {
+        sb.append(content, start, i).append('\r');
+        start = i;
+      }
+    }
+    sb.append(content, start, len);
+    if (len == 0 || content.charAt(len - 1) != '\n') sb.append("\r\n");
+    return sb.toString();
+  }
+
+  public String getJobContent() {
+    return jobContent;
+  }
+
+  @Override
+  public String getScriptId() {
+    return scriptIdOf(jobContent);
+  }
+
+  /**
+   * The job content with Windows line endings, parsed once per instance.
+   * A changed configuration creates a new instance and thus a new template.
+   */
+  protected ScriptTemplate getTemplate() {
+    ScriptTemplate t = template;
+
+    if (t == null)
+      t = template = ScriptTemplate.compile(toWindowsLineEndings(jobContent));
+    return t;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public File createJobFile(AbstractBuild< ? ,
+                                           ? >build,
+                            BuildListener     listener) throws
+  InterruptedException, IOException {
+    return createJobFile(build, listener, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public File createJobFile(AbstractBuild< ? ,
+                                           ? >build,
+                            BuildListener     listener,
+                            ScriptCache       cache) throws
+  InterruptedException, IOException {
+    FilePath path = createDefaultJobFile(getTemplate(), build, listener, cache);
+    return new File(path.getRemote());
+  }
+
+  /**
+   * Renders the job on the controller, the node only writes it.
+   */
+  @Override
+  public FilePath.FileCallable<String> getMaterializer(Map<String, String> variables, ScriptCache cache) {
+    return new TextMaterializer(getTemplate().render(variables), cache);
+  }
+
+  public DescriptorImpl getDescriptor() {
+    return (DescriptorImpl)Jenkins.getInstance().getDescriptor(getClass());
+  }
+
+  @Extension
+  public static class DescriptorImpl extends JobSourceDescriptor {
+    public String getDisplayName() {
+      return "String script source";
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package org.jenkinsci.plugins.skeleton;
+
+import hudson.model.Job;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only duration statistics of Skeleton steps, kept next to the job
+ * so trends don't require loading build records.
+ * <p>
+ * Every series (the whole job, one node or one script) is a fixed-size
+ * binary ring file of hourly buckets. A bucket holds a logarithmic
+ * histogram of step durations, so recording a step and reading the
+ * percentiles of a bucket each touch one fixed-size record.
+ */
+public class TrendStore {
+  public static final String DIRECTORY = "skeleton-trends";
+
+  public static final long BUCKET_MILLIS = 60L * 60 * 1000;
+
+  /** two weeks of hourly buckets */
+  public static final int CAPACITY = 14 * 24;
+
+  /** bins per doubling of the duration */
+  private static final int BINS_PER_OCTAVE = 4;
+
+  /** covers up to 2^24 ms, about four and a half hours; longer steps land in the last bin */
+  public static final int BINS = 24 * BINS_PER_OCTAVE;
+
+  private static final int MAGIC = 0x534b5431; // "SKT1"
+  private static final int HEADER_SIZE = 8;
+  private static final int BUCKET_SIZE = 8 + 4 + 4 * BINS;
+
+  /**
+   * Writers of different series don't wait for each other; a series always
+   * maps to the same lock, unrelated ones rarely share one.
+   */
+  private static final Object[] LOCKS = new Object[64];
+
+  static {
+    for (int i = 0; i < LOCKS.length; i++) LOCKS[i] = new Object();
+  }
+
+  private final File file;
+
+  public TrendStore(File file) {
+    this.file = file;
+  }
+
+  public static File directory(Job< ? , ? >job) {
+    return new File(job.getRootDir(), DIRECTORY);
+  }
+
+  /**
+   * Series files of a job: <code>job</code>, <code>node-NAME</code> and <code>script-ID</code>.
+   */
+  public static TrendStore of(Job< ? , ? >job, String series) {
+    return new TrendStore(new File(directory(job), sanitize(series) + ".bin"));
+  }
+
+  /**
+   * Adds a finished step to the series of its job, node and script.
+   */
+  public static void record(Job< ? , ? >job, StepMetrics metrics, String scriptId)
+  throws IOException {
+    long time = metrics.getStartTime();
+    long duration = metrics.getTotalMillis();
+
+    of(job, "job").add(time, duration);
+    if (metrics.getNode() != null)
+      of(job, "node-" + (metrics.getNode().length() == 0 ? "master" : metrics.getNode())).add(time, duration);
+    if (scriptId != null)
+      of(job, "script-" + scriptId).add(time, duration);
+  }
+
+  static String sanitize(String name) {
+    StringBuilder sb = new StringBuilder(name.length());
+
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+
+      sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' ? c : '_');
+    }
+    return sb.toString();
+  }
+
+  static int bin(long millis) {
+    if (millis < 1) return 0;
+
+    // log2 with BINS_PER_OCTAVE steps
+    int b = (int)Math.floor(Math.log(millis) / Math.log(2) * BINS_PER_OCTAVE) + 1;
+
+    return Math.min(b, BINS - 1);
+  }
+
+  /**
+   * Upper bound of a bin in milliseconds, what percentiles are reported as.
+   */
+  static long upperBound(int bin) {
+    return bin == 0 ? 1 : (long)Math.ceil(Math.pow(2, (double)bin / BINS_PER_OCTAVE));
+  }
+
+  public void add(long time, long durationMillis) throws IOException {
+    long start = time - time % BUCKET_MILLIS;
+    int bin    = bin(durationMillis);
+
+    synchronized (lock()) {
+      RandomAccessFile raf = open(true);
+
+      try {
+        long offset = offset(start);
+        ByteBuffer bucket = read(raf, offset);
+
+        if (bucket.getLong(0) != start) {
+          // slot still holds an older bucket, start over
+          bucket = ByteBuffer.allocate(BUCKET_SIZE);
+          bucket.putLong(0, start);
+        }
+        bucket.putInt(8, bucket.getInt(8) + 1);
+        bucket.putInt(12 + 4 * bin, bucket.getInt(12 + 4 * bin) + 1);
+        raf.seek(offset);
+        raf.write(bucket.array());
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * Buckets of the last <code>hours</code> hours up to <code>now</code>,
+   * oldest first, skipping hours without steps.
+   */
+  public List<Bucket> query(long now, int hours) throws IOException {
+    List<Bucket> buckets = new ArrayList<Bucket>();
+
+    if (!file.isFile()) return buckets;
+    hours = Math.min(hours, CAPACITY);
+
+    long last = now - now % BUCKET_MILLIS;
+
+    synchronized (lock()) {
+      RandomAccessFile raf = open(false);
+
+      try {
+        for (int i = hours - 1; i >= 0; i--) {
+          long start = last - i * BUCKET_MILLIS;
+          ByteBuffer bucket = read(raf, offset(start));
+
+          if (bucket.getLong(0) == start && bucket.getInt(8) > 0)
+            buckets.add(new Bucket(bucket));
+        }
+      } finally {
+        raf.close();
+      }
+    }
+    return buckets;
+  }
+
+  private Object lock() {
+    return LOCKS[(file.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % LOCKS.length];
+  }
+
+  private RandomAccessFile open(boolean write) throws IOException {
+    if (write) {
+      File dir = file.getParentFile();
+
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+        throw new IOException("Failed to create " + dir);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r");
+
+    try {
+      if (raf.length() == 0 && write) {
+        raf.setLength(HEADER_SIZE + (long)CAPACITY * BUCKET_SIZE);
+        raf.writeInt(MAGIC);
+        raf.writeInt(BINS);
+      } else {
+        raf.seek(0);
+        if (raf.readInt() != MAGIC || raf.readInt() != BINS)
+          throw new IOException(file + " is not a Skeleton trend file of this version");
+      }
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    return raf;
+  }
+
+  private static long offset(long bucketStart) {
+    return HEADER_SIZE + (bucketStart / BUCKET_MILLIS % CAPACITY) * BUCKET_SIZE;
+  }
+
+  private static ByteBuffer read(RandomAccessFile raf, long offset) throws IOException {
+    byte[] b = new byte[BUCKET_SIZE];
+
+    raf.seek(offset);
+    raf.readFully(b);
+    return ByteBuffer.wrap(b);
+  }
+
+  /**
+   * Statistics of the steps finished within one hour.
+   */
+  public static final class Bucket {
+    private final long start;
+    private final int count;
+    private final int[] bins = new int[BINS];
+
+    Bucket(ByteBuffer b) {
+      start = b.getLong(0);
+      count = b.getInt(8);
+      for (int i = 0; i < BINS; i++) bins[i] = b.getInt(12 + 4 * i);
+    }
+
+    public long getStart() {
+      return start;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    /**
+     * @param p percentile between 0 and 100
+     * @return upper bound of the duration in milliseconds
+     */
+    public long percentile(double p) {
+      long rank = (long)Math.ceil(p / 100 * count);
+      long seen = 0;
+
+      for (int i = 0; i < BINS; i++) {
+        seen += bins[i];
+        if (seen >= rank && seen > 0) return upperBound(i);
+      }
+      return upperBound(BINS - 1);
+    }
+  }
+}
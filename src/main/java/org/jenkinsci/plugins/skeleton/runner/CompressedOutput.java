@@ -0,0 +1,272 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import hudson.remoting.RemoteOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transport for high-volume script output. On the node, the output is
+ * collected into chunks of at most a configured size, sent at the latest
+ * a configured delay after their first byte, and deflated. The controller
+ * inflates them into the stream the output was exported for.
+ * <p>
+ * Chunks travel through a {@link RemoteOutputStream}, whose window blocks
+ * the writer on the node while the controller falls behind.
+ */
+public final class CompressedOutput {
+  private CompressedOutput() {
+  }
+
+  /**
+   * Wraps the stream for sending to a node, e.g. as the output of a
+   * {@link SupervisedRun}.
+   *
+   * @param chunkSize   bytes collected at most before a chunk is sent
+   * @param flushMillis time after the first byte of a chunk it is sent at the latest
+   */
+  public static OutputStream export(OutputStream target, int chunkSize, long flushMillis) {
+    return new Sender(new RemoteOutputStream(new Receiver(target)), chunkSize, flushMillis);
+  }
+
+  private static final ScheduledExecutorService FLUSHER =
+    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Skeleton output flusher");
+
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  /**
+   * Collects and deflates the output on the node. Each chunk is written as
+   * its deflated length, its original length and the deflated bytes.
+   */
+  static final class Sender extends OutputStream implements Serializable {
+    private final OutputStream out;
+    private final int chunkSize;
+    private final long flushMillis;
+    private transient byte[] buf;
+    private transient byte[] deflated;
+    private transient Deflater deflater;
+    private transient int count;
+    private transient ScheduledFuture< ? > pendingFlush;
+    private transient boolean closed;
+
+    Sender(OutputStream out, int chunkSize, long flushMillis) {
+      this.out         = out;
+      this.chunkSize   = chunkSize;
+      this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Allocates on first use, on the node; the instance created on the
+     * controller is only sent.
+     */
+    private void init() throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      if (deflater != null) return;
+      buf      = new byte[chunkSize];
+      // deflating never grows a chunk by more than this
+      deflated = new byte[chunkSize + chunkSize / 1000 + 64];
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      init();
+      while (len > 0) {
+        int n = Math.min(len, buf.length - count);
+
+        System.arraycopy(b, off, buf, count, n);
+        if (count == 0) scheduleFlush();
+        count += n;
+        off   += n;
+        len   -= n;
+        if (count == buf.length) send();
+      }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      send();
+      out.flush();
+    }
+
+    /**
+     * Sends what is left and releases the deflater, also closing the stream
+     * on the controller.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      try {
+        send();
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+          deflater = null;
+        }
+        closed = true;
+        out.close();
+      }
+    }
+
+    private void send() throws IOException {
+      if (pendingFlush != null) {
+        pendingFlush.cancel(false);
+        pendingFlush = null;
+      }
+      if (count == 0) return;
+      deflater.reset();
+      deflater.setInput(buf, 0, count);
+      deflater.finish();
+
+      int n = 0;
+
+      while (!deflater.finished()) n += deflater.deflate(deflated, n, deflated.length - n);
+
+      byte[] header = new byte[8];
+
+      putInt(header, 0, n);
+      putInt(header, 4, count);
+      out.write(header);
+      out.write(deflated, 0, n);
+      count = 0;
+    }
+
+    private void scheduleFlush() {
+      if (flushMillis <= 0 || pendingFlush != null) return;
+      pendingFlush = FLUSHER.schedule(new Runnable() {
+        public void run() {
+          try {
+            synchronized (Sender.this) {
+              pendingFlush = null;
+              send();
+            }
+          } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to send buffered output", e);
+          }
+        }
+      }, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+      b[off]     = (byte)(v >>> 24);
+      b[off + 1] = (byte)(v >>> 16);
+      b[off + 2] = (byte)(v >>> 8);
+      b[off + 3] = (byte)v;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Inflates the chunks on the controller. The remote stream may split or
+   * join writes, so the chunks are reassembled from a byte stream.
+   */
+  static final class Receiver extends OutputStream {
+    private final OutputStream target;
+    private final Inflater inflater = new Inflater();
+    private final byte[] header = new byte[8];
+    private int headerCount;
+    private byte[] chunk;
+    private int chunkCount;
+    private byte[] inflated = new byte[0];
+
+    Receiver(OutputStream target) {
+      this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n;
+
+        if (chunk == null) {
+          n = Math.min(len, header.length - headerCount);
+          System.arraycopy(b, off, header, headerCount, n);
+          headerCount += n;
+          if (headerCount == header.length) {
+            chunk      = new byte[getInt(header, 0)];
+            chunkCount = 0;
+          }
+        } else {
+          n = Math.min(len, chunk.length - chunkCount);
+          System.arraycopy(b, off, chunk, chunkCount, n);
+          chunkCount += n;
+        }
+        off += n;
+        len -= n;
+        if (chunk != null && chunkCount == chunk.length) inflate();
+      }
+    }
+
+    private void inflate() throws IOException {
+      int length = getInt(header, 4);
+
+      if (inflated.length < length) inflated = new byte[length];
+      inflater.reset();
+      inflater.setInput(chunk);
+      try {
+        int n = 0;
+
+        while (n < length && !inflater.finished()) {
+          int k = inflater.inflate(inflated, n, length - n);
+
+          if (k == 0 && inflater.needsInput()) throw new DataFormatException("truncated");
+          n += k;
+        }
+        target.write(inflated, 0, n);
+      } catch (DataFormatException e) {
+        throw new IOException("Damaged output chunk: " + e.getMessage());
+      } finally {
+        chunk       = null;
+        headerCount = 0;
+      }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      target.flush();
+    }
+
+    /**
+     * Releases the inflater, leaving the target open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      try {
+        target.flush();
+      } finally {
+        inflater.end();
+      }
+    }
+
+    private static int getInt(byte[] b, int off) {
+      return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(CompressedOutput.class.getName());
+}
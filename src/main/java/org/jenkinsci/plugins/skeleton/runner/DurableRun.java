@@ -0,0 +1,715 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import hudson.Util;
+import hudson.remoting.Callable;
+import hudson.remoting.RequestAbortedException;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the interpreter detached from the agent, so that it outlives the
+ * channel it was started through. A wrapper script on the node sends the
+ * output to a log file and writes the exit code into a marker file once
+ * the interpreter exited, both in a control directory of the run.
+ * <p>
+ * The controller doesn't hold a stream open while the script runs, it
+ * polls the log from the byte offset it got to. When the channel breaks it
+ * asks its {@link Connector} for a new one and carries on from that offset.
+ * <p>
+ * The control directory also records who started the run, the cookie of
+ * its processes and the offset copied so far. A run whose controller went
+ * away, e.g. with a restart, keeps running and is picked up from there by
+ * {@link #collect} or stopped by {@link #kill}.
+ */
+public class DurableRun {
+  static final String LOG       = "output.log";
+  static final String EXIT_CODE = "exit-code";
+  static final String RESULTS   = "results";
+  static final String OWNER     = "owner";
+  static final String COOKIE    = "cookie";
+  static final String COPIED    = "copied";
+
+  /** bytes sent back by a single poll at most */
+  static final int MAX_CHUNK = 256 * 1024;
+
+  private static final long MIN_POLL_MILLIS = 100;
+  private static final long MAX_POLL_MILLIS = 2000;
+  /** how long stopping after an interrupt may take, the node may be gone */
+  static final long STOP_WAIT_MILLIS = 30 * 1000;
+
+  /** control directories of the runs this JVM polls */
+  private static final Set<String> ACTIVE = new HashSet<String>();
+  /** runs that could not be stopped, by control directory, with their cookie */
+  private static final Map<String, String> ABANDONED = new HashMap<String, String>();
+
+  private final String[] cmd;
+  private final String pwd;
+  private final Map<String, String> env;
+  private final String controlDir;
+  private final String owner;
+  private final String cookie = UUID.randomUUID().toString();
+  private long offset;
+  private int reconnects;
+  private Connector connector;
+  private VirtualChannel channel;
+  private long timeoutMillis;
+  private long idleMillis;
+  private long start;
+  private long lastOutput;
+  private long backoff;
+  private long next;
+  private int pid = -1;
+  private String timedOut;
+  private VirtualChannel stopped;
+  private Chunk chunk;
+
+  /**
+   * @param controlDir directory on the node for the log and the markers of
+   *                   this run, created on start and deleted once it ended
+   * @param owner      recorded for whoever collects the run after a restart,
+   *                   e.g. the externalizable id of the build
+   */
+  public DurableRun(String[] cmd, String pwd, Map<String, String> env, String controlDir, String owner) {
+    this.cmd        = cmd;
+    this.pwd        = pwd;
+    this.env        = env;
+    this.controlDir = controlDir;
+    this.owner      = owner;
+  }
+
+  /**
+   * Provides the channel to the node the run was started on.
+   */
+  public interface Connector {
+    /**
+     * Called before the first call and whenever the channel broke.
+     *
+     * @param broken why the last channel could not be used, <code>null</code> at first
+     * @throws IOException once waiting for the node is given up
+     */
+    VirtualChannel connect(IOException broken) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Starts the script and copies its output into <code>out</code> until it
+   * exited. When interrupted, the processes of the run are killed.
+   *
+   * @param timeoutMillis wall-clock limit of the run, <code>0</code> for none
+   * @param idleMillis    longest time without output, <code>0</code> for none
+   */
+  public Result run(Connector connector, OutputStream out, long timeoutMillis, long idleMillis)
+  throws IOException, InterruptedException {
+    start(connector, timeoutMillis, idleMillis);
+    try {
+      while (!poll(out)) Thread.sleep(getPollMillis());
+      return finish(out);
+    } catch (InterruptedException e) {
+      cancel();
+
+      InterruptedIOException ie = new InterruptedIOException("Interrupted, processes of " + pid + " killed");
+
+      ie.initCause(e);
+      throw ie;
+    } finally {
+      inactive();
+    }
+  }
+
+  /**
+   * Starts the script without waiting for it, for callers that schedule
+   * {@link #poll} themselves and call {@link #finish} once it returned
+   * <code>true</code>, or {@link #cancel}.
+   */
+  public void start(Connector connector, long timeoutMillis, long idleMillis)
+  throws IOException, InterruptedException {
+    synchronized (ACTIVE) {
+      ACTIVE.add(controlDir);
+    }
+
+    boolean started = false;
+
+    try {
+      this.connector     = connector;
+      this.channel       = connector.connect(null);
+      this.timeoutMillis = timeoutMillis;
+      this.idleMillis    = idleMillis;
+      this.start         = System.nanoTime();
+      this.pid           = channel.call(new Start(cmd, pwd, env, controlDir, cookie, owner));
+      this.lastOutput    = start;
+      this.backoff       = MIN_POLL_MILLIS;
+      started            = true;
+    } finally {
+      if (!started) inactive();
+    }
+  }
+
+  /**
+   * Copies what the script wrote since the last poll into <code>out</code>,
+   * and kills its processes once it exceeded its limits.
+   *
+   * @return whether the script exited, otherwise poll again after {@link #getPollMillis}
+   */
+  public boolean poll(OutputStream out) throws IOException, InterruptedException {
+    chunk    = call(new Poll(controlDir, offset));
+    long now = System.nanoTime();
+
+    if (chunk.bytes.length > 0) {
+      out.write(chunk.bytes);
+      offset     = chunk.offset;
+      lastOutput = now;
+      backoff    = MIN_POLL_MILLIS;
+    }
+    if (chunk.exitCode != null) return true;
+    if (timedOut == null) {
+      if (timeoutMillis > 0 && now - start >= timeoutMillis * 1000000L) {
+        timedOut = "exceeded the timeout of " + timeoutMillis / 1000 + " s";
+      } else if (idleMillis > 0 && now - lastOutput >= idleMillis * 1000000L) {
+        timedOut = "wrote no output for " + idleMillis / 1000 + " s";
+      }
+    }
+    if (timedOut != null && stopped != channel) {
+      // again after reattaching, the exit code is there with the next poll
+      call(new Stop(controlDir, cookie));
+      stopped = channel;
+      next    = 0;
+    } else if (chunk.bytes.length < MAX_CHUNK) {
+      next    = backoff;
+      backoff = Math.min(backoff * 2, MAX_POLL_MILLIS);
+    } else {
+      // a full chunk means more is waiting
+      next = 0;
+    }
+    return false;
+  }
+
+  /**
+   * @return how long to wait before the next {@link #poll}
+   */
+  public long getPollMillis() {
+    return next;
+  }
+
+  /**
+   * Collects the outcome of the exited script and deletes the control directory.
+   */
+  public Result finish(OutputStream out) throws IOException, InterruptedException {
+    try {
+      out.flush();
+
+      Finish.Values values = call(new Finish(controlDir));
+
+      return new Result(chunk.exitCode, chunk.marker, pid, timedOut, reconnects, values.values,
+                        values.skipped);
+    } finally {
+      inactive();
+    }
+  }
+
+  /**
+   * Kills the processes on the channel at hand, without waiting for a
+   * broken one to come back. What can't be stopped in time is left to
+   * {@link #kill}.
+   */
+  public void cancel() {
+    try {
+      stop(new Stop(controlDir, cookie));
+      stop(new Finish(controlDir));
+    } catch (Exception e) {
+      synchronized (ABANDONED) {
+        ABANDONED.put(controlDir, cookie);
+      }
+      LOGGER.log(Level.WARNING, "Failed to stop the processes of " + controlDir
+                 + ", killing them once the node is back", e);
+    } finally {
+      inactive();
+    }
+  }
+
+  private void inactive() {
+    synchronized (ACTIVE) {
+      ACTIVE.remove(controlDir);
+    }
+  }
+
+  /**
+   * @return whether a run of this JVM polls the control directory
+   */
+  public static boolean isActive(String controlDir) {
+    synchronized (ACTIVE) {
+      return ACTIVE.contains(controlDir);
+    }
+  }
+
+  /**
+   * @return whether the processes of the run are to be killed, as stopping
+   *         them after an interrupt failed
+   */
+  public static boolean isAbandoned(String controlDir) {
+    synchronized (ABANDONED) {
+      return ABANDONED.containsKey(controlDir);
+    }
+  }
+
+  /**
+   * @return who started the run in the control directory, <code>null</code> if not recorded
+   */
+  public static String ownerOf(VirtualChannel channel, String controlDir)
+  throws IOException, InterruptedException {
+    return channel.call(new Read(controlDir, OWNER));
+  }
+
+  /**
+   * Copies what the controller of an exited run didn't get to into
+   * <code>out</code>, and deletes its control directory.
+   *
+   * @return <code>null</code> while the run is still running
+   */
+  public static Result collect(VirtualChannel channel, String controlDir, OutputStream out)
+  throws IOException, InterruptedException {
+    String copied = channel.call(new Read(controlDir, COPIED));
+    Chunk chunk;
+
+    if (channel.call(new Read(controlDir, EXIT_CODE)) == null) return null;
+
+    long offset = copied != null ? Long.parseLong(copied) : 0;
+
+    do {
+      chunk = channel.call(new Poll(controlDir, offset));
+      out.write(chunk.bytes);
+      offset = chunk.offset;
+    } while (chunk.exitCode == null);
+    out.flush();
+
+    Finish.Values values = channel.call(new Finish(controlDir));
+
+    return new Result(chunk.exitCode, chunk.marker, -1, null, 0, values.values, values.skipped);
+  }
+
+  /**
+   * Kills the processes of a run nobody polls anymore and deletes its
+   * control directory.
+   */
+  public static void kill(VirtualChannel channel, String controlDir)
+  throws IOException, InterruptedException {
+    String cookie;
+
+    synchronized (ABANDONED) {
+      cookie = ABANDONED.get(controlDir);
+    }
+    if (cookie == null) cookie = channel.call(new Read(controlDir, COOKIE));
+    if (cookie != null) channel.call(new Stop(controlDir, cookie));
+    channel.call(new Finish(controlDir));
+    synchronized (ABANDONED) {
+      ABANDONED.remove(controlDir);
+    }
+  }
+
+  /**
+   * @return bytes of the log copied so far, where polling continues
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Calls on the node, reattaching as often as the channel breaks. All calls
+   * after the start can be repeated.
+   */
+  private <V> V call(Callable<V, IOException> callable) throws IOException, InterruptedException {
+    while (true) {
+      try {
+        return channel.call(callable);
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        reconnect(e);
+      } catch (RequestAbortedException e) {
+        reconnect(new IOException(e));
+      }
+    }
+  }
+
+  private void reconnect(IOException broken) throws IOException, InterruptedException {
+    reconnects++;
+    LOGGER.log(Level.FINE, "Lost the channel, reattaching at " + offset + " of " + controlDir, broken);
+    channel = connector.connect(broken);
+  }
+
+  private void stop(Callable<?, IOException> callable)
+  throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    Future<?> f = channel.callAsync(callable);
+
+    try {
+      f.get(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } finally {
+      f.cancel(true);
+    }
+  }
+
+  /**
+   * Writes the wrapper script into the control directory and starts it,
+   * returning the process id of the wrapper or <code>-1</code>.
+   */
+  static final class Start implements Callable<Integer, IOException> {
+    private final String[] cmd;
+    private final String pwd;
+    private final Map<String, String> env;
+    private final String controlDir;
+    private final String cookie;
+    private final String owner;
+
+    Start(String[] cmd, String pwd, Map<String, String> env, String controlDir, String cookie,
+          String owner) {
+      this.cmd        = cmd;
+      this.pwd        = pwd;
+      this.env        = env;
+      this.controlDir = controlDir;
+      this.cookie     = cookie;
+      this.owner      = owner;
+    }
+
+    public Integer call() throws IOException {
+      File dir        = new File(controlDir);
+      boolean windows = File.pathSeparatorChar == ';';
+
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Failed to create " + dir);
+
+      write(new File(dir, COOKIE), cookie);
+      if (owner != null) write(new File(dir, OWNER), owner);
+
+      File wrapper = new File(dir, windows ? "run.cmd" : "run.sh");
+
+      write(wrapper, windows ? windowsWrapper(cmd, dir) : unixWrapper(cmd, dir));
+
+      ProcessBuilder pb = windows
+                          ? new ProcessBuilder("cmd", "/c", wrapper.getPath())
+                          : new ProcessBuilder("sh", wrapper.getPath());
+
+      pb.directory(new File(pwd));
+      pb.environment().clear();
+      pb.environment().putAll(env);
+      pb.environment().put(SupervisedRun.COOKIE, cookie);
+      pb.environment().put(ResultsFile.VARIABLE, new File(dir, RESULTS).getPath());
+
+      Process process = pb.start();
+
+      // the wrapper redirects everything itself, nothing ties it to this JVM
+      process.getOutputStream().close();
+      process.getInputStream().close();
+      process.getErrorStream().close();
+      return SupervisedRun.pidOf(process);
+    }
+
+    static String unixWrapper(String[] cmd, File dir) {
+      StringBuilder sb = new StringBuilder("trap '' HUP\n");
+
+      for (String c : cmd) sb.append(quote(c)).append(' ');
+      sb.append("> ").append(quote(new File(dir, LOG).getPath())).append(" 2>&1 < /dev/null\n");
+      // renamed, so a poll never sees a partly written exit code
+      sb.append("echo $? > ").append(quote(new File(dir, EXIT_CODE + ".tmp").getPath())).append('\n');
+      sb.append("mv ").append(quote(new File(dir, EXIT_CODE + ".tmp").getPath())).append(' ')
+      .append(quote(new File(dir, EXIT_CODE).getPath())).append('\n');
+      return sb.toString();
+    }
+
+    static String windowsWrapper(String[] cmd, File dir) {
+      StringBuilder sb = new StringBuilder("@echo off\r\n");
+
+      for (String c : cmd) sb.append('"').append(c).append("\" ");
+      sb.append("> \"").append(new File(dir, LOG).getPath()).append("\" 2>&1 < NUL\r\n");
+      // in parentheses, a single digit before > would redirect that handle instead
+      sb.append("(echo %ERRORLEVEL%)> \"").append(new File(dir, EXIT_CODE + ".tmp").getPath()).append("\"\r\n");
+      sb.append("move /y \"").append(new File(dir, EXIT_CODE + ".tmp").getPath()).append("\" \"")
+      .append(new File(dir, EXIT_CODE).getPath()).append("\" > NUL\r\n");
+      return sb.toString();
+    }
+
+    private static String quote(String s) {
+      return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Reads the log from an offset, and the exit code once the log is complete.
+   */
+  static final class Poll implements Callable<Chunk, IOException> {
+    private final String controlDir;
+    private final long offset;
+
+    Poll(String controlDir, long offset) {
+      this.controlDir = controlDir;
+      this.offset     = offset;
+    }
+
+    public Chunk call() throws IOException {
+      File marker = new File(controlDir, EXIT_CODE);
+      File log    = new File(controlDir, LOG);
+
+      // all before the offset made it to the controller, where collect() resumes
+      if (offset > 0) write(new File(controlDir, COPIED), String.valueOf(offset));
+      // checked first, the log doesn't grow anymore once the marker exists
+      boolean exited = marker.isFile();
+      long length    = log.length();
+      byte[] b       = new byte[(int)Math.max(0, Math.min(length - offset, MAX_CHUNK))];
+
+      if (b.length > 0) {
+        RandomAccessFile in = new RandomAccessFile(log, "r");
+
+        try {
+          in.seek(offset);
+          in.readFully(b);
+        } finally {
+          in.close();
+        }
+      }
+
+      Integer exitCode = null;
+      String bad       = null;
+
+      if (exited && offset + b.length >= length) {
+        String line = read(marker);
+
+        try {
+          if (line != null) exitCode = Integer.valueOf(line.trim());
+        } catch (NumberFormatException e) {
+          // reported, the script failed as far as anyone can tell
+        }
+        if (exitCode == null) {
+          exitCode = -1;
+          bad      = line != null ? line : "";
+        }
+      }
+      return new Chunk(b, offset + b.length, exitCode, bad);
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Reads the first line of a file in the control directory, <code>null</code> if it doesn't exist.
+   */
+  static final class Read implements Callable<String, IOException> {
+    private final String controlDir;
+    private final String name;
+
+    Read(String controlDir, String name) {
+      this.controlDir = controlDir;
+      this.name       = name;
+    }
+
+    public String call() throws IOException {
+      File f = new File(controlDir, name);
+
+      return f.isFile() ? read(f) : null;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Kills the wrapper, the interpreter and its children, found by the cookie
+   * they inherited, and writes the exit code the wrapper no longer can.
+   */
+  static final class Stop implements Callable<Void, IOException> {
+    private final String controlDir;
+    private final String cookie;
+
+    Stop(String controlDir, String cookie) {
+      this.controlDir = controlDir;
+      this.cookie     = cookie;
+    }
+
+    public Void call() throws IOException {
+      try {
+        ProcessTree.get().killAll(Collections.singletonMap(SupervisedRun.COOKIE, cookie));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while killing the processes");
+      }
+
+      File marker = new File(controlDir, EXIT_CODE);
+
+      if (!marker.isFile()) {
+        File part = new File(controlDir, EXIT_CODE + ".tmp");
+
+        write(part, "-1\n");
+        if (!part.renameTo(marker) && !marker.isFile())
+          throw new IOException("Failed to write " + marker);
+      }
+      return null;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Reads the values the script reported and deletes the control directory.
+   */
+  static final class Finish implements Callable<Finish.Values, IOException> {
+    private final String controlDir;
+
+    Finish(String controlDir) {
+      this.controlDir = controlDir;
+    }
+
+    public Values call() throws IOException {
+      File dir              = new File(controlDir);
+      ResultsFile results   = new ResultsFile(new File(dir, RESULTS));
+      Map<String, String> v = results.close();
+
+      Util.deleteRecursive(dir);
+      return new Values(v, results.getSkipped());
+    }
+
+    static final class Values implements Serializable {
+      final Map<String, String> values;
+      final int skipped;
+
+      Values(Map<String, String> values, int skipped) {
+        this.values  = values;
+        this.skipped = skipped;
+      }
+
+      private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Part of the log, sent back by a poll.
+   */
+  static final class Chunk implements Serializable {
+    final byte[] bytes;
+    final long offset;
+    final Integer exitCode;
+    /** content of an exit code marker that holds no number */
+    final String marker;
+
+    Chunk(byte[] bytes, long offset, Integer exitCode, String marker) {
+      this.bytes    = bytes;
+      this.offset   = offset;
+      this.exitCode = exitCode;
+      this.marker   = marker;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Outcome of the run.
+   */
+  public static final class Result {
+    private final int exitCode;
+    private final String badMarker;
+    private final int pid;
+    private final String timedOut;
+    private final int reconnects;
+    private final Map<String, String> values;
+    private final int skippedValues;
+
+    Result(int exitCode, String badMarker, int pid, String timedOut, int reconnects,
+           Map<String, String> values, int skippedValues) {
+      this.exitCode      = exitCode;
+      this.badMarker     = badMarker;
+      this.pid           = pid;
+      this.timedOut      = timedOut;
+      this.reconnects    = reconnects;
+      this.values        = values;
+      this.skippedValues = skippedValues;
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    /**
+     * @return what the exit code marker held when it was no number, the
+     *         exit code is <code>-1</code> then; <code>null</code> if it was fine
+     */
+    public String getBadMarker() {
+      return badMarker;
+    }
+
+    /**
+     * @return process id of the wrapper, <code>-1</code> if unknown
+     */
+    public int getPid() {
+      return pid;
+    }
+
+    /**
+     * @return why the processes were killed, <code>null</code> if the script exited by itself
+     */
+    public String getTimedOut() {
+      return timedOut;
+    }
+
+    /**
+     * @return how often polling continued on a new channel
+     */
+    public int getReconnects() {
+      return reconnects;
+    }
+
+    /**
+     * @return values reported through the results file, by name
+     */
+    public Map<String, String> getValues() {
+      return values;
+    }
+
+    /**
+     * @return number of malformed records in the results file
+     */
+    public int getSkippedValues() {
+      return skippedValues;
+    }
+  }
+
+  private static String read(File f) throws IOException {
+    BufferedReader r = new BufferedReader(new FileReader(f));
+
+    try {
+      return r.readLine();
+    } finally {
+      r.close();
+    }
+  }
+
+  private static void write(File f, String content) throws IOException {
+    Writer w = new FileWriter(f);
+
+    try {
+      w.write(content);
+    } finally {
+      w.close();
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(DurableRun.class.getName());
+}
@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * Side channel from a script back to the build. The script finds the path
+ * of the file in {@link #VARIABLE} and appends one record per line, either
+ * <code>NAME=value</code> or a JSON object of names and values. Later
+ * records override earlier ones.
+ * <p>
+ * The file is parsed on the node while the script runs, only complete lines
+ * are consumed. UTF-8 unless it starts with a UTF-16LE byte order mark, as
+ * written by Windows PowerShell.
+ */
+public class ResultsFile {
+  /** variable holding the path of the file */
+  public static final String VARIABLE = "SKELETON_RESULTS";
+
+  /** bytes read at most, the rest is ignored */
+  static final long MAX_BYTES = 1024 * 1024;
+
+  private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+
+  private final File file;
+  private final Map<String, String> values = new LinkedHashMap<String, String>();
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private Charset charset;
+  private long offset;
+  private int skipped;
+  private boolean truncated;
+
+  ResultsFile(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Creates an empty results file in the temporary directory of the node.
+   */
+  public static ResultsFile create() throws IOException {
+    return new ResultsFile(File.createTempFile("skeleton", ".results"));
+  }
+
+  public String getPath() {
+    return file.getPath();
+  }
+
+  /**
+   * Parses the lines completed since the last call.
+   */
+  public void poll() throws IOException {
+    long length = Math.min(file.length(), MAX_BYTES);
+
+    if (length <= offset) return;
+
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    byte[] b            = new byte[(int)(length - offset)];
+
+    try {
+      in.seek(offset);
+      in.readFully(b);
+    } finally {
+      in.close();
+    }
+    offset = length;
+    truncated = file.length() > MAX_BYTES;
+
+    int from = charset == null ? detectCharset(b) : 0;
+
+    pending.write(b, from, b.length - from);
+
+    byte[] p  = pending.toByteArray();
+    int width = charset == UTF16LE ? 2 : 1;
+    int start = 0;
+
+    for (int i = 0; i + width <= p.length; i += width) {
+      if (p[i] == '\n' && (width == 1 || p[i + 1] == 0)) {
+        line(p, start, i - start);
+        start = i + width;
+      }
+    }
+    pending.reset();
+    pending.write(p, start, p.length - start);
+  }
+
+  /**
+   * Reads the last, possibly unterminated record and deletes the file.
+   *
+   * @return the values by name, in the order they were first reported
+   */
+  public Map<String, String> close() throws IOException {
+    try {
+      poll();
+      if (pending.size() > 0 && !truncated) line(pending.toByteArray(), 0, pending.size());
+    } finally {
+      if (!file.delete() && file.exists())
+        LOGGER.warning("Failed to delete " + file);
+    }
+    if (truncated)
+      LOGGER.warning("Ignored the results in " + file + " beyond " + MAX_BYTES + " bytes");
+    return values;
+  }
+
+  /**
+   * @return number of records that were malformed or had invalid names
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return whether the file grew beyond {@link #MAX_BYTES}
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  private int detectCharset(byte[] b) {
+    if (b.length >= 2 && b[0] == (byte)0xFF && b[1] == (byte)0xFE) {
+      charset = UTF16LE;
+      return 2;
+    }
+    charset = UTF8;
+    return b.length >= 3 && b[0] == (byte)0xEF && b[1] == (byte)0xBB && b[2] == (byte)0xBF ? 3 : 0;
+  }
+
+  private void line(byte[] b, int from, int len) {
+    String line = new String(b, from, len, charset).trim();
+
+    if (line.length() == 0 || line.startsWith("#")) return;
+    if (line.startsWith("{")) {
+      try {
+        JSONObject o = JSONObject.fromObject(line);
+
+        for (Iterator<?> it = o.keys(); it.hasNext(); ) {
+          String name  = String.valueOf(it.next());
+          Object value = o.get(name);
+
+          put(name, value instanceof JSONNull ? "" : String.valueOf(value));
+        }
+      } catch (JSONException e) {
+        skipped++;
+      }
+      return;
+    }
+
+    int eq = line.indexOf('=');
+
+    if (eq <= 0) {
+      skipped++;
+      return;
+    }
+    put(line.substring(0, eq).trim(), line.substring(eq + 1));
+  }
+
+  private void put(String name, String value) {
+    if (!NAME.matcher(name).matches()) {
+      skipped++;
+      return;
+    }
+    values.put(name, value);
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(ResultsFile.class.getName());
+}
@@ -0,0 +1,419 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import hudson.remoting.Callable;
+import hudson.util.ProcessTree;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts the interpreter on the node the callable is sent to and watches it
+ * until it exits. The whole process tree is killed when the run exceeds its
+ * wall-clock or idle-output timeout, or when the calling thread is
+ * interrupted, e.g. by the build being aborted.
+ * <p>
+ * Every process of the run inherits a cookie variable, so children that
+ * were orphaned are found as well. Values the script reports through its
+ * {@link ResultsFile} are collected while it runs.
+ */
+public class SupervisedRun implements Callable<SupervisedRun.Result, IOException> {
+  /** variable marking all processes of one run */
+  static final String COOKIE = "SKELETON_RUN_COOKIE";
+
+  /** the first checks come quickly to catch usage of short runs */
+  private static final long MIN_POLL_MILLIS = 50;
+  private static final long MAX_POLL_MILLIS = 1000;
+
+  /** time the output is drained for once the process exited */
+  private static final long DRAIN_MILLIS = 5000;
+
+  /** time the process is given to go away once killed */
+  static final long KILL_WAIT_MILLIS = 10000;
+
+  private final String[] cmd;
+  private final String pwd;
+  private final Map<String, String> env;
+  private final OutputStream out;
+  private final OutputStream err;
+  private final long timeoutMillis;
+  private final long idleMillis;
+
+  /**
+   * @param out           remotable stream for standard output, e.g. a <code>RemoteOutputStream</code>,
+   *                      closed once the run ended
+   * @param err           remotable stream for standard error, closed as well
+   * @param timeoutMillis wall-clock limit of the run, <code>0</code> for none
+   * @param idleMillis    longest time without output, <code>0</code> for none
+   */
+  public SupervisedRun(String[] cmd, String pwd, Map<String, String> env, OutputStream out,
+                       OutputStream err, long timeoutMillis, long idleMillis) {
+    this.cmd           = cmd;
+    this.pwd           = pwd;
+    this.env           = env;
+    this.out           = out;
+    this.err           = err;
+    this.timeoutMillis = timeoutMillis;
+    this.idleMillis    = idleMillis;
+  }
+
+  public Result call() throws IOException {
+    try {
+      return supervise();
+    } finally {
+      // releases the exported streams, and a compressor's native memory
+      close(out);
+      close(err);
+    }
+  }
+
+  private Result supervise() throws IOException {
+    String cookie       = UUID.randomUUID().toString();
+    ProcessBuilder pb   = new ProcessBuilder(cmd);
+    ResultsFile results = ResultsFile.create();
+
+    pb.directory(new File(pwd));
+    pb.environment().clear();
+    pb.environment().putAll(env);
+    pb.environment().put(COOKIE, cookie);
+    pb.environment().put(ResultsFile.VARIABLE, results.getPath());
+
+    long start            = System.nanoTime();
+    final Process process = pb.start();
+    long launchMillis     = (System.nanoTime() - start) / 1000000L;
+    int pid               = pidOf(process);
+    Usage usage           = new Usage(pid);
+    final CountDownLatch exited = new CountDownLatch(1);
+
+    process.getOutputStream().close();
+
+    Pump stdout = new Pump(process.getInputStream(), out, "stdout of " + cmd[0]);
+    Pump stderr = new Pump(process.getErrorStream(), err, "stderr of " + cmd[0]);
+    Thread waiter = new Thread("Waiting for " + cmd[0]) {
+      @Override
+      public void run() {
+        try {
+          process.waitFor();
+        } catch (InterruptedException e) {
+          // only interrupted when the run is abandoned
+        }
+        exited.countDown();
+      }
+    };
+
+    waiter.setDaemon(true);
+    waiter.start();
+
+    String timedOut        = null;
+    List<Integer> leftover = Collections.emptyList();
+    long poll              = MIN_POLL_MILLIS;
+
+    try {
+      while (!exited.await(poll, TimeUnit.MILLISECONDS)) {
+        long now = System.nanoTime();
+
+        usage.sample();
+        poll(results);
+        poll = Math.min(poll * 2, MAX_POLL_MILLIS);
+        if (timeoutMillis > 0 && now - start >= timeoutMillis * 1000000L) {
+          timedOut = "exceeded the timeout of " + timeoutMillis / 1000 + " s";
+        } else if (idleMillis > 0 &&
+                   now - Math.max(stdout.lastOutput, stderr.lastOutput) >= idleMillis * 1000000L) {
+          timedOut = "wrote no output for " + idleMillis / 1000 + " s";
+        }
+        if (timedOut != null) {
+          killTree(process, cookie);
+          if (!exited.await(KILL_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            // e.g. a kill refused by the OS, the step doesn't wait any longer
+            waiter.interrupt();
+            leftover = survivors(process, cookie);
+          }
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      killTree(process, cookie);
+      waiter.interrupt();
+      results.close();
+
+      InterruptedIOException ie = new InterruptedIOException("Interrupted, process tree of " + pid + " killed");
+
+      ie.initCause(e);
+      throw ie;
+    }
+
+    long runMillis = (System.nanoTime() - start) / 1000000L - launchMillis;
+
+    try {
+      stdout.join(DRAIN_MILLIS);
+      stderr.join(DRAIN_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    out.flush();
+    err.flush();
+    return new Result(exited.getCount() == 0 ? process.exitValue() : -1, pid, timedOut, leftover,
+                      launchMillis, runMillis, usage.cpuMillis, usage.peakRssKb, results.close(),
+                      results.getSkipped());
+  }
+
+  private static void close(OutputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Failed to close the output", e);
+    }
+  }
+
+  private static void poll(ResultsFile results) {
+    try {
+      results.poll();
+    } catch (IOException e) {
+      // read again with the next poll, or when the run ends
+      LOGGER.log(Level.FINE, "Failed to read " + results.getPath(), e);
+    }
+  }
+
+  /**
+   * Kills the process, its descendants and whatever else carries the cookie.
+   */
+  private static void killTree(Process process, String cookie) {
+    try {
+      ProcessTree.get().killAll(process, Collections.singletonMap(COOKIE, cookie));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to kill the process tree", e);
+    }
+    process.destroy();
+  }
+
+  /**
+   * @return ids of the processes of the run still there, the interpreter
+   *         first if it is among them
+   */
+  private static List<Integer> survivors(Process process, String cookie) {
+    List<Integer> pids = new ArrayList<Integer>();
+    Map<String, String> mark = Collections.singletonMap(COOKIE, cookie);
+    int pid = pidOf(process);
+
+    if (pid > 0) pids.add(pid);
+    try {
+      for (ProcessTree.OSProcess p : ProcessTree.get()) {
+        if (p.getPid() != pid && p.hasMatchingEnvVars(mark)) pids.add(p.getPid());
+      }
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.FINE, "Failed to list the processes left", e);
+    }
+    return pids;
+  }
+
+  static int pidOf(Process process) {
+    try {
+      ProcessTree.OSProcess p = ProcessTree.get().get(process);
+
+      return p != null ? p.getPid() : -1;
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Copies one output stream of the process and remembers when it last wrote.
+   */
+  private static final class Pump extends Thread {
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile long lastOutput = System.nanoTime();
+
+    Pump(InputStream in, OutputStream out, String name) {
+      super(name);
+      this.in  = in;
+      this.out = out;
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      byte[] buf = new byte[8192];
+
+      try {
+        try {
+          for (int n; (n = in.read(buf)) != -1; ) {
+            lastOutput = System.nanoTime();
+            out.write(buf, 0, n);
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Stopped copying the " + getName(), e);
+      }
+    }
+  }
+
+  /**
+   * CPU time and peak memory of the interpreter, from <code>/proc</code> where
+   * available. CPU time of children counts once they exited and were waited for.
+   */
+  private static final class Usage {
+    /** USER_HZ, the unit of times in <code>/proc</code>, fixed on Linux */
+    private static final int TICKS_PER_SECOND = 100;
+
+    private final File stat;
+    private final File status;
+    private long cpuMillis = -1;
+    private long peakRssKb = -1;
+
+    Usage(int pid) {
+      File dir = new File("/proc/" + pid);
+
+      this.stat   = pid > 0 && dir.isDirectory() ? new File(dir, "stat") : null;
+      this.status = stat != null ? new File(dir, "status") : null;
+    }
+
+    void sample() {
+      if (stat == null) return;
+      try {
+        String s   = readFirstLine(stat, null);
+        // the command name in parentheses may contain blanks
+        String[] f = s.substring(s.lastIndexOf(')') + 2).split(" ");
+        long ticks = Long.parseLong(f[11]) + Long.parseLong(f[12]) +
+                     Long.parseLong(f[13]) + Long.parseLong(f[14]);
+        String hwm = readFirstLine(status, "VmHWM:");
+
+        cpuMillis = Math.max(cpuMillis, ticks * 1000 / TICKS_PER_SECOND);
+        if (hwm != null)
+          peakRssKb = Math.max(peakRssKb, Long.parseLong(hwm.replaceAll("[^0-9]", "")));
+      } catch (IOException e) {
+        // gone in the meantime, keep the last sample
+      } catch (RuntimeException e) {
+        // unexpected format, keep the last sample
+      }
+    }
+
+    private static String readFirstLine(File file, String prefix) throws IOException {
+      BufferedReader r = new BufferedReader(new FileReader(file));
+
+      try {
+        for (String line; (line = r.readLine()) != null; )
+          if (prefix == null || line.startsWith(prefix)) return line;
+        return null;
+      } finally {
+        r.close();
+      }
+    }
+  }
+
+  /**
+   * Outcome of the run, sent back to the controller.
+   */
+  public static final class Result implements Serializable {
+    private final int exitCode;
+    private final int pid;
+    private final String timedOut;
+    private final List<Integer> leftover;
+    private final long launchMillis;
+    private final long runMillis;
+    private final long cpuMillis;
+    private final long peakRssKb;
+    private final Map<String, String> values;
+    private final int skippedValues;
+
+    Result(int exitCode, int pid, String timedOut, List<Integer> leftover, long launchMillis,
+           long runMillis, long cpuMillis, long peakRssKb, Map<String, String> values, int skippedValues) {
+      this.exitCode      = exitCode;
+      this.pid           = pid;
+      this.timedOut      = timedOut;
+      this.leftover      = leftover;
+      this.launchMillis  = launchMillis;
+      this.runMillis     = runMillis;
+      this.cpuMillis     = cpuMillis;
+      this.peakRssKb     = peakRssKb;
+      this.values        = values;
+      this.skippedValues = skippedValues;
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    /**
+     * @return process id of the interpreter, <code>-1</code> if unknown
+     */
+    public int getPid() {
+      return pid;
+    }
+
+    /**
+     * @return why the process tree was killed, <code>null</code> if it exited by itself
+     */
+    public String getTimedOut() {
+      return timedOut;
+    }
+
+    /**
+     * @return ids of processes still running after the tree was killed,
+     *         <code>-1</code> is the exit code then
+     */
+    public List<Integer> getLeftover() {
+      return leftover;
+    }
+
+    public long getLaunchMillis() {
+      return launchMillis;
+    }
+
+    public long getRunMillis() {
+      return runMillis;
+    }
+
+    /**
+     * @return CPU time of the interpreter, <code>-1</code> where the OS doesn't tell
+     */
+    public long getCpuMillis() {
+      return cpuMillis;
+    }
+
+    /**
+     * @return peak resident memory of the interpreter, <code>-1</code> where the OS doesn't tell
+     */
+    public long getPeakRssKb() {
+      return peakRssKb;
+    }
+
+    /**
+     * @return values reported through the results file, by name
+     */
+    public Map<String, String> getValues() {
+      return values;
+    }
+
+    /**
+     * @return number of malformed records in the results file
+     */
+    public int getSkippedValues() {
+      return skippedValues;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(SupervisedRun.class.getName());
+
+  private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,147 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a job file on a warm worker of the node the callable is sent to.
+ * Pools live as long as the agent's channel and are stopped when it closes.
+ * A job exceeding its timeouts, or abandoned by an interrupt, kills its
+ * worker with the worker's children. Values reported through a {@link ResultsFile} are read once the job ended.
+ */
+public class WarmRun implements Callable<WarmRun.Result, IOException> {
+  private static final Set<Channel> WATCHED =
+    Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Channel, Boolean>()));
+
+  private final WorkerProtocol protocol;
+  private final String script;
+  private final String pwd;
+  private final Map<String, String> env;
+  private final OutputStream out;
+  private final int poolSize;
+  private final int maxJobs;
+  private final long timeoutMillis;
+  private final long idleMillis;
+
+  /**
+   * @param out           remotable stream, e.g. a <code>RemoteOutputStream</code>, closed once
+   *                      the job ended
+   * @param timeoutMillis wall-clock limit of the job, <code>0</code> for none
+   * @param idleMillis    longest time without output, <code>0</code> for none
+   */
+  public WarmRun(WorkerProtocol protocol, String script, String pwd, Map<String, String> env,
+                 OutputStream out, int poolSize, int maxJobs, long timeoutMillis, long idleMillis) {
+    this.protocol      = protocol;
+    this.script        = script;
+    this.pwd           = pwd;
+    this.env           = env;
+    this.out           = out;
+    this.poolSize      = poolSize;
+    this.maxJobs       = maxJobs;
+    this.timeoutMillis = timeoutMillis;
+    this.idleMillis    = idleMillis;
+  }
+
+  public Result call() throws IOException {
+    ResultsFile results      = ResultsFile.create();
+    Map<String, String> vars = new HashMap<String, String>(env);
+
+    vars.put(ResultsFile.VARIABLE, results.getPath());
+    watchChannel();
+    try {
+      int exitCode = WorkerPool.get(protocol, poolSize, maxJobs)
+                     .run(script, pwd, vars, out, timeoutMillis, idleMillis);
+
+      return new Result(exitCode, null, results.close(), results.getSkipped());
+    } catch (Worker.TimeoutException e) {
+      return new Result(-1, e.getMessage(), results.close(), results.getSkipped());
+    } catch (IOException e) {
+      results.close();
+      throw e;
+    } catch (InterruptedException e) {
+      results.close();
+
+      InterruptedIOException ie = new InterruptedIOException("Interrupted, the worker was killed if it had the job");
+
+      ie.initCause(e);
+      throw ie;
+    } finally {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Failed to close the output", e);
+      }
+    }
+  }
+
+  private static void watchChannel() {
+    Channel channel = Channel.current();
+
+    if (channel == null || !WATCHED.add(channel)) return;
+    channel.addListener(new Channel.Listener() {
+      @Override
+      public void onClosed(Channel c, IOException cause) {
+        WorkerPool.shutdownAll();
+      }
+    });
+  }
+
+  /**
+   * Exit code and reported values of the job.
+   */
+  public static final class Result implements Serializable {
+    private final int exitCode;
+    private final String timedOut;
+    private final Map<String, String> values;
+    private final int skippedValues;
+
+    Result(int exitCode, String timedOut, Map<String, String> values, int skippedValues) {
+      this.exitCode      = exitCode;
+      this.timedOut      = timedOut;
+      this.values        = values;
+      this.skippedValues = skippedValues;
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    /**
+     * @return why the worker was killed, <code>null</code> if the job finished
+     */
+    public String getTimedOut() {
+      return timedOut;
+    }
+
+    /**
+     * @return values reported through the results file, by name
+     */
+    public Map<String, String> getValues() {
+      return values;
+    }
+
+    /**
+     * @return number of malformed records in the results file
+     */
+    public int getSkippedValues() {
+      return skippedValues;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(WarmRun.class.getName());
+}
@@ -0,0 +1,355 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import hudson.util.ProcessTree;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.skeleton.utils.ScriptOutputAnnotator;
+
+/**
+ * One long-lived interpreter process. Jobs are written to its standard
+ * input, its merged output is copied until the end-of-job marker shows up.
+ * Not thread safe, a worker is owned by one job at a time through
+ * {@link WorkerPool}.
+ * <p>
+ * The output is read by a separate thread, so the job can be given up when
+ * it exceeds its timeouts or the caller is interrupted. The worker is
+ * killed with its children then and must not be reused.
+ */
+public class Worker {
+  /** longest time a health check may take */
+  static final long PING_MILLIS = 30000;
+
+  /** bytes of a line held at most while looking for the marker */
+  static final int MAX_LINE = ScriptOutputAnnotator.MAX_LINE;
+
+  private static final long MIN_POLL_MILLIS = 50;
+  private static final long MAX_POLL_MILLIS = 1000;
+
+  private final WorkerProtocol protocol;
+  private final Process process;
+  private final Writer stdin;
+  private final InputStream stdout;
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+  private int jobs;
+  private volatile boolean broken;
+  /** bytes read from the process, only written by the reading thread */
+  private volatile long received;
+
+  Worker(WorkerProtocol protocol, File home) throws IOException {
+    this.protocol = protocol;
+    ProcessBuilder pb = new ProcessBuilder(protocol.command());
+
+    pb.redirectErrorStream(true);
+    if (home != null) pb.directory(home);
+    this.process = pb.start();
+    this.stdin   = new OutputStreamWriter(process.getOutputStream(), WorkerProtocol.ENCODING);
+    this.stdout  = new BufferedInputStream(process.getInputStream());
+
+    String init = protocol.init();
+
+    if (init != null) send(init);
+  }
+
+  /**
+   * Runs a script and copies its output to <code>out</code>.
+   *
+   * @param timeoutMillis wall-clock limit of the job, <code>0</code> for none
+   * @param idleMillis    longest time without output, <code>0</code> for none
+   * @return exit code of the script
+   * @throws TimeoutException     if the job took too long, the worker was killed
+   * @throws IOException          if the worker died, it must not be reused then
+   * @throws InterruptedException if interrupted, the worker was killed
+   */
+  public int run(String script, String pwd, Map<String, String> env, OutputStream out,
+                 long timeoutMillis, long idleMillis) throws IOException, InterruptedException {
+    String marker = newMarker();
+
+    jobs++;
+    send(protocol.job(script, pwd, env, marker));
+    return watch(marker, out, timeoutMillis, idleMillis);
+  }
+
+  /**
+   * Health check: the process is alive and still answers in time.
+   */
+  public boolean ping() throws InterruptedException {
+    if (broken || !isAlive()) return false;
+    try {
+      String marker = newMarker();
+
+      send(protocol.ping(marker));
+      return watch(marker, null, PING_MILLIS, 0) == 0;
+    } catch (IOException e) {
+      LOGGER.fine("Worker failed the health check: " + e.getMessage());
+      return false;
+    }
+  }
+
+  public int getJobs() {
+    return jobs;
+  }
+
+  public boolean isBroken() {
+    return broken;
+  }
+
+  public boolean isAlive() {
+    try {
+      process.exitValue();
+      return false;
+    } catch (IllegalThreadStateException e) {
+      return true;
+    }
+  }
+
+  public void destroy() {
+    broken = true;
+    try {
+      stdin.close();
+    } catch (IOException e) {
+      // the process is going away anyway
+    }
+    process.destroy();
+  }
+
+  /**
+   * Destroys the worker together with whatever the job started.
+   */
+  private void kill() {
+    broken = true;
+    try {
+      ProcessTree.get().killAll(process, null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to kill the process tree of a worker", e);
+    }
+    destroy();
+  }
+
+  private void send(String command) throws IOException {
+    try {
+      stdin.write(command);
+      stdin.write('\n');
+      stdin.flush();
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the reading thread to see the marker, kills the worker if the
+   * job exceeds its limits or the caller is interrupted.
+   */
+  private int watch(String marker, OutputStream out, long timeoutMillis, long idleMillis)
+  throws IOException, InterruptedException {
+    Reader reader   = new Reader(marker, out);
+    long start      = System.nanoTime();
+    long lastOutput = start;
+    long seen       = received;
+    long poll       = MIN_POLL_MILLIS;
+
+    try {
+      while (!reader.done.await(poll, TimeUnit.MILLISECONDS)) {
+        long now = System.nanoTime();
+
+        poll = Math.min(poll * 2, MAX_POLL_MILLIS);
+        if (received != seen) {
+          seen       = received;
+          lastOutput = now;
+        }
+        if (timeoutMillis > 0 && now - start >= timeoutMillis * 1000000L) {
+          reader.abandon();
+          kill();
+          throw new TimeoutException("exceeded the timeout of " + timeoutMillis / 1000 + " s");
+        }
+        if (idleMillis > 0 && now - lastOutput >= idleMillis * 1000000L) {
+          reader.abandon();
+          kill();
+          throw new TimeoutException("wrote no output for " + idleMillis / 1000 + " s");
+        }
+      }
+    } catch (InterruptedException e) {
+      reader.abandon();
+      kill();
+      throw e;
+    }
+    if (reader.failure != null) throw reader.failure;
+    return reader.exitCode;
+  }
+
+  private int awaitMarker(String marker, OutputStream out) throws IOException {
+    byte[] m = marker.getBytes("US-ASCII");
+
+    while (true) {
+      line.reset();
+
+      int c;
+      boolean cut = false;
+
+      while ((c = stdout.read()) != -1) {
+        received++;
+        line.write(c);
+        if (c == '\n') break;
+        if (line.size() >= MAX_LINE && !cut) cut = forward(m, out);
+      }
+      if (line.size() == 0) {
+        broken = true;
+        throw new IOException("Worker exited with " + (isAlive() ? "?" : process.exitValue())
+                              + " before the job finished");
+      }
+
+      byte[] b = line.toByteArray();
+      int at = indexOf(b, m);
+
+      if (at < 0) {
+        if (out != null) out.write(b);
+        continue;
+      }
+      // output not terminated by a newline ends up in front of the marker
+      if (at > 0 && out != null) {
+        out.write(b, 0, at);
+        out.write('\n');
+      }
+      if (out != null) out.flush();
+      return parseExitCode(new String(b, at + m.length, b.length - at - m.length, "US-ASCII"));
+    }
+  }
+
+  /**
+   * Passes on a long line but its last bytes, which may be the start of the
+   * marker. The line is kept whole if it already holds the marker, only the
+   * exit code follows then.
+   *
+   * @return whether the marker was found
+   */
+  private boolean forward(byte[] m, OutputStream out) throws IOException {
+    byte[] b = line.toByteArray();
+
+    if (indexOf(b, m) >= 0) return true;
+
+    int keep = m.length - 1;
+
+    if (out != null) out.write(b, 0, b.length - keep);
+    line.reset();
+    line.write(b, b.length - keep, keep);
+    return false;
+  }
+
+  private static int parseExitCode(String s) {
+    try {
+      return Integer.parseInt(s.trim());
+    } catch (NumberFormatException e) {
+      // e.g. $LASTEXITCODE not set by a script without native commands
+      return 0;
+    }
+  }
+
+  private static int indexOf(byte[] b, byte[] m) {
+    outer:
+    for (int i = 0; i <= b.length - m.length; i++) {
+      for (int j = 0; j < m.length; j++)
+        if (b[i + j] != m[j]) continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  private static String newMarker() {
+    return "#skeleton-" + UUID.randomUUID();
+  }
+
+  /**
+   * Reads the output of one job, a blocking read can't be interrupted.
+   */
+  private final class Reader extends Thread {
+    private final String marker;
+    private final Gate out;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private int exitCode;
+    private IOException failure;
+
+    Reader(String marker, OutputStream out) {
+      super("Reading the output of " + protocol.getKey());
+      this.marker = marker;
+      this.out    = out == null ? null : new Gate(out);
+      setDaemon(true);
+      start();
+    }
+
+    /**
+     * Output of the dying worker must not reach the caller any more.
+     */
+    void abandon() {
+      if (out != null) out.shut();
+    }
+
+    @Override
+    public void run() {
+      try {
+        exitCode = awaitMarker(marker, out);
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        done.countDown();
+      }
+    }
+  }
+
+  /**
+   * Passes output on until shut, then drops it.
+   */
+  private static final class Gate extends FilterOutputStream {
+    private boolean shut;
+
+    Gate(OutputStream out) {
+      super(out);
+    }
+
+    synchronized void shut() {
+      shut = true;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      if (!shut) out.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (!shut) out.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (!shut) out.flush();
+    }
+  }
+
+  /**
+   * The job ran too long or too quietly, the worker was killed.
+   */
+  public static class TimeoutException extends IOException {
+    public TimeoutException(String message) {
+      super(message);
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(Worker.class.getName());
+}
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Pool of warm interpreter processes of one kind on the local node.
+ * Workers are health checked before being handed out and recycled after
+ * a number of jobs; broken workers are replaced on demand.
+ */
+public class WorkerPool {
+  private static final Map<String, WorkerPool> POOLS = new HashMap<String, WorkerPool>();
+
+  private final WorkerProtocol protocol;
+  private final File home;
+  private final LinkedList<Worker> idle = new LinkedList<Worker>();
+  private int size;
+  private int maxJobs;
+  private int total;
+  private boolean shutdown;
+
+  public WorkerPool(WorkerProtocol protocol, File home, int size, int maxJobs) {
+    this.protocol = protocol;
+    this.home     = home;
+    setLimits(size, maxJobs);
+  }
+
+  /**
+   * Pool of this JVM serving the protocol, created on first use.
+   */
+  public static synchronized WorkerPool get(WorkerProtocol protocol, int size, int maxJobs) {
+    WorkerPool pool = POOLS.get(protocol.getKey());
+
+    if (pool == null) {
+      pool = new WorkerPool(protocol, null, size, maxJobs);
+      POOLS.put(protocol.getKey(), pool);
+    } else {
+      pool.setLimits(size, maxJobs);
+    }
+    return pool;
+  }
+
+  /**
+   * Stops all pools of this JVM, e.g. when the channel to the controller closes.
+   */
+  public static synchronized void shutdownAll() {
+    for (WorkerPool pool : POOLS.values()) pool.shutdown();
+    POOLS.clear();
+  }
+
+  public synchronized void setLimits(int size, int maxJobs) {
+    this.size    = Math.max(1, size);
+    this.maxJobs = Math.max(1, maxJobs);
+    notifyAll();
+  }
+
+  /**
+   * Runs a script on a warm worker, waiting for one to become available.
+   *
+   * @see Worker#run
+   */
+  public int run(String script, String pwd, Map<String, String> env, OutputStream out,
+                 long timeoutMillis, long idleMillis) throws IOException, InterruptedException {
+    Worker worker = acquire();
+
+    try {
+      return worker.run(script, pwd, env, out, timeoutMillis, idleMillis);
+    } finally {
+      release(worker);
+    }
+  }
+
+  Worker acquire() throws IOException, InterruptedException {
+    while (true) {
+      Worker worker = null;
+
+      synchronized (this) {
+        while (idle.isEmpty() && total >= size && !shutdown) wait();
+        if (shutdown) throw new IOException("Worker pool is shut down");
+        if (!idle.isEmpty()) {
+          worker = idle.removeFirst();
+        } else {
+          total++;
+        }
+      }
+
+      if (worker == null) {
+        try {
+          return new Worker(protocol, home);
+        } catch (IOException e) {
+          discarded();
+          throw e;
+        }
+      }
+      // health check outside of the lock, it talks to the process
+      boolean healthy;
+
+      try {
+        healthy = worker.ping();
+      } catch (InterruptedException e) {
+        worker.destroy();
+        discarded();
+        throw e;
+      }
+      if (healthy) return worker;
+      LOGGER.info("Replacing unhealthy worker of " + protocol.getKey());
+      worker.destroy();
+      discarded();
+    }
+  }
+
+  void release(Worker worker) {
+    synchronized (this) {
+      if (!shutdown && !worker.isBroken() && worker.getJobs() < maxJobs && worker.isAlive()) {
+        // most recently used first, keeps the same processes warm
+        idle.addFirst(worker);
+        notifyAll();
+        return;
+      }
+    }
+    worker.destroy();
+    discarded();
+  }
+
+  private synchronized void discarded() {
+    total--;
+    notifyAll();
+  }
+
+  public void shutdown() {
+    LinkedList<Worker> workers;
+
+    synchronized (this) {
+      shutdown = true;
+      workers  = new LinkedList<Worker>(idle);
+      total   -= idle.size();
+      idle.clear();
+      notifyAll();
+    }
+    for (Worker w : workers) w.destroy();
+  }
+
+  public synchronized int getTotal() {
+    return total;
+  }
+
+  public synchronized int getIdle() {
+    return idle.size();
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(WorkerPool.class.getName());
+}
@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import hudson.remoting.Base64;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes how to talk to a long-lived interpreter reading commands from
+ * its standard input. Every command produced here is a single line, the
+ * end of a job is signalled by the interpreter printing the marker
+ * followed by the exit code. Commands are written as {@link #ENCODING},
+ * whatever the default encoding of the node.
+ */
+public abstract class WorkerProtocol implements Serializable {
+  public static final String ENCODING = "UTF-8";
+
+  protected final String interpreter;
+
+  protected WorkerProtocol(String interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  /**
+   * Protocol of an interpreter, judged by its file name.
+   *
+   * @param interpreter path or name of the interpreter on the node
+   * @return <code>null</code> if the interpreter can't be kept running as a worker
+   */
+  public static WorkerProtocol forInterpreter(String interpreter) {
+    // the node may use either separator, whatever the controller runs on
+    int slash   = Math.max(interpreter.lastIndexOf('/'), interpreter.lastIndexOf('\\'));
+    String name = interpreter.substring(slash + 1).toLowerCase(Locale.ENGLISH);
+
+    if (name.endsWith(".exe")) name = name.substring(0, name.length() - 4);
+    if (name.equals("powershell") || name.equals("pwsh"))
+      return new PowerShell(interpreter);
+    if (name.equals("sh") || name.equals("bash") || name.equals("dash") || name.equals("ksh"))
+      return new PosixShell(interpreter);
+    return null;
+  }
+
+  /**
+   * @return the command line starting a worker
+   */
+  public abstract List<String> command();
+
+  /**
+   * @return command run once after the worker started, or <code>null</code>
+   */
+  public String init() {
+    return null;
+  }
+
+  /**
+   * @return command running the script in <code>pwd</code> with the given
+   *         environment and printing <code>marker exitcode</code> afterwards
+   */
+  public abstract String job(String script, String pwd,
+                             Map<String, String> env, String marker);
+
+  /**
+   * @return command only printing <code>marker 0</code>
+   */
+  public abstract String ping(String marker);
+
+  /**
+   * Key of the pool serving this protocol.
+   */
+  public String getKey() {
+    return getClass().getName() + ":" + interpreter;
+  }
+
+  /**
+   * Windows PowerShell or <code>pwsh</code>. The script runs in a child
+   * scope, environment, location and global variables are restored after
+   * every job.
+   */
+  public static class PowerShell extends WorkerProtocol {
+    public PowerShell(String interpreter) {
+      super(interpreter);
+    }
+
+    @Override
+    public List<String> command() {
+      List<String> cmd = new ArrayList<String>();
+
+      cmd.add(interpreter);
+      cmd.add("-NoLogo");
+      cmd.add("-NoProfile");
+      cmd.add("-NonInteractive");
+      cmd.add("-ExecutionPolicy");
+      cmd.add("ByPass");
+      cmd.add("-Command");
+      cmd.add("-");
+      return cmd;
+    }
+
+    @Override
+    public String init() {
+      // read the following commands as they are written, paths may contain any character
+      return "[Console]::InputEncoding = New-Object Text.UTF8Encoding $false; " +
+             "$__skeletonVars = @(Get-Variable -Scope Global | ForEach-Object { $_.Name })" +
+             " + '__skeletonVars'; $__skeletonHome = (Get-Location).Path";
+    }
+
+    @Override
+    public String job(String script, String pwd, Map<String, String> env, String marker) {
+      StringBuilder sb = new StringBuilder();
+
+      sb.append("$__skeletonEnv = @{}; Get-ChildItem env: | ForEach-Object { $__skeletonEnv[$_.Name] = $_.Value }; ");
+      sb.append("$__skeletonRc = 1; try { ");
+      for (Map.Entry<String, String> e : env.entrySet()) {
+        sb.append("Set-Item -LiteralPath ").append(quote("env:" + e.getKey()))
+        .append(" -Value ").append(quoteValue(e.getValue())).append("; ");
+      }
+      sb.append("Set-Location -LiteralPath ").append(quote(pwd)).append("; ");
+      sb.append("$global:LASTEXITCODE = 0; & ").append(quote(script)).append("; ");
+      sb.append("$__skeletonRc = $(if ($?) { $LASTEXITCODE } else { 1 }) ");
+      sb.append("} catch { Write-Output $_ } finally { ");
+      // isolation reset: environment, location and global variables
+      sb.append("Get-ChildItem env: | Where-Object { -not $__skeletonEnv.ContainsKey($_.Name) }");
+      sb.append(" | ForEach-Object { Remove-Item -LiteralPath ('env:' + $_.Name) }; ");
+      sb.append("foreach ($k in $__skeletonEnv.Keys) { Set-Item -LiteralPath ('env:' + $k) -Value $__skeletonEnv[$k] }; ");
+      sb.append("Get-Variable -Scope Global | Where-Object { $__skeletonVars -notcontains $_.Name -and $_.Name -ne '__skeletonRc' }");
+      sb.append(" | Remove-Variable -Scope Global -ErrorAction SilentlyContinue; ");
+      sb.append("Set-Location -LiteralPath $__skeletonHome }; ");
+      sb.append("[Console]::Out.WriteLine(").append(quoteMarker(marker)).append(" + ' ' + $__skeletonRc)");
+      return sb.toString();
+    }
+
+    @Override
+    public String ping(String marker) {
+      return "[Console]::Out.WriteLine(" + quoteMarker(marker) + " + ' 0')";
+    }
+
+    /**
+     * Splits the marker so an echoed command line can't be taken for it.
+     */
+    private static String quoteMarker(String marker) {
+      int half = marker.length() / 2;
+
+      return quote(marker.substring(0, half)) + " + " + quote(marker.substring(half));
+    }
+
+    private static String quote(String s) {
+      return "'" + s.replace("'", "''") + "'";
+    }
+
+    /**
+     * Commands must fit on one line, multi-line values are passed base64 encoded.
+     */
+    private static String quoteValue(String s) {
+      if (s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return quote(s);
+      try {
+        return "([Text.Encoding]::UTF8.GetString([Convert]::FromBase64String('" +
+               Base64.encode(s.getBytes(ENCODING)) + "')))";
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * POSIX shell. The script is sourced in a subshell, which isolates jobs
+   * from each other. Mostly useful to run the pool without PowerShell.
+   */
+  public static class PosixShell extends WorkerProtocol {
+    public PosixShell(String interpreter) {
+      super(interpreter);
+    }
+
+    @Override
+    public List<String> command() {
+      List<String> cmd = new ArrayList<String>();
+
+      cmd.add(interpreter);
+      cmd.add("-s");
+      return cmd;
+    }
+
+    @Override
+    public String job(String script, String pwd, Map<String, String> env, String marker) {
+      StringBuilder sb = new StringBuilder();
+
+      sb.append("( cd ").append(quote(pwd)).append(" || exit 1; ");
+      for (Map.Entry<String, String> e : env.entrySet()) {
+        if (isName(e.getKey()))
+          sb.append("export ").append(e.getKey()).append('=').append(quote(e.getValue())).append("; ");
+      }
+      sb.append(". ").append(quote(script)).append(" ) </dev/null; ");
+      sb.append("echo \"").append(marker).append(" $?\"");
+      return sb.toString();
+    }
+
+    @Override
+    public String ping(String marker) {
+      return "echo \"" + marker + " 0\"";
+    }
+
+    private static boolean isName(String s) {
+      if (s.length() == 0 || Character.isDigit(s.charAt(0))) return false;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+
+        if (!(c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')))
+          return false;
+      }
+      return true;
+    }
+
+    private static String quote(String s) {
+      return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
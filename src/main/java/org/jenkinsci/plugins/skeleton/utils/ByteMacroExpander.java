@@ -0,0 +1,311 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Byte oriented counterpart of {@link MacroExpander} for encodings in which
+ * the ASCII characters of a macro never occur inside a multi-byte sequence,
+ * such as UTF-8 and the single byte code pages. Text between macros is never
+ * decoded; long runs of it are copied from file to file with
+ * {@link FileChannel#transferTo} when the source channel is known.
+ * Large inputs can be expanded chunk by chunk, macros may span chunks.
+ */
+public class ByteMacroExpander {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** runs of text at least this long are transferred instead of copied */
+  private static final int TRANSFER_THRESHOLD = 64 * 1024;
+
+  /** Longest variable name we keep buffering before giving up on a token. */
+  private static final int MAX_NAME_LENGTH = 1024;
+
+  private static final int TEXT   = 0;
+  private static final int DOLLAR = 1;
+  private static final int NAME   = 2;
+  private static final int BRACE  = 3;
+
+  private final Map<String, String> variables;
+  private final Charset charset;
+  private final long maxBytes;
+  private final Set<String> referenced = new TreeSet<String>();
+  private final StringBuilder token = new StringBuilder();
+  private int state;
+
+  /**
+   * @param variables values to substitute, unresolved macros are kept as is
+   * @param charset   encoding of the substituted values
+   * @param maxBytes  limit of expanded output, <code>0</code> means unlimited
+   */
+  public ByteMacroExpander(Map<String, String> variables, Charset charset, long maxBytes) {
+    this.variables = variables;
+    this.charset   = charset;
+    this.maxBytes  = maxBytes;
+  }
+
+  /**
+   * Expands the remaining bytes of <code>in</code> into <code>out</code>.
+   *
+   * @param source channel <code>in</code> was read from, byte 0 of
+   *               <code>in</code> at position 0; <code>null</code> to always copy
+   * @param digest updated with everything written, may be <code>null</code>
+   * @return number of bytes written
+   * @throws IOException when the output grows beyond the configured limit
+   */
+  public long expand(ByteBuffer in, FileChannel source, WritableByteChannel out, MessageDigest digest)
+  throws IOException {
+    Sink sink = new Sink(source, out, digest);
+
+    reset();
+    scan(in, sink);
+    finish(sink);
+    return sink.count;
+  }
+
+  /**
+   * Expands everything <code>in</code> delivers into <code>out</code>,
+   * reading it in chunks so the input is never held in memory whole.
+   *
+   * @param inDigest updated with everything read, may be <code>null</code>
+   * @param digest   updated with everything written, may be <code>null</code>
+   * @return number of bytes written
+   * @throws IOException when the output grows beyond the configured limit
+   */
+  public long expand(ReadableByteChannel in, WritableByteChannel out, MessageDigest inDigest,
+                     MessageDigest digest) throws IOException {
+    Sink sink        = new Sink(null, out, digest);
+    ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+
+    reset();
+    while (in.read(chunk) >= 0) {
+      chunk.flip();
+      if (inDigest != null) inDigest.update(chunk.duplicate());
+      scan(chunk, sink);
+      chunk.clear();
+    }
+    finish(sink);
+    return sink.count;
+  }
+
+  private void reset() {
+    token.setLength(0);
+    state = TEXT;
+  }
+
+  /**
+   * Expands the remaining bytes of <code>in</code>, a macro still open at
+   * the end is continued by the next call.
+   */
+  private void scan(ByteBuffer in, Sink sink) throws IOException {
+    int text = -1;
+    int end  = in.limit();
+
+    for (int i = in.position(); i < end; i++) {
+      byte c = in.get(i);
+
+      switch (state) {
+      case DOLLAR:
+        if (c == '$') {
+          sink.write('$');
+          state = TEXT;
+          continue;
+        } else if (c == '{') {
+          state = BRACE;
+          continue;
+        } else if (isNameChar(c)) {
+          token.append((char)c);
+          state = NAME;
+          continue;
+        }
+        sink.write('$');
+        state = TEXT;
+        break;
+
+      case NAME:
+        if (isNameChar(c) && token.length() < MAX_NAME_LENGTH) {
+          token.append((char)c);
+          continue;
+        }
+        resolve(sink, token, "$", "");
+        state = TEXT;
+        break;
+
+      case BRACE:
+        if (c == '}' && token.length() > 0) {
+          resolve(sink, token, "${", "}");
+          state = TEXT;
+          continue;
+        } else if ((isNameChar(c) || c == '.') && token.length() < MAX_NAME_LENGTH) {
+          token.append((char)c);
+          continue;
+        }
+        sink.write("${").write(token);
+        token.setLength(0);
+        state = TEXT;
+        break;
+      }
+
+      // TEXT, or a byte that terminated a macro and still has to be processed
+      if (c == '$') {
+        if (text >= 0) sink.text(in, text, i);
+        text  = -1;
+        state = DOLLAR;
+      } else if (text < 0) {
+        text = i;
+      }
+    }
+
+    if (text >= 0) sink.text(in, text, end);
+    in.position(end);
+  }
+
+  /**
+   * Writes a macro left open by the end of the input as it is.
+   */
+  private void finish(Sink sink) throws IOException {
+    switch (state) {
+    case DOLLAR:
+      sink.write('$');
+      break;
+
+    case NAME:
+      resolve(sink, token, "$", "");
+      break;
+
+    case BRACE:
+      sink.write("${").write(token);
+      break;
+    }
+    reset();
+    sink.flush();
+  }
+
+  /**
+   * Names of all macros met so far, whether they were defined or not.
+   */
+  public Set<String> getReferenced() {
+    return Collections.unmodifiableSet(referenced);
+  }
+
+  private void resolve(Sink sink, StringBuilder token, String open, String close)
+  throws IOException {
+    String name  = token.toString();
+    String value = variables.get(name);
+
+    referenced.add(name);
+    if (value != null) {
+      sink.write(value.getBytes(charset));
+    } else {
+      sink.write(open).write(token).write(close);
+    }
+    token.setLength(0);
+  }
+
+  private static boolean isNameChar(byte c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+           (c >= '0' && c <= '9') || c == '_';
+  }
+
+  /**
+   * Buffered channel writer enforcing the size limit.
+   */
+  private final class Sink {
+    private final FileChannel source;
+    private final WritableByteChannel out;
+    private final MessageDigest digest;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long count;
+
+    Sink(FileChannel source, WritableByteChannel out, MessageDigest digest) {
+      this.source = source;
+      this.out    = out;
+      this.digest = digest;
+    }
+
+    /**
+     * Copies the bytes of the input between <code>from</code> and <code>to</code>.
+     */
+    void text(ByteBuffer in, int from, int to) throws IOException {
+      int len = to - from;
+
+      count(len);
+
+      ByteBuffer run = in.duplicate();
+
+      run.limit(to).position(from);
+      if (digest != null) {
+        digest.update(run);
+        run.limit(to).position(from);
+      }
+      if (source != null && len >= TRANSFER_THRESHOLD) {
+        drain();
+        for (long pos = from; pos < to; )
+          pos += source.transferTo(pos, to - pos, out);
+        return;
+      }
+      while (run.hasRemaining()) {
+        if (!buf.hasRemaining()) drain();
+
+        int n = Math.min(run.remaining(), buf.remaining());
+        ByteBuffer chunk = run.duplicate();
+
+        chunk.limit(chunk.position() + n);
+        buf.put(chunk);
+        run.position(run.position() + n);
+      }
+    }
+
+    Sink write(char c) throws IOException {
+      count(1);
+      if (!buf.hasRemaining()) drain();
+      buf.put((byte)c);
+      if (digest != null) digest.update((byte)c);
+      return this;
+    }
+
+    /** ASCII only, parts of macros */
+    Sink write(CharSequence s) throws IOException {
+      for (int i = 0; i < s.length(); i++) write(s.charAt(i));
+      return this;
+    }
+
+    void write(byte[] b) throws IOException {
+      count(b.length);
+      if (digest != null) digest.update(b);
+      for (int off = 0; off < b.length; ) {
+        if (!buf.hasRemaining()) drain();
+
+        int n = Math.min(b.length - off, buf.remaining());
+
+        buf.put(b, off, n);
+        off += n;
+      }
+    }
+
+    void flush() throws IOException {
+      drain();
+    }
+
+    private void drain() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) out.write(buf);
+      buf.clear();
+    }
+
+    private void count(long len) throws IOException {
+      count += len;
+      if (maxBytes > 0 && count > maxBytes)
+        throw new IOException("Job file exceeds the maximum size of " +
+                              maxBytes + " bytes");
+    }
+  }
+}
@@ -1,40 +1,53 @@
-package org.jenkinsci.plugins.skeleton.utils;
-
-import hudson.model.BuildListener;
-
-import java.io.IOException;
-import java.io.PrintStream;
-import java.nio.charset.Charset;
-
-
-public class ConsoleLogger {
-  private final BuildListener listener;
-  private final SkeletonConsoleAnnotator annotator;
-
-  public ConsoleLogger(BuildListener listener) {
-    this.listener  = listener;
-    this.annotator = new SkeletonConsoleAnnotator(this.listener.getLogger());
-  }
-
-  public BuildListener getListener() {
-    return listener;
-  }
-
-  public PrintStream getLogger() {
-    return listener.getLogger();
-  }
-
-  public void logAnnot(String message) {
-    byte[] msg = (message + "\n").getBytes(Charset.defaultCharset());
-    try {
-      annotator.eol(msg, msg.length);
-    } catch (IOException e) {
-      listener.getLogger().println(
-        "Problem with writing into console log: " + e.getMessage());
-    }
-  }
-
-  public void log(String message) {
-    listener.getLogger().println(message);
-  }
-}
+package org.jenkinsci.plugins.skeleton.utils;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+
+public class ConsoleLogger {
+  private final TaskListener listener;
+  private final SkeletonConsoleAnnotator annotator;
+  private final Charset charset = Charset.defaultCharset();
+
+  public ConsoleLogger(TaskListener listener) {
+    this.listener  = listener;
+    this.annotator = new SkeletonConsoleAnnotator(this.listener.getLogger());
+  }
+
+  public TaskListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Batching annotator in front of the build log, shared by the plugin
+   * messages and the script output.
+   */
+  public SkeletonConsoleAnnotator getAnnotator() {
+    return annotator;
+  }
+
+  public PrintStream getLogger() {
+    return listener.getLogger();
+  }
+
+  public void logAnnot(String message) {
+    byte[] msg = (message + "\n").getBytes(charset);
+    try {
+      // flushed right away to keep the order with messages written directly to the logger
+      synchronized (annotator) {
+        annotator.line(msg, msg.length);
+        annotator.flush();
+      }
+    } catch (IOException e) {
+      listener.getLogger().println(
+        "Problem with writing into console log: " + e.getMessage());
+    }
+  }
+
+  public void log(String message) {
+    listener.getLogger().println(message);
+  }
+}
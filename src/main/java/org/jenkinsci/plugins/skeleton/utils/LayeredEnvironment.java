@@ -0,0 +1,148 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Read-only environment of a step, made of layers looked up from the top:
+ * the environment of the run at the bottom, the build variables over it
+ * and small overlays of the plugin on top. Adding a layer creates a new
+ * view sharing the existing ones, so the expansion of the job, the
+ * command line and the launched process all see the same maps.
+ * <p>
+ * Names are case insensitive as in <code>EnvVars</code>. Layers added with
+ * {@link #with} are put as they are, empty values included, as build
+ * parameters are. Layers added with {@link #override} follow
+ * <code>EnvVars.override</code>: an empty value removes the variable,
+ * <code>PATH+XYZ</code> prepends to <code>PATH</code>, joined with the path
+ * separator of the node the environment is used on. The flat map is
+ * only built when the view is iterated, e.g. on the node when the
+ * process is launched.
+ */
+public final class LayeredEnvironment extends AbstractMap<String, String> implements Serializable {
+  private final Map<String, String> layer;
+  private final LayeredEnvironment below;
+  private final boolean override;
+  private final char pathSeparator;
+  private transient volatile Set<Entry<String, String>> entries;
+
+  private LayeredEnvironment(Map<String, String> layer, LayeredEnvironment below, boolean override,
+                             char pathSeparator) {
+    this.layer         = layer;
+    this.below         = below;
+    this.override      = override;
+    this.pathSeparator = pathSeparator;
+  }
+
+  /**
+   * For an environment used on the controller, with its path separator.
+   *
+   * @param base e.g. the environment of the run, not copied, must not be
+   *             changed afterwards
+   */
+  public static LayeredEnvironment of(Map<String, String> base) {
+    return of(base, File.pathSeparatorChar);
+  }
+
+  /**
+   * @param pathSeparator joins <code>PATH+XYZ</code> overrides, that of the
+   *                      node the environment is used on
+   */
+  public static LayeredEnvironment of(Map<String, String> base, char pathSeparator) {
+    return new LayeredEnvironment(caseInsensitive(base, null, false), null, false, pathSeparator);
+  }
+
+  /**
+   * @return a view with the values of the overlay on top of this one
+   */
+  public LayeredEnvironment with(Map<String, String> overlay) {
+    if (overlay == null || overlay.isEmpty()) return this;
+    return new LayeredEnvironment(caseInsensitive(overlay, this, false), this, false, pathSeparator);
+  }
+
+  /**
+   * @return a view with the overlay applied to this one like <code>EnvVars.override</code>
+   */
+  public LayeredEnvironment override(Map<String, String> overlay) {
+    if (overlay == null || overlay.isEmpty()) return this;
+    return new LayeredEnvironment(caseInsensitive(overlay, this, true), this, true, pathSeparator);
+  }
+
+  @Override
+  public String get(Object name) {
+    for (LayeredEnvironment e = this; e != null; e = e.below) {
+      String value = e.layer.get(name);
+
+      // an empty value in an override removes the variable
+      if (value != null) return value.length() > 0 || !e.override ? value : null;
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    return get(name) != null;
+  }
+
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    Set<Entry<String, String>> e = entries;
+
+    if (e == null) {
+      Map<String, String> flat = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+      flatten(flat);
+      entries = e = Collections.unmodifiableMap(flat).entrySet();
+    }
+    return e;
+  }
+
+  private void flatten(Map<String, String> flat) {
+    if (below != null) below.flatten(flat);
+    for (Entry<String, String> entry : layer.entrySet()) {
+      if (override && entry.getValue().length() == 0) {
+        flat.remove(entry.getKey());
+      } else {
+        flat.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Maps sorted case insensitively are taken as they are, others are copied
+   * once, for an override with the <code>PATH+XYZ</code> names resolved
+   * against the layers below.
+   */
+  private static Map<String, String> caseInsensitive(Map<String, String> map, LayeredEnvironment below,
+                                                     boolean override) {
+    if (!override && map instanceof SortedMap
+        && ((SortedMap<String, String>)map).comparator() == String.CASE_INSENSITIVE_ORDER)
+      return map;
+
+    Map<String, String> copy = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    for (Entry<String, String> entry : map.entrySet()) {
+      String name  = entry.getKey();
+      String value = entry.getValue() == null ? "" : entry.getValue();
+      int plus     = name.indexOf('+');
+
+      if (override && plus > 0 && value.length() > 0) {
+        name = name.substring(0, plus);
+
+        String rest = copy.containsKey(name) ? copy.get(name) : below != null ? below.get(name) : null;
+
+        if (rest != null && rest.length() > 0) value = value + below.pathSeparator + rest;
+      }
+      copy.put(name, value);
+    }
+    return copy;
+  }
+
+  private static final long serialVersionUID = 1L;
+}
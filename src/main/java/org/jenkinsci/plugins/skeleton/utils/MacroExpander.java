@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Streaming counterpart of {@link hudson.Util#replaceMacro(String, Map)}.
+ * Expands <code>$VAR</code>, <code>${VAR}</code> and the <code>$$</code>
+ * escape while copying a {@link Reader} into a {@link Writer}, so only one
+ * buffer of the script is ever held in memory.
+ */
+public class MacroExpander {
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Longest variable name we keep buffering before giving up on a token. */
+  private static final int MAX_NAME_LENGTH = 1024;
+
+  private static final int TEXT   = 0;
+  private static final int DOLLAR = 1;
+  private static final int NAME   = 2;
+  private static final int BRACE  = 3;
+
+  private final Map<String, String> variables;
+  private final long maxChars;
+  private final Set<String> referenced = new TreeSet<String>();
+
+  /**
+   * @param variables values to substitute, unresolved macros are kept as is
+   * @param maxChars  limit of expanded output, <code>0</code> means unlimited
+   */
+  public MacroExpander(Map<String, String> variables, long maxChars) {
+    this.variables = variables;
+    this.maxChars  = maxChars;
+  }
+
+  /**
+   * Copies <code>in</code> to <code>out</code> expanding macros on the fly.
+   *
+   * @return number of characters written
+   * @throws IOException when the output grows beyond the configured limit
+   */
+  public long expand(Reader in, Writer out) throws IOException {
+    Sink sink = new Sink(out);
+    StringBuilder token = new StringBuilder();
+    char[] buf = new char[BUFFER_SIZE];
+    int state = TEXT;
+    int n;
+
+    while ((n = in.read(buf)) != -1) {
+      for (int i = 0; i < n; i++) {
+        char c = buf[i];
+
+        switch (state) {
+        case DOLLAR:
+          if (c == '$') {
+            sink.write('$');
+            state = TEXT;
+            continue;
+          } else if (c == '{') {
+            state = BRACE;
+            continue;
+          } else if (isNameChar(c)) {
+            token.append(c);
+            state = NAME;
+            continue;
+          }
+          sink.write('$');
+          state = TEXT;
+          break;
+
+        case NAME:
+          if (isNameChar(c) && token.length() < MAX_NAME_LENGTH) {
+            token.append(c);
+            continue;
+          }
+          resolve(sink, token, "$", "");
+          state = TEXT;
+          break;
+
+        case BRACE:
+          if (c == '}' && token.length() > 0) {
+            resolve(sink, token, "${", "}");
+            state = TEXT;
+            continue;
+          } else if ((isNameChar(c) || c == '.') && token.length() < MAX_NAME_LENGTH) {
+            token.append(c);
+            continue;
+          }
+          sink.write("${").write(token);
+          token.setLength(0);
+          state = TEXT;
+          break;
+        }
+
+        // TEXT, or a character that terminated a macro and still has to be processed
+        if (c == '$') {
+          state = DOLLAR;
+        } else {
+          sink.write(c);
+        }
+      }
+    }
+
+    switch (state) {
+    case DOLLAR:
+      sink.write('$');
+      break;
+
+    case NAME:
+      resolve(sink, token, "$", "");
+      break;
+
+    case BRACE:
+      sink.write("${").write(token);
+      break;
+    }
+    sink.flush();
+    return sink.count;
+  }
+
+  /**
+   * Names of all macros met so far, whether they were defined or not. The
+   * output only depends on the input and the values of these variables.
+   */
+  public Set<String> getReferenced() {
+    return Collections.unmodifiableSet(referenced);
+  }
+
+  private void resolve(Sink sink, StringBuilder token, String open, String close)
+  throws IOException {
+    String name  = token.toString();
+    String value = variables.get(name);
+
+    referenced.add(name);
+
+    if (value != null) {
+      sink.write(value);
+    } else {
+      sink.write(open).write(token).write(close);
+    }
+    token.setLength(0);
+  }
+
+  private static boolean isNameChar(char c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+           (c >= '0' && c <= '9') || c == '_';
+  }
+
+  /**
+   * Buffered writer enforcing the size limit.
+   */
+  private final class Sink {
+    private final Writer out;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private long count;
+
+    Sink(Writer out) {
+      this.out = out;
+    }
+
+    Sink write(char c) throws IOException {
+      if (pos == buf.length) drain();
+      buf[pos++] = c;
+      count(1);
+      return this;
+    }
+
+    Sink write(CharSequence s) throws IOException {
+      int len = s.length();
+
+      count(len);
+      for (int i = 0; i < len; i++) {
+        if (pos == buf.length) drain();
+        buf[pos++] = s.charAt(i);
+      }
+      return this;
+    }
+
+    void flush() throws IOException {
+      drain();
+      out.flush();
+    }
+
+    private void drain() throws IOException {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+
+    private void count(int len) throws IOException {
+      count += len;
+      if (maxChars > 0 && count > maxChars)
+        throw new IOException("Job file exceeds the maximum size of " +
+                              maxChars + " characters");
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Classifies the output of a script line by line and passes it on to a
+ * {@link SkeletonConsoleAnnotator} together with the matching
+ * {@link ScriptOutputNote}. Lines longer than {@link #MAX_LINE} are split,
+ * so memory use doesn't depend on what the script prints.
+ */
+public class ScriptOutputAnnotator extends LineTransformationOutputStream {
+  public static final int MAX_LINE = 64 * 1024;
+
+  private final SkeletonConsoleAnnotator sink;
+  private final Severity forced;
+  private final byte[] prefix;
+  private final Map<Severity, Long> counts = new EnumMap<Severity, Long>(Severity.class);
+  private long lines;
+  private long bytes;
+  private int pending;
+  private Severity severity;
+  private boolean split;
+
+  /**
+   * @param forced severity of every line, e.g. {@link Severity#ERROR} for
+   *               standard error, <code>null</code> to detect it per line
+   */
+  public ScriptOutputAnnotator(SkeletonConsoleAnnotator sink, Severity forced) {
+    this(sink, forced, null);
+  }
+
+  /**
+   * @param prefix written in front of every line, to tell apart the output
+   *               of scripts sharing one log
+   */
+  public ScriptOutputAnnotator(SkeletonConsoleAnnotator sink, Severity forced, String prefix) {
+    this.sink   = sink;
+    this.forced = forced;
+    this.prefix = prefix == null ? null : prefix.getBytes(Charset.defaultCharset());
+  }
+
+  /**
+   * {@link LineTransformationOutputStream} passes every byte through here,
+   * including the ones written as arrays.
+   */
+  @Override
+  public void write(int b) throws IOException {
+    super.write(b);
+    bytes++;
+    if (b != '\n' && ++pending >= MAX_LINE) forceEol();
+  }
+
+  @Override
+  protected void eol(byte[] b, int len) throws IOException {
+    boolean complete = len > 0 && b[len - 1] == '\n';
+    boolean start    = !split;
+
+    if (start) {
+      severity = forced != null ? forced : Severity.detect(b, len);
+      lines++;
+      if (severity != null) {
+        Long c = counts.get(severity);
+
+        counts.put(severity, c == null ? 1L : c + 1);
+      }
+    }
+    // the rest of a split line keeps the severity of its beginning
+    split   = !complete;
+    pending = 0;
+    sink.line(severity == null ? null : ScriptOutputNote.encodedBytes(severity),
+              start ? prefix : null, b, len);
+  }
+
+  /**
+   * Writes out a last unterminated line and flushes the sink, without
+   * closing it.
+   */
+  public void finish() throws IOException {
+    forceEol();
+    sink.flush();
+  }
+
+  public long getByteCount() {
+    return bytes;
+  }
+
+  public long getLineCount() {
+    return lines;
+  }
+
+  public long getLineCount(Severity severity) {
+    Long c = counts.get(severity);
+
+    return c == null ? 0 : c;
+  }
+}
@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import hudson.Extension;
+import hudson.MarkupText;
+import hudson.console.ConsoleAnnotationDescriptor;
+import hudson.console.ConsoleAnnotator;
+import hudson.console.ConsoleNote;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Marks up a line of script output according to its {@link Severity}.
+ */
+public class ScriptOutputNote extends ConsoleNote<Run< ? , ? > >{
+  private static final Map<Severity, byte[]> ENCODED =
+    new EnumMap<Severity, byte[]>(Severity.class);
+
+  private final Severity severity;
+
+  public ScriptOutputNote(Severity severity) {
+    this.severity = severity;
+  }
+
+  public Severity getSeverity() {
+    return severity;
+  }
+
+  /**
+   * One serialized note per severity, reused for every line.
+   */
+  public static byte[] encodedBytes(Severity severity) throws IOException {
+    synchronized (ENCODED) {
+      byte[] e = ENCODED.get(severity);
+
+      if (e == null) {
+        e = new ScriptOutputNote(severity).encodeToBytes().toByteArray();
+        ENCODED.put(severity, e);
+      }
+      return e;
+    }
+  }
+
+  @Override
+  public ConsoleAnnotator<Run< ? , ? > >annotate(Run< ? , ? >context,
+                                                 MarkupText text,
+                                                 int charPos) {
+    if (severity != null) text.addMarkup(0,
+                                         text.length(),
+                                         severity.getStartTag(),
+                                         "</span>");
+    return null;
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends ConsoleAnnotationDescriptor {
+    public String getDisplayName() {
+      return "Skeleton Script Output Note";
+    }
+  }
+
+  private static final long serialVersionUID = 1L;
+}
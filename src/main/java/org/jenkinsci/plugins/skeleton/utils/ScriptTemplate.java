@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script parsed once into literal and macro segments, rendered against a
+ * variable map in one linear pass. Uses the same syntax as
+ * {@link MacroExpander}: <code>$VAR</code>, <code>${VAR}</code> and
+ * <code>$$</code> for a literal dollar sign.
+ */
+public final class ScriptTemplate {
+  /** literal text, or the original macro text when {@link #names} is set */
+  private final String[] texts;
+
+  /** variable name of the segment, <code>null</code> for literals */
+  private final String[] names;
+
+  private final int literalLength;
+
+  private ScriptTemplate(String[] texts, String[] names, int literalLength) {
+    this.texts         = texts;
+    this.names         = names;
+    this.literalLength = literalLength;
+  }
+
+  public static ScriptTemplate compile(String script) {
+    List<String> texts = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    StringBuilder literal = new StringBuilder();
+    int literalLength = 0;
+    int len = script.length();
+    int i   = 0;
+
+    while (i < len) {
+      int dollar = script.indexOf('$', i);
+
+      if (dollar < 0 || dollar == len - 1) {
+        literal.append(script, i, len);
+        break;
+      }
+      literal.append(script, i, dollar);
+
+      char next = script.charAt(dollar + 1);
+      int end   = -1;
+      String name = null;
+
+      if (next == '$') {
+        literal.append('$');
+        i = dollar + 2;
+        continue;
+      } else if (next == '{') {
+        int j = dollar + 2;
+
+        while (j < len && (isNameChar(script.charAt(j)) || script.charAt(j) == '.')) j++;
+        if (j < len && j > dollar + 2 && script.charAt(j) == '}') {
+          name = script.substring(dollar + 2, j);
+          end  = j + 1;
+        }
+      } else if (isNameChar(next)) {
+        int j = dollar + 1;
+
+        while (j < len && isNameChar(script.charAt(j))) j++;
+        name = script.substring(dollar + 1, j);
+        end  = j;
+      }
+
+      if (name == null) {
+        literal.append('$');
+        i = dollar + 1;
+        continue;
+      }
+      if (literal.length() > 0) {
+        literalLength += literal.length();
+        texts.add(literal.toString());
+        names.add(null);
+        literal.setLength(0);
+      }
+      texts.add(script.substring(dollar, end));
+      names.add(name);
+      i = end;
+    }
+    if (literal.length() > 0) {
+      literalLength += literal.length();
+      texts.add(literal.toString());
+      names.add(null);
+    }
+    return new ScriptTemplate(texts.toArray(new String[texts.size()]),
+                              names.toArray(new String[names.size()]),
+                              literalLength);
+  }
+
+  /**
+   * @return <code>true</code> if the script has no macros to expand
+   */
+  public boolean isConstant() {
+    for (String name : names)
+      if (name != null) return false;
+    return true;
+  }
+
+  public String render(Map<String, String> variables) {
+    StringBuilder sb = new StringBuilder(literalLength + 16 * texts.length);
+
+    render(variables, sb);
+    return sb.toString();
+  }
+
+  public void render(Map<String, String> variables, StringBuilder sb) {
+    for (int i = 0; i < texts.length; i++) {
+      String value = names[i] == null ? null : variables.get(names[i]);
+
+      sb.append(value != null ? value : texts[i]);
+    }
+  }
+
+  private static boolean isNameChar(char c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+           (c >= '0' && c <= '9') || c == '_';
+  }
+}
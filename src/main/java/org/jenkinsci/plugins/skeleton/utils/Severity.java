@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+/**
+ * Severity of a line of script output, detected from the prefixes
+ * PowerShell writes for its warning, verbose and debug streams. Errors
+ * are whatever arrives on standard error.
+ */
+public enum Severity {
+  ERROR(null, "<span style=\"font-weight: bold; color:red\">"),
+  WARNING("WARNING:", "<span style=\"color:#e07000\">"),
+  VERBOSE("VERBOSE:", "<span style=\"color:gray\">"),
+  DEBUG("DEBUG:", "<span style=\"color:gray; font-style: italic\">");
+
+  private final byte[] prefix;
+  private final String startTag;
+
+  private Severity(String prefix, String startTag) {
+    this.prefix   = prefix == null ? null : ascii(prefix);
+    this.startTag = startTag;
+  }
+
+  public String getStartTag() {
+    return startTag;
+  }
+
+  /**
+   * @return the severity announced by the line, <code>null</code> for plain output
+   */
+  public static Severity detect(byte[] b, int len) {
+    for (Severity s : values())
+      if (s.prefix != null && SkeletonConsoleAnnotator.startsWith(b, len, s.prefix)) return s;
+    return null;
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] b = new byte[s.length()];
+
+    for (int i = 0; i < b.length; i++) b[i] = (byte)s.charAt(i);
+    return b;
+  }
+}
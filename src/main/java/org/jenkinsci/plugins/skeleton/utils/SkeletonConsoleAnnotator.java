@@ -1,32 +1,140 @@
-package org.jenkinsci.plugins.skeleton.utils;
-
-import hudson.console.LineTransformationOutputStream;
-
-import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-
-
-public class SkeletonConsoleAnnotator extends LineTransformationOutputStream {
-  private final OutputStream out;
-
-  public SkeletonConsoleAnnotator(OutputStream out) {
-    this.out = out;
-  }
-
-  @Override
-  protected void eol(byte[] b, int len) throws IOException {
-    String line =
-      Charset.defaultCharset().decode(ByteBuffer.wrap(b, 0, len)).toString();
-
-    if (line.startsWith("[Skeleton]")) new SkeletonConsoleNote().encodeTo(out);
-    out.write(b, 0, len);
-  }
-
-  @Override
-  public void close() throws IOException {
-    super.close();
-    out.close();
-  }
-}
+package org.jenkinsci.plugins.skeleton.utils;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Marks up <code>[Skeleton]</code> lines with a {@link SkeletonConsoleNote}.
+ * Lines are matched on their bytes and collected in a buffer, which is
+ * written to the underlying stream when full, on {@link #flush()}, or at
+ * the latest {@link #FLUSH_DELAY_MS} after the first buffered line.
+ */
+public class SkeletonConsoleAnnotator extends LineTransformationOutputStream {
+  public static final int BUFFER_SIZE = 8192;
+  public static final long FLUSH_DELAY_MS = 200;
+
+  private static final byte[] PREFIX = { '[', 'S', 'k', 'e', 'l', 'e', 't', 'o', 'n', ']' };
+
+  private static final ScheduledExecutorService FLUSHER =
+    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Skeleton console flusher");
+
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private final OutputStream out;
+  private final byte[] buf;
+  private int count;
+  private ScheduledFuture< ? > pendingFlush;
+
+  public SkeletonConsoleAnnotator(OutputStream out) {
+    this(out, BUFFER_SIZE);
+  }
+
+  public SkeletonConsoleAnnotator(OutputStream out, int bufferSize) {
+    this.out = out;
+    this.buf = new byte[bufferSize];
+  }
+
+  @Override
+  protected void eol(byte[] b, int len) throws IOException {
+    line(b, len);
+  }
+
+  /**
+   * Writes a complete line, including its line terminator.
+   */
+  public synchronized void line(byte[] b, int len) throws IOException {
+    if (startsWith(b, len, PREFIX)) {
+      byte[] note = SkeletonConsoleNote.encodedBytes();
+
+      append(note, note.length);
+    }
+    append(b, len);
+  }
+
+  /**
+   * Writes a complete line preceded by an already encoded console note.
+   *
+   * @param note encoded note, <code>null</code> to pass the line as is
+   */
+  public synchronized void line(byte[] note, byte[] b, int len) throws IOException {
+    line(note, null, b, len);
+  }
+
+  /**
+   * Writes a complete line preceded by an encoded note and a prefix, as
+   * one unit even when several streams share this annotator.
+   *
+   * @param prefix e.g. the name of the script, <code>null</code> for none
+   */
+  public synchronized void line(byte[] note, byte[] prefix, byte[] b, int len) throws IOException {
+    if (note != null) append(note, note.length);
+    if (prefix != null) append(prefix, prefix.length);
+    append(b, len);
+  }
+
+  static boolean startsWith(byte[] b, int len, byte[] prefix) {
+    if (len < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++)
+      if (b[i] != prefix[i]) return false;
+    return true;
+  }
+
+  private void append(byte[] b, int len) throws IOException {
+    if (len > buf.length - count) drain();
+    if (len >= buf.length) {
+      // too big to batch, nothing is buffered at this point
+      out.write(b, 0, len);
+      return;
+    }
+    System.arraycopy(b, 0, buf, count, len);
+    count += len;
+    if (pendingFlush == null) {
+      pendingFlush = FLUSHER.schedule(new Runnable() {
+        public void run() {
+          try {
+            flush();
+          } catch (IOException e) {
+            // the next write reports a broken stream
+          }
+        }
+      }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void drain() throws IOException {
+    if (count > 0) {
+      out.write(buf, 0, count);
+      count = 0;
+    }
+    if (pendingFlush != null) {
+      pendingFlush.cancel(false);
+      pendingFlush = null;
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    flush();
+    out.close();
+  }
+}
@@ -1,7 +1,8 @@
 package org.jenkinsci.plugins.skeleton;
-package org.jenkinsci.plugins.skeleton;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import hudson.FilePath;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
@@ -16,9 +17,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.concurrent.ExecutionException;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -41,7 +44,7 @@ public class FileJobSourceTest {
         String jobParamXML = "<test>Build #${BUILD_NUMBER}: My test job with string param of with value ${TestStringParam} and boolean param with value ${TestBooleanParam}</test>";
         jobPath.write(jobParamXML, Charset.defaultCharset().name());
 
-        FileJobSource job = new FileJobSource("testJob", jobPath.getRemote());
+        FileJobSource job = new FileJobSource(jobPath.getRemote());
         File jobFile = job.createJobFile(build, new StreamBuildListener(System.out, Charset.defaultCharset()));
         BufferedReader br = new BufferedReader(new FileReader(jobFile.getPath()));
         String actualJob = br.readLine();
@@ -62,9 +65,195 @@ public class FileJobSourceTest {
         String buildNumber = build.getEnvironment(listener).get("BUILD_NUMBER");
         String expectedFileName = "test_param_" + buildNumber;
         
-        FileJobSource job = new FileJobSource("testJob", "${TestParam}_${BUILD_NUMBER}");
+        FileJobSource job = new FileJobSource("${TestParam}_${BUILD_NUMBER}");
         String expandedFileName = job.expandJobPath(build, listener);
         
         assertEquals(expectedFileName, expandedFileName);
     }
+
+    @Test
+    public void rejectJobOverMaxSize() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        FilePath jobPath = build.getWorkspace().createTempFile("skeleton_test2", "ps1");
+        jobPath.write("Write-Output '0123456789'", Charset.defaultCharset().name());
+
+        FileJobSource job = new FileJobSource(jobPath.getRemote(), 10);
+        try {
+            job.createJobFile(build, new StreamBuildListener(System.out, Charset.defaultCharset()));
+            fail("job file over the size limit must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void reuseExpandedJobWhenUnchanged() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ScriptCache cache = new ScriptCache(j.jenkins.getRootPath().child("skeleton-cache"), 1024 * 1024, ".ps1");
+        BuildListener listener = new StreamBuildListener(System.out, Charset.defaultCharset());
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        build.getWorkspace().child("job.ps1").write("Write-Output '${JOB_NAME}'", "UTF-8");
+
+        FileJobSource job = new FileJobSource("job.ps1");
+        File first = job.createJobFile(build, listener, cache);
+        // marks the cached expansion, only a reused one keeps the mark
+        new FilePath(first).write("reused", "UTF-8");
+
+        File second = job.createJobFile(project.scheduleBuild2(0).get(), listener, cache);
+        assertEquals(first, second);
+        assertEquals("reused", new FilePath(second).readToString());
+    }
+
+    @Test
+    public void reuseExpandedJobWhenOnlyTouched() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ScriptCache cache = new ScriptCache(j.jenkins.getRootPath().child("skeleton-cache"), 1024 * 1024, ".ps1");
+        BuildListener listener = new StreamBuildListener(System.out, Charset.defaultCharset());
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        FilePath script = build.getWorkspace().child("job.ps1");
+        script.write("Write-Output '${JOB_NAME}'", "UTF-8");
+
+        FileJobSource job = new FileJobSource("job.ps1");
+        File first = job.createJobFile(build, listener, cache);
+        new FilePath(first).write("reused", "UTF-8");
+        // e.g. checked out again, same content
+        script.touch(script.lastModified() + 10000);
+
+        File second = job.createJobFile(project.scheduleBuild2(0).get(), listener, cache);
+        assertEquals("reused", new FilePath(second).readToString());
+    }
+
+    @Test
+    public void expandAgainWhenScriptChanged() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ScriptCache cache = new ScriptCache(j.jenkins.getRootPath().child("skeleton-cache"), 1024 * 1024, ".ps1");
+        BuildListener listener = new StreamBuildListener(System.out, Charset.defaultCharset());
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        FilePath script = build.getWorkspace().child("job.ps1");
+        script.write("Write-Output 'first'", "UTF-8");
+
+        FileJobSource job = new FileJobSource("job.ps1");
+        new FilePath(job.createJobFile(build, listener, cache)).write("reused", "UTF-8");
+        script.write("Write-Output 'second'", "UTF-8");
+
+        File second = job.createJobFile(project.scheduleBuild2(0).get(), listener, cache);
+        assertEquals("Write-Output 'second'", new FilePath(second).readToString());
+    }
+
+    @Test
+    public void expandAgainWhenVariableChanged() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ScriptCache cache = new ScriptCache(j.jenkins.getRootPath().child("skeleton-cache"), 1024 * 1024, ".ps1");
+        BuildListener listener = new StreamBuildListener(System.out, Charset.defaultCharset());
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        build.getWorkspace().child("job.ps1").write("Write-Output 'Build ${BUILD_NUMBER}'", "UTF-8");
+
+        FileJobSource job = new FileJobSource("job.ps1");
+        assertEquals("Write-Output 'Build 1'", new FilePath(job.createJobFile(build, listener, cache)).readToString());
+
+        File second = job.createJobFile(project.scheduleBuild2(0).get(), listener, cache);
+        assertEquals("Write-Output 'Build 2'", new FilePath(second).readToString());
+    }
+
+    @Test
+    public void keepBytesOfLargeScript() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        // large enough to be read in chunks, not valid in the default encoding of most systems
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        StringBuilder script = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            script.append("Write-Output 'caf\u00e9 ").append(i).append(" ${JOB_NAME}'\r\n");
+            expected.append("Write-Output 'caf\u00e9 ").append(i).append(' ').append(project.getName()).append("'\r\n");
+        }
+        OutputStream out = build.getWorkspace().child("large.ps1").write();
+        out.write(script.toString().getBytes(latin1));
+        out.close();
+
+        File jobFile = new FileJobSource("large.ps1").createJobFile(build,
+                new StreamBuildListener(System.out, Charset.defaultCharset()));
+        assertArrayEquals(expected.toString().getBytes(latin1), FileUtils.readFileToByteArray(jobFile));
+    }
+
+    @Test
+    public void inlineIncludesAndReassembleWhenChanged() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ScriptCache cache = new ScriptCache(j.jenkins.getRootPath().child("skeleton-cache"), 1024 * 1024, ".ps1");
+        BuildListener listener = new StreamBuildListener(System.out, Charset.defaultCharset());
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        FilePath ws = build.getWorkspace();
+        ws.child("job.ps1").write("#include \"lib/a.ps1\"\n. .\\lib\\b.ps1\nWrite-Output '${JOB_NAME}'\n", "UTF-8");
+        ws.child("lib/a.ps1").write("function A {}\n#include 'b.ps1'\n", "UTF-8");
+        FilePath helper = ws.child("lib/b.ps1");
+        helper.write("function B {}\n", "UTF-8");
+
+        FileJobSource job = new FileJobSource("job.ps1", 0, true);
+        // b.ps1 is inlined once, where it is first included
+        assertEquals(". {\nfunction A {}\n. {\nfunction B {}\n}\n}\nWrite-Output '" + project.getName() + "'\n",
+                readJob(job.createJobFile(build, listener, cache)));
+
+        helper.write("function B2 {}", "UTF-8");
+        assertEquals(". {\nfunction A {}\n. {\nfunction B2 {}\n}\n}\nWrite-Output '" + project.getName() + "'\n",
+                readJob(job.createJobFile(project.scheduleBuild2(0).get(), listener, cache)));
+    }
+
+    @Test
+    public void rejectIncludeCycle() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        FilePath ws = build.getWorkspace();
+        ws.child("job.ps1").write("#include \"a.ps1\"\n", "UTF-8");
+        ws.child("a.ps1").write("#include \"b.ps1\"\n", "UTF-8");
+        ws.child("b.ps1").write(". $PSScriptRoot\\a.ps1\n", "UTF-8");
+
+        try {
+            new FileJobSource("job.ps1", 0, true).createJobFile(build,
+                    new StreamBuildListener(System.out, Charset.defaultCharset()));
+            fail("include cycle must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void leaveScriptsBoundToTheirFileToTheInterpreter() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        FilePath ws = build.getWorkspace();
+        ws.child("job.ps1").write(". .\\lib\\a.ps1\n. .\\lib\\module.ps1\n", "UTF-8");
+        ws.child("lib/a.ps1").write("param($x)\n. $PSScriptRoot\\b.ps1\nreturn\n", "UTF-8");
+        ws.child("lib/b.ps1").write("Get-Content \"$PSScriptRoot\\data.txt\"\n", "UTF-8");
+        ws.child("lib/module.ps1").write("using namespace System.IO\n", "UTF-8");
+
+        String b = new File(new File(ws.getRemote(), "lib"), "b.ps1").getAbsolutePath();
+        assertEquals(". {\nparam($x)\n. '" + b + "'\nreturn\n}\n. .\\lib\\module.ps1\n",
+                readJob(new FileJobSource("job.ps1", 0, true).createJobFile(build,
+                        new StreamBuildListener(System.out, Charset.defaultCharset()))));
+    }
+
+    @Test
+    public void rejectIncludeOfScriptBoundToItsFile() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        FilePath ws = build.getWorkspace();
+        ws.child("job.ps1").write("#include \"a.ps1\"\n", "UTF-8");
+        ws.child("a.ps1").write("#Requires -Version 5\n", "UTF-8");
+
+        try {
+            new FileJobSource("job.ps1", 0, true).createJobFile(build,
+                    new StreamBuildListener(System.out, Charset.defaultCharset()));
+            fail("include of a script that can't be inlined must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static String readJob(File jobFile) throws IOException {
+        String content = FileUtils.readFileToString(jobFile, "UTF-8");
+        return content.startsWith("\uFEFF") ? content.substring(1) : content;
+    }
 }
@@ -0,0 +1,154 @@
+package org.jenkinsci.plugins.skeleton;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.remoting.Callable;
+import hudson.remoting.Future;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Counts the remote calls needed to prepare a job file, the workspace is
+ * behind a channel running every call in this JVM.
+ */
+public class JobPreparationTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private CountingChannel channel;
+    private FilePath ws;
+    private EnvVars variables;
+
+    @Before
+    public void setUp() throws IOException {
+        channel = new CountingChannel();
+        ws = new FilePath(channel, tmp.newFolder("ws").getPath());
+        variables = new EnvVars("NAME", "World");
+    }
+
+    @Test
+    public void prepareStringJobWithOneCall() throws Exception {
+        StringJobSource source = new StringJobSource("Write-Host ${NAME}");
+
+        JobPreparation.Result job = ws.act(new JobPreparation(source.getMaterializer(variables, null), true));
+
+        assertEquals(1, channel.calls);
+        assertEquals("Write-Host World\r\n", job.getContent());
+        assertTrue(job.getJobFile().isFile());
+    }
+
+    @Test
+    public void prepareFileJobWithOneCall() throws Exception {
+        FileWriter w = new FileWriter(new File(ws.getRemote(), "job.ps1"));
+        w.write("Write-Host $NAME");
+        w.close();
+        FileJobSource source = new FileJobSource("job.ps1");
+
+        JobPreparation.Result job = ws.act(new JobPreparation(source.getMaterializer(variables, null), false));
+
+        assertEquals(1, channel.calls);
+        assertNull(job.getContent());
+        assertEquals("Write-Host World".length(), job.getSize());
+    }
+
+    @Test
+    public void prepareCachedJobWithOneCall() throws Exception {
+        ScriptCache cache = new ScriptCache(new FilePath(channel, tmp.newFolder("cache").getPath()), 1024 * 1024, ".ps1");
+        StringJobSource source = new StringJobSource("Write-Host ${NAME}");
+
+        JobPreparation.Result first = JobPreparation.prepare(ws, source.getMaterializer(variables, cache), cache, false);
+        // the miss costs a second call carrying the content
+        assertEquals(2, channel.calls);
+
+        JobPreparation.Result second = JobPreparation.prepare(ws, source.getMaterializer(variables, cache), cache, false);
+
+        assertEquals(3, channel.calls);
+        assertEquals(first.getJobFile(), second.getJobFile());
+        assertTrue(second.isCached());
+    }
+
+    @Test
+    public void lookupCarriesNoContent() throws Exception {
+        // a local path, remote ones only serialize through their channel
+        ScriptCache cache = new ScriptCache(new FilePath(tmp.newFolder("cache")), 1024 * 1024, ".ps1");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            big.append("Write-Host ${NAME}\n");
+        JobPreparation.Cacheable materializer =
+            (JobPreparation.Cacheable) new StringJobSource(big.toString()).getMaterializer(variables, cache);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(new JobPreparation(materializer.lookup(), cache, false));
+        oos.close();
+
+        assertTrue(bytes.size() < 2048);
+        assertNull(ws.act(new JobPreparation(materializer.lookup(), cache, false)));
+    }
+
+    @Test
+    public void siblingDirectoryIsNotCached() throws Exception {
+        File dir = tmp.newFolder("cache");
+        ScriptCache cache = new ScriptCache(new FilePath(channel, dir.getPath()), 1024 * 1024, ".ps1");
+        File sibling = tmp.newFolder("cache2");
+        FileWriter w = new FileWriter(new File(sibling, "job.ps1"));
+        w.write("Write-Host");
+        w.close();
+
+        JobPreparation.Result job = ws.act(JobPreparation.existing(new File(sibling, "job.ps1").getPath(), cache, false));
+
+        assertFalse(job.isCached());
+    }
+
+    @Test(expected = IOException.class)
+    public void failOnMissingJobFile() throws Exception {
+        ws.act(JobPreparation.existing("missing.ps1", false));
+    }
+
+    /**
+     * Runs callables in this JVM, counting them.
+     */
+    private static final class CountingChannel implements VirtualChannel {
+        int calls;
+
+        public <V, T extends Throwable> V call(Callable<V, T> callable) throws T {
+            calls++;
+            return callable.call();
+        }
+
+        public <V, T extends Throwable> Future<V> callAsync(Callable<V, T> callable) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+        }
+
+        public void join() {
+        }
+
+        public void join(long timeout) {
+        }
+
+        public <T> T export(Class<T> type, T instance) {
+            return instance;
+        }
+
+        public void syncLocalIO() {
+        }
+    }
+}
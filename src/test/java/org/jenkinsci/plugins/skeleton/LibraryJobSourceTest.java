@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.skeleton;
+
+import static org.junit.Assert.assertEquals;
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LibraryJobSourceTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void expandLibraryScriptOnNode() throws Exception {
+        register("greet", "Write-Output 'Build #${BUILD_NUMBER}'\n");
+        FreeStyleBuild build = j.createFreeStyleProject().scheduleBuild2(0).get();
+
+        File jobFile = new LibraryJobSource("greet").createJobFile(build, listener());
+
+        assertEquals("\uFEFFWrite-Output 'Build #1'\r\n", FileUtils.readFileToString(jobFile, "UTF-8"));
+    }
+
+    @Test
+    public void expandForRunInWorkspace() throws Exception {
+        register("greet", "Write-Output 'Build #${BUILD_NUMBER}'\n");
+        FreeStyleBuild build = j.createFreeStyleProject().scheduleBuild2(0).get();
+
+        // the node is found through the workspace, as for runs other than freestyle builds
+        File jobFile = new LibraryJobSource("greet").createJobFile(build, build.getWorkspace(),
+                new StreamTaskListener(System.out, Charset.defaultCharset()), null);
+
+        assertEquals("\uFEFFWrite-Output 'Build #1'\r\n", FileUtils.readFileToString(jobFile, "UTF-8"));
+    }
+
+    @Test
+    public void reuseCopyOfTheNode() throws Exception {
+        register("greet", "Write-Output 'from the controller'\n");
+        FreeStyleBuild build = j.createFreeStyleProject().scheduleBuild2(0).get();
+        LibraryJobSource source = new LibraryJobSource("greet");
+
+        source.createJobFile(build, listener());
+        FilePath copies = build.getBuiltOn().getRootPath().child(ScriptLibrary.DIRECTORY);
+        assertEquals(1, copies.list().size());
+        // only fetched again if missing, an existing copy is taken as is
+        copies.list().get(0).write("Write-Output 'from the node'\r\n", "UTF-8");
+
+        File jobFile = source.createJobFile(build, listener());
+        assertEquals("\uFEFFWrite-Output 'from the node'\r\n", FileUtils.readFileToString(jobFile, "UTF-8"));
+    }
+
+    @Test(expected = IOException.class)
+    public void failOnUnknownScript() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        new LibraryJobSource("missing").createJobFile(build, listener());
+    }
+
+    private void register(String id, String content) throws Exception {
+        j.jenkins.getDescriptorByType(Skeleton.DescriptorImpl.class)
+                .setLibraryScripts(Arrays.asList(new ScriptLibrary.Script(id, content)));
+    }
+
+    private static StreamBuildListener listener() {
+        return new StreamBuildListener(System.out, Charset.defaultCharset());
+    }
+}
@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.skeleton;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class NodeThrottleTest {
+
+    @Test
+    public void firstMatchingRuleApplies() {
+        List<NodeThrottle.Rule> rules = NodeThrottle.parseRules("# comment\nwindows=2\n\n  linux = 4 \n*=1");
+
+        assertEquals(3, rules.size());
+        assertEquals(2, NodeThrottle.limitFor(rules, Arrays.asList("agent1", "windows", "linux")));
+        assertEquals(4, NodeThrottle.limitFor(rules, Arrays.asList("agent2", "linux")));
+        assertEquals(1, NodeThrottle.limitFor(rules, Collections.singletonList("agent3")));
+        assertEquals(0, NodeThrottle.limitFor(NodeThrottle.parseRules("windows=2"),
+                                              Collections.singletonList("agent3")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectMalformedRule() {
+        NodeThrottle.parseRules("windows=two");
+    }
+
+    @Test
+    public void unlimitedNeverWaits() throws InterruptedException {
+        NodeThrottle throttle = new NodeThrottle();
+
+        for (int i = 0; i < 10; i++)
+            throttle.acquire("agent", 0);
+        assertEquals(10, throttle.getRunning("agent"));
+    }
+
+    @Test
+    public void grantSlotsInArrivalOrder() throws Exception {
+        final NodeThrottle throttle = new NodeThrottle();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        NodeThrottle.Permit first = throttle.acquire("agent", 1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 5; i++) {
+            final int id = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        NodeThrottle.Permit permit = throttle.acquire("agent", 1);
+                        order.add(id);
+                        permit.release();
+                    } catch (InterruptedException e) {
+                        order.add(-1);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+            awaitWaiting(throttle, "agent", i + 1);
+        }
+
+        assertEquals(1, throttle.getRunning("agent"));
+        assertTrue(order.isEmpty());
+        first.release();
+        for (Thread t : threads)
+            t.join(10000);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+        assertEquals(0, throttle.getRunning("agent"));
+        assertEquals(0, throttle.getWaiting("agent"));
+    }
+
+    @Test
+    public void limitBoundsConcurrentSteps() throws Exception {
+        final NodeThrottle throttle = new NodeThrottle();
+        final int[] running = new int[2]; // current, highest
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        NodeThrottle.Permit permit = throttle.acquire("agent", 3);
+                        synchronized (running) {
+                            running[1] = Math.max(running[1], ++running[0]);
+                        }
+                        Thread.sleep(20);
+                        synchronized (running) {
+                            running[0]--;
+                        }
+                        permit.release();
+                    } catch (InterruptedException e) {
+                        // not expected, shows as a lower maximum
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads)
+            t.join(10000);
+        assertEquals(3, running[1]);
+    }
+
+    @Test
+    public void interruptedStepLeavesQueue() throws Exception {
+        final NodeThrottle throttle = new NodeThrottle();
+        NodeThrottle.Permit first = throttle.acquire("agent", 1);
+        final boolean[] interrupted = new boolean[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    throttle.acquire("agent", 1);
+                    fail("acquired a slot while the node was busy");
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+
+        t.start();
+        awaitWaiting(throttle, "agent", 1);
+        t.interrupt();
+        t.join(10000);
+        assertTrue(interrupted[0]);
+        assertEquals(0, throttle.getWaiting("agent"));
+
+        first.release();
+        first.release(); // released once only
+        assertEquals(0, throttle.getRunning("agent"));
+        assertTrue(throttle.acquire("agent", 1).getWaitMillis() < 1000);
+    }
+
+    private static void awaitWaiting(NodeThrottle throttle, String node, int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && throttle.getWaiting(node) < count; i++)
+            Thread.sleep(5);
+        assertEquals(count, throttle.getWaiting(node));
+    }
+}
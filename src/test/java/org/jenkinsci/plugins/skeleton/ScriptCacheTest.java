@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.skeleton;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScriptCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void keepEntriesInUseWhenEvicting() throws Exception {
+        ScriptCache cache = new ScriptCache(new FilePath(tmp.getRoot()), 100, ".ps1");
+        long old = System.currentTimeMillis() - ScriptCache.IN_USE_MILLIS - 60000;
+
+        File unused = put(cache, "unused", old);
+        // e.g. prepared by a build waiting to launch it
+        File inUse = put(cache, "in use", System.currentTimeMillis());
+        File added = put(cache, "added", System.currentTimeMillis());
+
+        assertFalse(unused.exists());
+        assertTrue(inUse.exists());
+        assertTrue(added.exists());
+    }
+
+    private File put(ScriptCache cache, String name, long lastModified) throws IOException, InterruptedException {
+        StringBuilder content = new StringBuilder(name);
+        while (content.length() < 60)
+            content.append('.');
+
+        File f = new File(cache.put(ScriptCache.keyOf(name), content.toString()).getRemote());
+        assertTrue(f.setLastModified(lastModified));
+        return f;
+    }
+}
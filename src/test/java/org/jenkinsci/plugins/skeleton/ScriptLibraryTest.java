@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.skeleton;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScriptLibraryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void storeContentOnce() throws IOException {
+        ScriptLibrary library = new ScriptLibrary(tmp.getRoot());
+
+        String hash = library.store("Write-Output 'a'\nWrite-Output 'b'\n");
+
+        assertEquals(hash, library.store("Write-Output 'a'\r\nWrite-Output 'b'\r\n"));
+        assertEquals(1, tmp.getRoot().list().length);
+        assertEquals("Write-Output 'a'\r\nWrite-Output 'b'\r\n", library.read(hash));
+        assertTrue(library.fileOf(hash).length() > 0);
+    }
+
+    @Test
+    public void keepOnlyRegisteredScripts() throws IOException {
+        ScriptLibrary library = new ScriptLibrary(tmp.getRoot());
+        String kept = library.store("kept");
+        String dropped = library.store("dropped");
+
+        library.retain(Collections.singleton(kept));
+
+        assertEquals("kept\r\n", library.read(kept));
+        assertNull(library.read(dropped));
+        assertFalse(new File(tmp.getRoot(), dropped + ScriptLibrary.SUFFIX).exists());
+    }
+
+    @Test
+    public void deleteOldCopiesOnNodes() throws IOException {
+        File dir = tmp.newFolder(ScriptLibrary.DIRECTORY);
+        File kept = new File(dir, "aaa" + ScriptLibrary.COPY_SUFFIX);
+        File dropped = new File(dir, "bbb" + ScriptLibrary.COPY_SUFFIX);
+        File other = new File(dir, "notes.txt");
+        assertTrue(kept.createNewFile() && dropped.createNewFile() && other.createNewFile());
+
+        new ScriptLibrary.RetainCopies(Collections.singleton("aaa")).invoke(dir, null);
+
+        assertTrue(kept.exists());
+        assertFalse(dropped.exists());
+        assertTrue(other.exists());
+    }
+}
@@ -1,6 +1,8 @@
 package org.jenkinsci.plugins.skeleton;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import hudson.FilePath;
 import hudson.model.FreeStyleBuild;
 import hudson.model.StreamBuildListener;
@@ -11,12 +13,14 @@ import hudson.model.ParametersDefinitionProperty;
 import hudson.model.StringParameterDefinition;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.concurrent.ExecutionException;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -39,7 +43,7 @@ public class StringJobSourceTest {
         String jobParamXML = "<test>Build #${BUILD_NUMBER}: My test job with string param of with value ${TestStringParam} and boolean param with value ${TestBooleanParam}</test>";
         jobPath.write(jobParamXML, Charset.defaultCharset().name());
 
-        FileJobSource job = new FileJobSource("testJob", jobPath.getRemote());
+        FileJobSource job = new FileJobSource(jobPath.getRemote());
         File jobFile = job.createJobFile(build, new StreamBuildListener(System.out, Charset.defaultCharset()));
         BufferedReader br = new BufferedReader(new FileReader(jobFile.getPath()));
         String actualJob = br.readLine();
@@ -49,4 +53,62 @@ public class StringJobSourceTest {
                 actualJob);
     }
     
+    @Test
+    public void expandEmptyParamToEmptyString() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("EmptyParam", "", "Empty by default")));
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        StringJobSource job = new StringJobSource("Write-Output '[${EmptyParam}]'");
+        File jobFile = job.createJobFile(build, new StreamBuildListener(System.out, Charset.defaultCharset()));
+
+        assertEquals("\uFEFFWrite-Output '[]'\r\n", FileUtils.readFileToString(jobFile, "UTF-8"));
+        assertEquals("", job.getVariables(build, new StreamBuildListener(System.out, Charset.defaultCharset()))
+                .get("EmptyParam"));
+    }
+
+    @Test
+    public void convertMixedLineEndings() {
+        assertEquals("a\r\nb\r\nc\r\n\r\nd\r\n", StringJobSource.toWindowsLineEndings("a\nb\r\nc\n\nd"));
+        assertEquals("\r\nx\r\n", StringJobSource.toWindowsLineEndings("\nx\r\n"));
+        assertEquals("\r\n", StringJobSource.toWindowsLineEndings(""));
+    }
+
+    @Test
+    public void keepExistingWindowsLineEndings() {
+        String script = "Write-Output 'a'\r\nWrite-Output 'b'\r\n";
+        assertEquals(script, StringJobSource.toWindowsLineEndings(script));
+    }
+
+    @Test
+    public void convertMultiMegabyteScript() {
+        String line = "Write-Output 'The quick brown fox jumps over the lazy dog'";
+        int lines = 100000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append(line).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+
+        String converted = StringJobSource.toWindowsLineEndings(sb.toString());
+
+        assertEquals(lines * (line.length() + 2), converted.length());
+        assertFalse(converted.contains("\r\r"));
+        assertFalse(converted.replace("\r\n", "").contains("\n"));
+    }
+
+    @Test
+    public void writeJobAsUtf8() throws IOException, ExecutionException, InterruptedException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        StringJobSource job = new StringJobSource("Write-Output '\u00fc\u20ac\u4e2d'");
+        File jobFile = job.createJobFile(build, new StreamBuildListener(System.out, Charset.defaultCharset()));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+        expected.write("Write-Output '\u00fc\u20ac\u4e2d'\r\n".getBytes("UTF-8"));
+        assertArrayEquals(expected.toByteArray(), FileUtils.readFileToByteArray(jobFile));
+    }
+
 }
@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.skeleton;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrendStoreTest {
+
+    private static final long HOUR = TrendStore.BUCKET_MILLIS;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void percentilesOfOneBucket() throws IOException {
+        TrendStore store = new TrendStore(new File(tmp.getRoot(), "job.bin"));
+        long now = 1000 * HOUR;
+
+        for (int i = 1; i <= 100; i++)
+            store.add(now + i, i * 100);
+
+        List<TrendStore.Bucket> buckets = store.query(now, 1);
+        assertEquals(1, buckets.size());
+        assertEquals(100, buckets.get(0).getCount());
+        assertWithin(5000, buckets.get(0).percentile(50));
+        assertWithin(9500, buckets.get(0).percentile(95));
+        assertWithin(9900, buckets.get(0).percentile(99));
+    }
+
+    @Test
+    public void fileSizeIsFixed() throws IOException {
+        File file = new File(tmp.getRoot(), "job.bin");
+        TrendStore store = new TrendStore(file);
+
+        store.add(0, 10);
+        long size = file.length();
+        for (int i = 0; i < 3 * TrendStore.CAPACITY; i++)
+            store.add(i * HOUR, 10);
+        assertEquals(size, file.length());
+    }
+
+    @Test
+    public void ringOverwritesOldBuckets() throws IOException {
+        TrendStore store = new TrendStore(new File(tmp.getRoot(), "job.bin"));
+        long first = 1000 * HOUR;
+        long later = first + TrendStore.CAPACITY * HOUR;
+
+        store.add(first, 10);
+        store.add(later, 20);
+
+        List<TrendStore.Bucket> buckets = store.query(later, TrendStore.CAPACITY);
+        assertEquals(1, buckets.size());
+        assertEquals(later, buckets.get(0).getStart());
+        assertEquals(1, buckets.get(0).getCount());
+    }
+
+    @Test
+    public void skipHoursWithoutSteps() throws IOException {
+        TrendStore store = new TrendStore(new File(tmp.getRoot(), "job.bin"));
+        long now = 1000 * HOUR;
+
+        store.add(now - 5 * HOUR, 10);
+        store.add(now, 10);
+
+        List<TrendStore.Bucket> buckets = store.query(now + 1, 24);
+        assertEquals(2, buckets.size());
+        assertEquals(now - 5 * HOUR, buckets.get(0).getStart());
+        assertEquals(now, buckets.get(1).getStart());
+        assertTrue(store.query(now, 24).size() == 2);
+        assertEquals(0, new TrendStore(new File(tmp.getRoot(), "none.bin")).query(now, 24).size());
+    }
+
+    /**
+     * Percentiles are reported as the upper bound of a histogram bin, a
+     * quarter of a doubling wide.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " for " + expected, actual >= expected && actual <= expected * 1.2 + 1);
+    }
+}
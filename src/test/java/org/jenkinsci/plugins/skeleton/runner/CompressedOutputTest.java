@@ -0,0 +1,97 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Sends through a stream splitting every write, as a remote stream may.
+ */
+public class CompressedOutputTest {
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+    @Test
+    public void roundTripAcrossChunks() throws IOException {
+        OutputStream sender = sender(1024, 0);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] line = ("line " + i + " " + Long.toHexString(random.nextLong()) + "\r\n").getBytes("UTF-8");
+            sender.write(line);
+            sent.write(line);
+        }
+        sender.flush();
+
+        assertArrayEquals(sent.toByteArray(), received.toByteArray());
+        // repetitive output shrinks on the wire
+        assertTrue(wire.size() + " of " + sent.size(), wire.size() < sent.size() / 2);
+    }
+
+    @Test
+    public void holdBackUntilFlushed() throws IOException {
+        OutputStream sender = sender(1024, 0);
+
+        sender.write("partial".getBytes("UTF-8"));
+        assertEquals(0, received.size());
+        sender.flush();
+        assertEquals("partial", received.toString("UTF-8"));
+    }
+
+    @Test
+    public void sendAfterDelay() throws Exception {
+        OutputStream sender = sender(1024, 50);
+
+        sender.write("late\n".getBytes("UTF-8"));
+        for (int i = 0; i < 100 && received.size() == 0; i++)
+            Thread.sleep(20);
+
+        synchronized (received) {
+            assertEquals("late\n", received.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void sendRestOnClose() throws IOException {
+        OutputStream sender = sender(1024, 0);
+
+        sender.write("rest".getBytes("UTF-8"));
+        sender.close();
+        assertEquals("rest", received.toString("UTF-8"));
+        try {
+            sender.write('x');
+            fail("written after close");
+        } catch (IOException e) {
+            // the deflater is gone
+        }
+    }
+
+    private OutputStream sender(int chunkSize, long flushMillis) {
+        final CompressedOutput.Receiver receiver = new CompressedOutput.Receiver(received);
+
+        return new CompressedOutput.Sender(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                wire.write(b, off, len);
+                // three bytes at a time, headers and chunks arrive in pieces
+                for (int i = 0; i < len; i += 3)
+                    receiver.write(b, off + i, Math.min(3, len - i));
+            }
+        }, chunkSize, flushMillis);
+    }
+}
@@ -0,0 +1,251 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import hudson.remoting.Callable;
+import hudson.remoting.LocalChannel;
+import hudson.remoting.RequestAbortedException;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs <code>/bin/sh</code> scripts detached, over a channel calling in-process.
+ */
+public class DurableRunTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/bin/sh").canExecute() && new File("/proc/self").isDirectory());
+    }
+
+    @Test
+    public void copyLogAndExitCode() throws Exception {
+        DurableRun run = run("echo one; echo two >&2; echo RESULT=ok >> \"$SKELETON_RESULTS\"; exit 3");
+        DurableRun.Result r = run.run(new Local(0), out, 0, 0);
+
+        assertEquals(3, r.getExitCode());
+        assertNull(r.getTimedOut());
+        assertEquals("one\ntwo\n", out.toString());
+        assertEquals("ok", r.getValues().get("RESULT"));
+        assertEquals(8, run.getOffset());
+        assertFalse(new File(tmp.getRoot(), "control").exists());
+    }
+
+    @Test
+    public void reattachAtOffsetAfterBrokenChannel() throws Exception {
+        DurableRun run = run("for i in 1 2 3 4 5; do echo line $i; sleep 0.2; done");
+        Local channel = new Local(3);
+        DurableRun.Result r = run.run(channel, out, 0, 0);
+
+        assertEquals(0, r.getExitCode());
+        assertEquals(3, r.getReconnects());
+        // nothing lost or repeated across the reconnects
+        assertEquals("line 1\nline 2\nline 3\nline 4\nline 5\n", out.toString());
+    }
+
+    @Test
+    public void killAfterTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        DurableRun.Result r = run("echo started; sleep 60").run(new Local(0), out, 1000, 0);
+
+        assertTrue(r.getTimedOut(), r.getTimedOut().contains("timeout"));
+        assertTrue(r.getExitCode() != 0);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals("started\n", out.toString());
+    }
+
+    @Test
+    public void stopAndFinishAfterBrokenChannel() throws Exception {
+        Local channel = new Local(0, DurableRun.Stop.class, DurableRun.Finish.class);
+        DurableRun.Result r = run("echo started; echo RESULT=ok >> \"$SKELETON_RESULTS\"; sleep 60")
+                              .run(channel, out, 1000, 0);
+
+        assertTrue(r.getTimedOut(), r.getTimedOut().contains("timeout"));
+        assertEquals(-1, r.getExitCode());
+        assertEquals(2, r.getReconnects());
+        assertEquals("ok", r.getValues().get("RESULT"));
+        assertFalse(new File(tmp.getRoot(), "control").exists());
+    }
+
+    @Test
+    public void keepSingleDigitExitCodeOnWindows() {
+        File dir = new File("C:\\control");
+        String wrapper = DurableRun.Start.windowsWrapper(new String[] {"powershell.exe", "-File", "job.ps1"}, dir);
+
+        // "echo 1> file" would redirect handle 1 and write no exit code
+        assertTrue(wrapper, wrapper.contains("(echo %ERRORLEVEL%)> \"" + new File(dir, "exit-code.tmp").getPath() + "\"\r\n"));
+        assertTrue(wrapper, wrapper.startsWith("@echo off\r\n\"powershell.exe\" \"-File\" \"job.ps1\" > "));
+    }
+
+    @Test
+    public void quoteUnixWrapper() {
+        String wrapper = DurableRun.Start.unixWrapper(new String[] {"/bin/sh", "it's.sh"}, new File("/control"));
+
+        assertTrue(wrapper, wrapper.startsWith("trap '' HUP\n'/bin/sh' 'it'\\''s.sh' > '/control/output.log' 2>&1 < /dev/null\n"));
+        assertTrue(wrapper, wrapper.contains("echo $? > '/control/exit-code.tmp'\n"));
+    }
+
+    @Test
+    public void reportMalformedExitCode() throws Exception {
+        File control = tmp.newFolder("control");
+        File marker = new File(control, "exit-code");
+
+        write(marker, "");
+        DurableRun.Chunk chunk = new DurableRun.Poll(control.getPath(), 0).call();
+        assertEquals(Integer.valueOf(-1), chunk.exitCode);
+        assertEquals("", chunk.marker);
+
+        write(marker, "ECHO is off.\r\n");
+        chunk = new DurableRun.Poll(control.getPath(), 0).call();
+        assertEquals(Integer.valueOf(-1), chunk.exitCode);
+        assertEquals("ECHO is off.", chunk.marker);
+
+        write(marker, "2\n");
+        assertNull(new DurableRun.Poll(control.getPath(), 0).call().marker);
+    }
+
+    @Test
+    public void collectRunWhoseControllerWentAway() throws Exception {
+        File script = write(new File(tmp.getRoot(), "job.sh"), "echo one; sleep 1; echo two; exit 4");
+        String control = new File(tmp.getRoot(), "control").getPath();
+        Local channel = new Local(0);
+
+        new DurableRun.Start(new String[] {"/bin/sh", script.getPath()}, tmp.getRoot().getPath(), env(),
+                             control, "cookie", "job#1").call();
+        // polled before the controller went away
+        while (new DurableRun.Poll(control, 0).call().bytes.length == 0)
+            Thread.sleep(50);
+        new DurableRun.Poll(control, 4).call();
+
+        assertEquals("job#1", DurableRun.ownerOf(channel, control));
+        assertNull(DurableRun.collect(channel, control, out));
+
+        DurableRun.Result r;
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((r = DurableRun.collect(channel, control, out)) == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+
+        assertEquals(4, r.getExitCode());
+        assertEquals("two\n", out.toString());
+        assertFalse(new File(control).exists());
+    }
+
+    @Test
+    public void leaveRunThatCannotBeStoppedForKill() throws Exception {
+        final DurableRun run = run("sleep 60");
+        final Local channel = new Local(0) {
+            @Override
+            public <V, T extends Throwable> hudson.remoting.Future<V> callAsync(Callable<V, T> callable)
+            throws IOException {
+                throw new IOException("channel closed");
+            }
+        };
+        final Exception[] failure = new Exception[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    run.run(channel, out, 0, 0);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        String control = new File(tmp.getRoot(), "control").getPath();
+
+        t.start();
+        while (!DurableRun.isActive(control))
+            Thread.sleep(50);
+        Thread.sleep(500);
+        t.interrupt();
+        t.join(10000);
+
+        assertFalse(t.isAlive());
+        assertTrue(String.valueOf(failure[0]), failure[0] instanceof InterruptedIOException);
+        assertFalse(DurableRun.isActive(control));
+        assertTrue(DurableRun.isAbandoned(control));
+
+        DurableRun.kill(new Local(0), control);
+        assertFalse(DurableRun.isAbandoned(control));
+        assertFalse(new File(control).exists());
+    }
+
+    private DurableRun run(String script) throws IOException {
+        File file = write(new File(tmp.getRoot(), "job.sh"), script);
+
+        return new DurableRun(new String[] {"/bin/sh", file.getPath()}, tmp.getRoot().getPath(), env(),
+                              new File(tmp.getRoot(), "control").getPath(), null);
+    }
+
+    private static Map<String, String> env() {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("PATH", System.getenv("PATH"));
+        return env;
+    }
+
+    private static File write(File file, String content) throws IOException {
+        FileWriter w = new FileWriter(file);
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+        return file;
+    }
+
+    /**
+     * Calls in this JVM, aborting every other poll until it broke the given number of times,
+     * and the first call of each of the given kinds.
+     */
+    private static class Local extends LocalChannel implements DurableRun.Connector {
+        private int breaks;
+        private int calls;
+        private final Set<Class<?>> fragile = new HashSet<Class<?>>();
+
+        Local(int breaks, Class<?>... fragile) {
+            super(Executors.newCachedThreadPool());
+            this.breaks = breaks;
+            this.fragile.addAll(Arrays.asList(fragile));
+        }
+
+        public VirtualChannel connect(IOException broken) {
+            return this;
+        }
+
+        @Override
+        public <V, T extends Throwable> V call(Callable<V, T> callable) throws T {
+            if (callable instanceof DurableRun.Poll && breaks > 0 && calls++ % 2 == 1) {
+                breaks--;
+                // what a call gets when the channel closes while it waits
+                throw new RequestAbortedException(new IOException("channel closed"));
+            }
+            if (fragile.remove(callable.getClass()))
+                throw new RequestAbortedException(new IOException("channel closed"));
+            return callable.call();
+        }
+    }
+}
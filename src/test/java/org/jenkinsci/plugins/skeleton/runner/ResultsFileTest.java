@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultsFileTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parseCompleteLinesOnly() throws IOException {
+        File file = tmp.newFile("job.results");
+        ResultsFile results = new ResultsFile(file);
+
+        append(file, "BEAKER_JOB_ID=42\nSTATUS=runn".getBytes("UTF-8"));
+        results.poll();
+        append(file, "ing\n{\"HOST\": \"lab1\", \"COUNT\": 3, \"EMPTY\": null}\nSTATUS=done".getBytes("UTF-8"));
+        results.poll();
+
+        Map<String, String> values = results.close();
+        assertEquals("42", values.get("BEAKER_JOB_ID"));
+        assertEquals("lab1", values.get("HOST"));
+        assertEquals("3", values.get("COUNT"));
+        assertEquals("", values.get("EMPTY"));
+        assertEquals("done", values.get("STATUS"));
+        assertEquals("[BEAKER_JOB_ID, STATUS, HOST, COUNT, EMPTY]", values.keySet().toString());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void readUtf16WithByteOrderMark() throws IOException {
+        File file = tmp.newFile("job.results");
+        ResultsFile results = new ResultsFile(file);
+
+        append(file, new byte[] {(byte) 0xFF, (byte) 0xFE});
+        append(file, "A=\u00e9\r\nB=\u010a\r\n".getBytes("UTF-16LE"));
+
+        Map<String, String> values = results.close();
+        assertEquals("\u00e9", values.get("A"));
+        assertEquals("\u010a", values.get("B"));
+    }
+
+    @Test
+    public void skipMalformedRecords() throws IOException {
+        File file = tmp.newFile("job.results");
+        ResultsFile results = new ResultsFile(file);
+
+        append(file, "# comment\n\nno value\n1BAD=x\n{broken\nGOOD=a=b\n".getBytes("UTF-8"));
+
+        Map<String, String> values = results.close();
+        assertEquals(1, values.size());
+        assertEquals("a=b", values.get("GOOD"));
+        assertEquals(3, results.getSkipped());
+    }
+
+    @Test
+    public void ignoreBeyondLimit() throws IOException {
+        File file = tmp.newFile("job.results");
+        ResultsFile results = new ResultsFile(file);
+        StringBuilder sb = new StringBuilder("FIRST=1\n");
+
+        while (sb.length() < ResultsFile.MAX_BYTES)
+            sb.append("FILLER=0123456789\n");
+        sb.append("LAST=1\n");
+        append(file, sb.toString().getBytes("UTF-8"));
+
+        Map<String, String> values = results.close();
+        assertTrue(results.isTruncated());
+        assertEquals("1", values.get("FIRST"));
+        assertFalse(values.containsKey("LAST"));
+    }
+
+    private static void append(File file, byte[] b) throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(b);
+        } finally {
+            out.close();
+        }
+    }
+}
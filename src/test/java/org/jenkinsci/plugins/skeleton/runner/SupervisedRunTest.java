@@ -0,0 +1,158 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Supervises <code>/bin/sh</code> scripts that sleep in a child process.
+ */
+public class SupervisedRunTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/bin/sh").canExecute() && new File("/proc/self").isDirectory());
+    }
+
+    @Test
+    public void reportExitCodeOutputAndUsage() throws Exception {
+        SupervisedRun.Result r = run("echo out; echo err >&2; echo RESULT=ok >> \"$SKELETON_RESULTS\"; sleep 1; exit 4", 0, 0).call();
+
+        assertEquals(4, r.getExitCode());
+        assertNull(r.getTimedOut());
+        assertEquals("out\n", out.toString());
+        assertEquals("err\n", err.toString());
+        assertEquals("ok", r.getValues().get("RESULT"));
+        assertTrue(r.getPid() > 0);
+        assertTrue(r.getPeakRssKb() > 0);
+        assertTrue(r.getCpuMillis() >= 0);
+    }
+
+    @Test
+    public void killTreeAfterTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        SupervisedRun.Result r = run(sleeper(), 1000, 0).call();
+
+        assertTrue(r.getTimedOut(), r.getTimedOut().contains("timeout"));
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(r.getLeftover().toString(), r.getLeftover().isEmpty());
+        assertGone(childPid());
+    }
+
+    @Test
+    public void killTreeWhenIdle() throws Exception {
+        SupervisedRun.Result r = run("echo started; " + sleeper(), 0, 1000).call();
+
+        assertTrue(r.getTimedOut(), r.getTimedOut().contains("no output"));
+        assertEquals("started\n", out.toString());
+        assertGone(childPid());
+    }
+
+    @Test
+    public void killTreeWhenInterrupted() throws Exception {
+        final SupervisedRun run = run(sleeper(), 0, 0);
+        final Throwable[] thrown = new Throwable[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    run.call();
+                } catch (Throwable e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+
+        t.start();
+        File child = new File(tmp.getRoot(), "child");
+        for (int i = 0; i < 200 && child.length() == 0; i++)
+            Thread.sleep(50);
+        long start = System.currentTimeMillis();
+        t.interrupt();
+        t.join(10000);
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof InterruptedIOException);
+        assertGone(childPid());
+    }
+
+    /** sleeps in a child, writing its pid first */
+    private String sleeper() {
+        return "sleep 60 & echo $! > child; wait";
+    }
+
+    private SupervisedRun run(String script, long timeoutMillis, long idleMillis) throws IOException {
+        File file = new File(tmp.getRoot(), "job.sh");
+        FileWriter w = new FileWriter(file);
+        try {
+            w.write(script);
+        } finally {
+            w.close();
+        }
+
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("PATH", System.getenv("PATH"));
+        return new SupervisedRun(new String[] {"/bin/sh", file.getPath()}, tmp.getRoot().getPath(), env,
+                                 out, err, timeoutMillis, idleMillis);
+    }
+
+    private int childPid() throws IOException {
+        Reader r = new FileReader(new File(tmp.getRoot(), "child"));
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (int c; (c = r.read()) != -1; )
+                sb.append((char) c);
+        } finally {
+            r.close();
+        }
+        return Integer.parseInt(sb.toString().trim());
+    }
+
+    /**
+     * The process is gone, or a zombie waiting for a parent that doesn't reap.
+     */
+    private static void assertGone(int pid) throws Exception {
+        File stat = new File("/proc/" + pid + "/stat");
+        for (int i = 0; i < 100; i++) {
+            if (!stat.exists())
+                return;
+            Reader r = new FileReader(stat);
+            StringBuilder sb = new StringBuilder();
+            try {
+                for (int c; (c = r.read()) != -1; )
+                    sb.append((char) c);
+            } catch (IOException e) {
+                return;
+            } finally {
+                r.close();
+            }
+            if (sb.substring(sb.lastIndexOf(")") + 2).startsWith("Z"))
+                return;
+            Thread.sleep(50);
+        }
+        fail("process " + pid + " still running");
+    }
+}
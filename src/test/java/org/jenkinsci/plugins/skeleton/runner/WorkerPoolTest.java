@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the pool against <code>/bin/sh</code> standing in for PowerShell.
+ */
+public class WorkerPoolTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private WorkerPool pool;
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/bin/sh").canExecute());
+        pool = new WorkerPool(new WorkerProtocol.PosixShell("/bin/sh"), null, 1, 3);
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Test
+    public void runScriptAndReturnExitCode() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("GREETING", "hello 'world'");
+
+        int rc = pool.run(script("echo \"$GREETING\"; printf tail; exit 3"), tmp.getRoot().getPath(), env, out, 0, 0);
+
+        assertEquals(3, rc);
+        assertEquals("hello 'world'\ntail\n", out.toString());
+    }
+
+    @Test
+    public void sendCommandsAsUtf8() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("GREETING", "gr\u00fc\u00dfe \u20ac");
+
+        pool.run(script("echo \"$GREETING\""), tmp.getRoot().getPath(), env, out, 0, 0);
+
+        assertEquals("gr\u00fc\u00dfe \u20ac\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void passOnLongLinesInPieces() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] largest = new int[1];
+        int length = Worker.MAX_LINE * 3 + 17;
+
+        // no newline until the marker, the worker must not hold it all
+        int rc = pool.run(script("head -c " + length + " /dev/zero | tr '\\0' x; exit 2"), tmp.getRoot().getPath(),
+                          new HashMap<String, String>(), new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                largest[0] = Math.max(largest[0], len);
+                out.write(b, off, len);
+            }
+        }, 0, 0);
+
+        assertEquals(2, rc);
+        assertEquals(length + 1, out.size());
+        assertTrue(largest[0] + " bytes at once", largest[0] <= Worker.MAX_LINE);
+    }
+
+    @Test
+    public void isolateJobsOnTheSameWorker() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> env = new HashMap<String, String>();
+
+        pool.run(script("LEAK=1; export LEAKED=1; cd /"), tmp.getRoot().getPath(), env, out, 0, 0);
+        pool.run(script("echo \"[$LEAK$LEAKED]\"; pwd"), tmp.getRoot().getPath(), env, out, 0, 0);
+
+        assertEquals("[]\n" + tmp.getRoot().getCanonicalPath() + "\n", out.toString());
+        assertEquals(1, pool.getTotal());
+    }
+
+    @Test
+    public void recycleWorkerAfterMaxJobs() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        ByteArrayOutputStream pids = new ByteArrayOutputStream();
+        String pid = script("echo $$");
+
+        for (int i = 0; i < 4; i++)
+            pool.run(pid, tmp.getRoot().getPath(), env, pids, 0, 0);
+
+        String[] lines = pids.toString().split("\n");
+        assertEquals(lines[0], lines[2]);
+        assertEquals(false, lines[0].equals(lines[3]));
+    }
+
+    @Test
+    public void replaceDeadWorker() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            pool.run(script("kill -9 $$"), tmp.getRoot().getPath(), env, out, 0, 0);
+            fail("a dying worker must fail the job");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, pool.getTotal());
+        assertEquals(0, pool.run(script("echo ok"), tmp.getRoot().getPath(), env, out, 0, 0));
+        assertEquals("ok\n", out.toString());
+    }
+
+    @Test
+    public void killWorkerOnTimeout() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+
+        try {
+            pool.run(script("echo started; sleep 30"), tmp.getRoot().getPath(), env, out, 0, 500);
+            fail("a silent job must time out");
+        } catch (Worker.TimeoutException e) {
+            assertTrue(e.getMessage().startsWith("wrote no output"));
+        }
+        assertTrue(System.nanoTime() - start < 10000000000L);
+        assertEquals("started\n", out.toString());
+        assertEquals(0, pool.getTotal());
+    }
+
+    @Test
+    public void killWorkerOnInterrupt() throws Exception {
+        final Map<String, String> env = new HashMap<String, String>();
+        final String sleep = script("sleep 30");
+        final Exception[] failure = new Exception[1];
+        Thread job = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.run(sleep, tmp.getRoot().getPath(), env, new ByteArrayOutputStream(), 0, 0);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+
+        job.start();
+        Thread.sleep(500);
+        job.interrupt();
+        job.join(10000);
+
+        assertFalse(job.isAlive());
+        assertTrue(failure[0] instanceof InterruptedException);
+        assertEquals(0, pool.getTotal());
+    }
+
+    private String script(String content) throws IOException {
+        File f = tmp.newFile();
+        FileWriter w = new FileWriter(f);
+        try {
+            w.write(content + "\n");
+        } finally {
+            w.close();
+        }
+        return f.getPath();
+    }
+}
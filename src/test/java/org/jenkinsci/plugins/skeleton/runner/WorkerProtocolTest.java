@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.skeleton.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WorkerProtocolTest {
+
+    @Test
+    public void choosePowerShellByName() {
+        WorkerProtocol p = WorkerProtocol.forInterpreter("C:\\Windows\\system32\\WindowsPowershell\\v1.0\\PowerShell.EXE");
+
+        assertTrue(p instanceof WorkerProtocol.PowerShell);
+        assertEquals("C:\\Windows\\system32\\WindowsPowershell\\v1.0\\PowerShell.EXE", p.command().get(0));
+        assertTrue(WorkerProtocol.forInterpreter("/usr/bin/pwsh") instanceof WorkerProtocol.PowerShell);
+    }
+
+    @Test
+    public void choosePosixShellByName() {
+        assertTrue(WorkerProtocol.forInterpreter("/bin/sh") instanceof WorkerProtocol.PosixShell);
+        assertTrue(WorkerProtocol.forInterpreter("bash") instanceof WorkerProtocol.PosixShell);
+    }
+
+    @Test
+    public void refuseOtherInterpreters() {
+        assertNull(WorkerProtocol.forInterpreter("/usr/bin/osascript"));
+        assertNull(WorkerProtocol.forInterpreter("C:\\tools\\pwsh-wrapper.cmd"));
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ByteMacroExpanderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void expandInChunksLikeAtOnce() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("NAME", "World");
+        env.put("LONG_NAME", "été");
+
+        // macros straddling the boundaries of the 64 KiB chunks
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            script.append(i % 7 == 0 ? "${LONG_NAME} $$ " : "$NAME x").append(i % 3 == 0 ? "\r\n" : "");
+        script.append("${NAME");
+        byte[] bytes = script.toString().getBytes(UTF8);
+
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        long n = new ByteMacroExpander(env, UTF8, 0).expand(ByteBuffer.wrap(bytes), null, Channels.newChannel(whole), null);
+
+        ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+        ByteMacroExpander expander = new ByteMacroExpander(env, UTF8, 0);
+        long m = expander.expand(Channels.newChannel(new ByteArrayInputStream(bytes)), Channels.newChannel(chunked), null, null);
+
+        assertEquals(n, m);
+        assertEquals(whole.toString("UTF-8"), chunked.toString("UTF-8"));
+        assertEquals("[LONG_NAME, NAME]", expander.getReferenced().toString());
+    }
+}
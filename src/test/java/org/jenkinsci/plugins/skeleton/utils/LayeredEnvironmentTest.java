@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.skeleton.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class LayeredEnvironmentTest {
+
+    @Test
+    public void lookUpFromTheTop() {
+        LayeredEnvironment base = LayeredEnvironment.of(map("NAME", "base", "Home", "/home/x"));
+        LayeredEnvironment env = base.with(map("name", "overlay"));
+
+        assertEquals("overlay", env.get("NAME"));
+        assertEquals("/home/x", env.get("HOME"));
+        // the layer below is not changed
+        assertEquals("base", base.get("name"));
+    }
+
+    @Test
+    public void keepEmptyValues() {
+        LayeredEnvironment env = LayeredEnvironment.of(map("A", "1", "B", "")).with(map("A", ""));
+
+        assertEquals("", env.get("A"));
+        assertEquals("", env.get("B"));
+        assertEquals(2, env.size());
+    }
+
+    @Test
+    public void emptyOverrideRemovesFromBelow() {
+        LayeredEnvironment env = LayeredEnvironment.of(map("A", "1", "B", "")).override(map("A", ""));
+
+        assertNull(env.get("A"));
+        assertFalse(env.containsKey("A"));
+        assertEquals("", env.get("B"));
+        assertEquals(1, env.size());
+    }
+
+    @Test
+    public void prependToPath() {
+        LayeredEnvironment env = LayeredEnvironment.of(map("PATH", "/usr/bin")).override(map("PATH+TOOLS", "/opt/tools"));
+
+        assertEquals("/opt/tools" + File.pathSeparatorChar + "/usr/bin", env.get("Path"));
+    }
+
+    @Test
+    public void prependWithSeparatorOfTheNode() {
+        LayeredEnvironment env = LayeredEnvironment.of(map("PATH", "C:\\Windows"), ';').with(map("A", "1"))
+                                 .override(map("PATH+TOOLS", "C:\\tools"));
+        assertEquals("C:\\tools;C:\\Windows", env.get("PATH"));
+
+        env = LayeredEnvironment.of(map("PATH", "/usr/bin"), ':').override(map("PATH+TOOLS", "/opt/tools"));
+        assertEquals("/opt/tools:/usr/bin", env.get("PATH"));
+    }
+
+    @Test
+    public void flattenForIteration() {
+        LayeredEnvironment env = LayeredEnvironment.of(map("A", "1", "B", "2")).with(map("b", "3", "C", "4"));
+        Map<String, String> expected = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+        expected.putAll(map("A", "1", "B", "3", "C", "4"));
+        assertEquals(expected, new TreeMap<String, String>(env));
+        assertEquals(env, expected);
+    }
+
+    private static Map<String, String> map(String... pairs) {
+        Map<String, String> map = new HashMap<String, String>();
+
+        for (int i = 0; i < pairs.length; i += 2)
+            map.put(pairs[i], pairs[i + 1]);
+        return map;
+    }
+}